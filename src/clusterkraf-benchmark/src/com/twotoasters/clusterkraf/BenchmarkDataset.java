@@ -0,0 +1,112 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import android.graphics.Point;
+
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Synthetic InputPoint sets spread over a Projection's visible region. Points
+ * are generated from a fixed seed so every run measures the same data.
+ */
+enum BenchmarkDataset {
+
+	/**
+	 * points spread evenly over the screen
+	 */
+	UNIFORM {
+		@Override
+		Point nextScreenPosition(Random random, int width, int height) {
+			return new Point(random.nextInt(width), random.nextInt(height));
+		}
+	},
+
+	/**
+	 * points gathered in gaussian blobs around a few dozen centers, like
+	 * points of interest around cities
+	 */
+	CLUSTERED {
+		private static final int CENTER_COUNT = 32;
+
+		private Point[] centers;
+
+		@Override
+		Point nextScreenPosition(Random random, int width, int height) {
+			if (centers == null) {
+				Random centerRandom = new Random(SEED);
+				centers = new Point[CENTER_COUNT];
+				for (int i = 0; i < CENTER_COUNT; i++) {
+					centers[i] = new Point(centerRandom.nextInt(width), centerRandom.nextInt(height));
+				}
+			}
+			Point center = centers[random.nextInt(CENTER_COUNT)];
+			double spread = Math.min(width, height) / 20.0;
+			int x = clamp((int) (center.x + random.nextGaussian() * spread), width);
+			int y = clamp((int) (center.y + random.nextGaussian() * spread), height);
+			return new Point(x, y);
+		}
+	},
+
+	/**
+	 * every point on the same pixel, so everything lands in one cluster
+	 */
+	SINGLE_PIXEL {
+		@Override
+		Point nextScreenPosition(Random random, int width, int height) {
+			return new Point(width / 2, height / 2);
+		}
+	};
+
+	private static final long SEED = 0x636c7573L;
+
+	abstract Point nextScreenPosition(Random random, int width, int height);
+
+	ArrayList<InputPoint> createPoints(Projection projection, int width, int height, int count) {
+		Random random = new Random(SEED);
+		ArrayList<InputPoint> points = new ArrayList<InputPoint>(count);
+		for (int i = 0; i < count; i++) {
+			LatLng mapPosition = projection.fromScreenLocation(nextScreenPosition(random, width, height));
+			points.add(new InputPoint(mapPosition, Integer.valueOf(i)));
+		}
+		return points;
+	}
+
+	/**
+	 * The same points as createPoints, as rows of an InputPointStore whose
+	 * ids are their indexes
+	 */
+	InputPointStore createStore(Projection projection, int width, int height, int count) {
+		Random random = new Random(SEED);
+		InputPointStore store = new InputPointStore(count);
+		for (int i = 0; i < count; i++) {
+			LatLng mapPosition = projection.fromScreenLocation(nextScreenPosition(random, width, height));
+			store.add(mapPosition.latitude, mapPosition.longitude, i);
+		}
+		store.setTagLookup(new InputPointStore.TagLookup() {
+
+			@Override
+			public Object getTag(int id) {
+				return Integer.valueOf(id);
+			}
+		});
+		return store;
+	}
+
+	/**
+	 * @return every row of the store
+	 */
+	static int[] allRows(InputPointStore store) {
+		int[] rows = new int[store.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = i;
+		}
+		return rows;
+	}
+
+	private static int clamp(int value, int size) {
+		return Math.max(0, Math.min(size - 1, value));
+	}
+}
@@ -0,0 +1,28 @@
+package com.twotoasters.clusterkraf;
+
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * The viewport shared by the benchmarks: a phone-sized screen over western
+ * Europe, and the same screen one zoom level closer
+ */
+final class BenchmarkMap {
+
+	static final int WIDTH = 1080;
+	static final int HEIGHT = 1920;
+
+	static final LatLng TARGET = new LatLng(48.0, 8.0);
+	static final float ZOOM = 5;
+
+	private BenchmarkMap() {
+	}
+
+	static Projection projection() {
+		return new Projection(TARGET, ZOOM, WIDTH, HEIGHT);
+	}
+
+	static Projection zoomedInProjection() {
+		return new Projection(TARGET, ZOOM + 1, WIDTH, HEIGHT);
+	}
+}
@@ -0,0 +1,83 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.Marker;
+
+/**
+ * Measures the cluster transition work done when zooming in one level:
+ * matching the new clusters against the old ones, and moving the animated
+ * markers for a single frame
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClusterTransitionsBenchmark {
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int pointCount;
+
+	@Param({ "UNIFORM", "CLUSTERED", "SINGLE_PIXEL" })
+	public String dataset;
+
+	private Projection zoomedInProjection;
+	private ArrayList<ClusterPoint> previousClusters;
+	private ArrayList<ClusterPoint> currentClusters;
+
+	private ClusterTransitionsAnimation.AnimatedTransitionState state;
+	private Marker[] markers;
+	private float value;
+
+	@Setup
+	public void setUp() {
+		Projection projection = BenchmarkMap.projection();
+		zoomedInProjection = BenchmarkMap.zoomedInProjection();
+		Options options = new Options();
+		InputPointStore store = BenchmarkDataset.valueOf(dataset).createStore(projection, BenchmarkMap.WIDTH, BenchmarkMap.HEIGHT, pointCount);
+		int[] rows = BenchmarkDataset.allRows(store);
+
+		ClustersBuilder previousBuilder = new ClustersBuilder(projection, store, options, null);
+		previousBuilder.addAll(rows, rows.length);
+		previousClusters = previousBuilder.build();
+
+		// zooming in keeps only the points still on screen
+		ClustersBuilder currentBuilder = new ClustersBuilder(zoomedInProjection, store, options, null);
+		currentBuilder.addAll(rows, rows.length);
+		currentClusters = currentBuilder.build();
+
+		ClusterTransitions transitions = buildTransitions();
+		state = new ClusterTransitionsAnimation.AnimatedTransitionState(transitions.animated);
+		markers = new Marker[transitions.animated.size()];
+		for (int i = 0; i < markers.length; i++) {
+			markers[i] = new Marker(transitions.animated.get(i).getOriginClusterRelevantInputPoints().getMapPosition());
+		}
+	}
+
+	@Benchmark
+	public ClusterTransitions buildTransitions() {
+		ClusterTransitions.Builder builder = new ClusterTransitions.Builder(zoomedInProjection, previousClusters);
+		for (ClusterPoint currentClusterPoint : currentClusters) {
+			builder.add(currentClusterPoint);
+		}
+		return builder.build();
+	}
+
+	@Benchmark
+	public Marker[] animationFrame() {
+		value = value < 1 ? value + 1f / 32 : 0;
+		state.setValue(value);
+		state.updatePositions(markers);
+		return markers;
+	}
+}
@@ -0,0 +1,55 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.android.gms.maps.Projection;
+
+/**
+ * Measures a full clustering pass: filtering points to the visible region,
+ * projecting them and clustering them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClustersBuilderBenchmark {
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int pointCount;
+
+	@Param({ "UNIFORM", "CLUSTERED", "SINGLE_PIXEL" })
+	public String dataset;
+
+	@Param({ "false", "true" })
+	public boolean parallelClustering;
+
+	private Projection projection;
+	private Options options;
+	private InputPointStore store;
+	private int[] rows;
+
+	@Setup
+	public void setUp() {
+		projection = BenchmarkMap.projection();
+		options = new Options();
+		options.setParallelClustering(parallelClustering);
+		store = BenchmarkDataset.valueOf(dataset).createStore(projection, BenchmarkMap.WIDTH, BenchmarkMap.HEIGHT, pointCount);
+		rows = BenchmarkDataset.allRows(store);
+	}
+
+	@Benchmark
+	public ArrayList<ClusterPoint> build() {
+		ClustersBuilder builder = new ClustersBuilder(projection, store, options, null);
+		builder.addAll(rows, rows.length);
+		return builder.build();
+	}
+}
@@ -0,0 +1,83 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.ArrayList;
+
+import com.google.android.gms.maps.Projection;
+
+/**
+ * Measures the heap retained per point by an InputPointStore of a million
+ * points, by the clusters a pass builds from it, and by a ClusterHierarchy
+ * over it, with the same points as InputPoint objects for comparison. Heap use
+ * is not something JMH reports, so this runs on its own with
+ *
+ *     gradle :src:clusterkraf-benchmark:heap
+ *
+ * Each figure is the growth in used heap after a full collection while the
+ * measured objects are still reachable, so run it with a heap large enough to
+ * hold them all, e.g. -Xmx2g.
+ */
+public final class PointHeapMeasurement {
+
+	private static final int POINT_COUNT = 1000000;
+
+	private PointHeapMeasurement() {
+	}
+
+	public static void main(String[] args) {
+		int pointCount = args.length > 0 ? Integer.parseInt(args[0]) : POINT_COUNT;
+		BenchmarkDataset dataset = args.length > 1 ? BenchmarkDataset.valueOf(args[1]) : BenchmarkDataset.CLUSTERED;
+		Projection projection = BenchmarkMap.projection();
+		Options options = new Options();
+
+		long baseline = usedHeap();
+		InputPointStore store = dataset.createStore(projection, BenchmarkMap.WIDTH, BenchmarkMap.HEIGHT, pointCount);
+		int[] rows = BenchmarkDataset.allRows(store);
+		long afterStore = usedHeap();
+		report("InputPointStore and the rows being clustered", afterStore - baseline, pointCount);
+
+		ClustersBuilder builder = new ClustersBuilder(projection, store, options, null);
+		builder.addAll(rows, rows.length);
+		ArrayList<ClusterPoint> clusters = builder.build();
+		builder = null;
+		long afterClusters = usedHeap();
+		report(clusters.size() + " clusters", afterClusters - afterStore, pointCount);
+
+		ClusterHierarchy clusterHierarchy = new ClusterHierarchy(store, rows, options, 256);
+		long afterHierarchy = usedHeap();
+		report("cluster hierarchy", afterHierarchy - afterClusters, pointCount);
+
+		ArrayList<InputPoint> points = dataset.createPoints(projection, BenchmarkMap.WIDTH, BenchmarkMap.HEIGHT, pointCount);
+		long afterPoints = usedHeap();
+		report("InputPoint objects and their list, for comparison", afterPoints - afterHierarchy, pointCount);
+
+		// keep everything reachable until the last measurement
+		if (store.size() + clusters.size() + clusterHierarchy.size() + points.size() < 0) {
+			throw new AssertionError();
+		}
+	}
+
+	private static void report(String label, long bytes, int pointCount) {
+		System.out.println(String.format("%-52s %8.1f MB %8.1f bytes/point", label, bytes / (1024.0 * 1024.0), bytes / (double) pointCount));
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// collect until the used heap stops shrinking
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			long current = runtime.totalMemory() - runtime.freeMemory();
+			if (current >= used) {
+				return current;
+			}
+			used = current;
+		}
+		return used;
+	}
+}
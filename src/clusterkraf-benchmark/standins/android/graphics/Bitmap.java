@@ -0,0 +1,10 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for android.graphics.Bitmap
+ */
+public class Bitmap {
+
+	public void recycle() {
+	}
+}
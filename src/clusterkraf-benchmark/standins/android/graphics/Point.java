@@ -0,0 +1,23 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for android.graphics.Point
+ */
+public class Point {
+
+	public int x;
+	public int y;
+
+	public Point() {
+	}
+
+	public Point(int x, int y) {
+		this.x = x;
+		this.y = y;
+	}
+
+	public void set(int x, int y) {
+		this.x = x;
+		this.y = y;
+	}
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Build, reporting Jelly Bean so that
+ * Choreographer is used
+ */
+public class Build {
+
+	public static class VERSION {
+		public static final int SDK_INT = VERSION_CODES.JELLY_BEAN;
+	}
+
+	public static class VERSION_CODES {
+		public static final int HONEYCOMB = 11;
+		public static final int JELLY_BEAN = 16;
+	}
+}
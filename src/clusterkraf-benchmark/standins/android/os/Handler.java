@@ -0,0 +1,27 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Handler. There is no message loop, so posted
+ * Runnables run immediately on the calling thread.
+ */
+public class Handler {
+
+	public Handler() {
+	}
+
+	public Handler(Looper looper) {
+	}
+
+	public boolean post(Runnable runnable) {
+		runnable.run();
+		return true;
+	}
+
+	public boolean postDelayed(Runnable runnable, long delayMillis) {
+		runnable.run();
+		return true;
+	}
+
+	public void removeCallbacks(Runnable runnable) {
+	}
+}
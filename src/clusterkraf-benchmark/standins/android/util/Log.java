@@ -0,0 +1,15 @@
+package android.util;
+
+/**
+ * JVM stand-in for android.util.Log. Errors are printed to standard error.
+ */
+public class Log {
+
+	public static int e(String tag, String msg, Throwable tr) {
+		System.err.println(tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,25 @@
+package android.view;
+
+/**
+ * JVM stand-in for android.view.Choreographer. There is no display, so posted
+ * callbacks run immediately on the calling thread.
+ */
+public class Choreographer {
+
+	private static final Choreographer INSTANCE = new Choreographer();
+
+	public static Choreographer getInstance() {
+		return INSTANCE;
+	}
+
+	public void postFrameCallback(FrameCallback callback) {
+		callback.doFrame(System.nanoTime());
+	}
+
+	public void removeFrameCallback(FrameCallback callback) {
+	}
+
+	public interface FrameCallback {
+		void doFrame(long frameTimeNanos);
+	}
+}
@@ -0,0 +1,9 @@
+package android.view.animation;
+
+/**
+ * JVM stand-in for android.view.animation.Interpolator
+ */
+public interface Interpolator {
+
+	float getInterpolation(float input);
+}
@@ -0,0 +1,7 @@
+package com.google.android.gms.maps;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.CameraUpdate
+ */
+public final class CameraUpdate {
+}
@@ -0,0 +1,22 @@
+package com.google.android.gms.maps;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.CameraUpdateFactory
+ */
+public final class CameraUpdateFactory {
+
+	public static CameraUpdate newLatLng(LatLng latLng) {
+		return new CameraUpdate();
+	}
+
+	public static CameraUpdate newLatLngZoom(LatLng latLng, float zoom) {
+		return new CameraUpdate();
+	}
+
+	public static CameraUpdate newLatLngBounds(LatLngBounds bounds, int padding) {
+		return new CameraUpdate();
+	}
+}
@@ -0,0 +1,71 @@
+package com.google.android.gms.maps;
+
+import android.view.View;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.GoogleMap, backed by a fixed
+ * Projection. The camera never moves and listeners are never called.
+ */
+public final class GoogleMap {
+
+	private final Projection projection;
+
+	public GoogleMap(Projection projection) {
+		this.projection = projection;
+	}
+
+	public Projection getProjection() {
+		return projection;
+	}
+
+	public CameraPosition getCameraPosition() {
+		return projection.getCameraPosition();
+	}
+
+	public Marker addMarker(MarkerOptions options) {
+		return new Marker(options.getPosition());
+	}
+
+	public void animateCamera(CameraUpdate update, int durationMs, CancelableCallback callback) {
+	}
+
+	public void setOnCameraChangeListener(OnCameraChangeListener listener) {
+	}
+
+	public void setOnMarkerClickListener(OnMarkerClickListener listener) {
+	}
+
+	public void setOnInfoWindowClickListener(OnInfoWindowClickListener listener) {
+	}
+
+	public void setInfoWindowAdapter(InfoWindowAdapter adapter) {
+	}
+
+	public interface CancelableCallback {
+		void onFinish();
+
+		void onCancel();
+	}
+
+	public interface OnCameraChangeListener {
+		void onCameraChange(CameraPosition position);
+	}
+
+	public interface OnMarkerClickListener {
+		boolean onMarkerClick(Marker marker);
+	}
+
+	public interface OnInfoWindowClickListener {
+		void onInfoWindowClick(Marker marker);
+	}
+
+	public interface InfoWindowAdapter {
+		View getInfoWindow(Marker marker);
+
+		View getInfoContents(Marker marker);
+	}
+}
@@ -0,0 +1,74 @@
+package com.google.android.gms.maps;
+
+import android.graphics.Point;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.VisibleRegion;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.Projection: an untilted,
+ * north-up Web Mercator viewport of 256 pixel tiles centered on a target
+ */
+public final class Projection {
+
+	private static final double TILE_SIZE = 256;
+
+	private final CameraPosition cameraPosition;
+	private final int width;
+	private final int height;
+	private final double worldSize;
+	private final double centerX;
+	private final double centerY;
+
+	public Projection(LatLng target, float zoom, int width, int height) {
+		this.cameraPosition = new CameraPosition(target, zoom, 0, 0);
+		this.width = width;
+		this.height = height;
+		this.worldSize = TILE_SIZE * Math.pow(2, zoom);
+		this.centerX = worldX(target.longitude);
+		this.centerY = worldY(target.latitude);
+	}
+
+	CameraPosition getCameraPosition() {
+		return cameraPosition;
+	}
+
+	public Point toScreenLocation(LatLng location) {
+		double dx = worldX(location.longitude) - centerX;
+		// take the short way around the world
+		if (dx > worldSize / 2) {
+			dx -= worldSize;
+		} else if (dx < -worldSize / 2) {
+			dx += worldSize;
+		}
+		double dy = worldY(location.latitude) - centerY;
+		return new Point((int) Math.round(width / 2.0 + dx), (int) Math.round(height / 2.0 + dy));
+	}
+
+	public LatLng fromScreenLocation(Point point) {
+		double x = (centerX + point.x - width / 2.0) / worldSize;
+		double y = (centerY + point.y - height / 2.0) / worldSize;
+		double longitude = x * 360 - 180;
+		double latitude = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+		return new LatLng(latitude, longitude);
+	}
+
+	public VisibleRegion getVisibleRegion() {
+		LatLng nearLeft = fromScreenLocation(new Point(0, height));
+		LatLng nearRight = fromScreenLocation(new Point(width, height));
+		LatLng farLeft = fromScreenLocation(new Point(0, 0));
+		LatLng farRight = fromScreenLocation(new Point(width, 0));
+		return new VisibleRegion(nearLeft, nearRight, farLeft, farRight, new LatLngBounds(nearLeft, farRight));
+	}
+
+	private double worldX(double longitude) {
+		return (longitude + 180) / 360 * worldSize;
+	}
+
+	private double worldY(double latitude) {
+		double sin = Math.sin(Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, latitude))));
+		return (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * worldSize;
+	}
+}
@@ -0,0 +1,7 @@
+package com.google.android.gms.maps.model;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.model.BitmapDescriptor
+ */
+public final class BitmapDescriptor {
+}
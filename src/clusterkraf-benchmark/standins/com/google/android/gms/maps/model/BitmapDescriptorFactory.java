@@ -0,0 +1,17 @@
+package com.google.android.gms.maps.model;
+
+import android.graphics.Bitmap;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.model.BitmapDescriptorFactory
+ */
+public final class BitmapDescriptorFactory {
+
+	public static BitmapDescriptor fromBitmap(Bitmap bitmap) {
+		return new BitmapDescriptor();
+	}
+
+	public static BitmapDescriptor fromResource(int resourceId) {
+		return new BitmapDescriptor();
+	}
+}
@@ -0,0 +1,19 @@
+package com.google.android.gms.maps.model;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.model.CameraPosition
+ */
+public final class CameraPosition {
+
+	public final LatLng target;
+	public final float zoom;
+	public final float tilt;
+	public final float bearing;
+
+	public CameraPosition(LatLng target, float zoom, float tilt, float bearing) {
+		this.target = target;
+		this.zoom = zoom;
+		this.tilt = tilt;
+		this.bearing = bearing;
+	}
+}
@@ -0,0 +1,21 @@
+package com.google.android.gms.maps.model;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.model.LatLng. Like the real
+ * class, latitude is clamped to [-90, 90] and longitude wrapped to
+ * [-180, 180).
+ */
+public final class LatLng {
+
+	public final double latitude;
+	public final double longitude;
+
+	public LatLng(double latitude, double longitude) {
+		if (-180 <= longitude && longitude < 180) {
+			this.longitude = longitude;
+		} else {
+			this.longitude = ((longitude - 180) % 360 + 360) % 360 - 180;
+		}
+		this.latitude = Math.max(-90, Math.min(90, latitude));
+	}
+}
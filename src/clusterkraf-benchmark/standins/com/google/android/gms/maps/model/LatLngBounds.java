@@ -0,0 +1,75 @@
+package com.google.android.gms.maps.model;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.model.LatLngBounds. Bounds
+ * whose southwest longitude is greater than their northeast longitude span
+ * the 180 meridian.
+ */
+public final class LatLngBounds {
+
+	public final LatLng southwest;
+	public final LatLng northeast;
+
+	public LatLngBounds(LatLng southwest, LatLng northeast) {
+		this.southwest = southwest;
+		this.northeast = northeast;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public boolean contains(LatLng point) {
+		return southwest.latitude <= point.latitude && point.latitude <= northeast.latitude && containsLongitude(point.longitude);
+	}
+
+	private boolean containsLongitude(double longitude) {
+		if (southwest.longitude <= northeast.longitude) {
+			return southwest.longitude <= longitude && longitude <= northeast.longitude;
+		}
+		return southwest.longitude <= longitude || longitude <= northeast.longitude;
+	}
+
+	public static final class Builder {
+
+		private double south = Double.POSITIVE_INFINITY;
+		private double north = Double.NEGATIVE_INFINITY;
+		private double west = Double.NaN;
+		private double east = Double.NaN;
+
+		public Builder include(LatLng point) {
+			south = Math.min(south, point.latitude);
+			north = Math.max(north, point.latitude);
+			if (Double.isNaN(west)) {
+				west = point.longitude;
+				east = point.longitude;
+			} else if (!contains(point.longitude)) {
+				// grow toward whichever side needs the shorter extension
+				if (distanceEastward(point.longitude, west) < distanceEastward(east, point.longitude)) {
+					west = point.longitude;
+				} else {
+					east = point.longitude;
+				}
+			}
+			return this;
+		}
+
+		public LatLngBounds build() {
+			if (Double.isNaN(west)) {
+				throw new IllegalStateException("no included points");
+			}
+			return new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+		}
+
+		private boolean contains(double longitude) {
+			if (west <= east) {
+				return west <= longitude && longitude <= east;
+			}
+			return west <= longitude || longitude <= east;
+		}
+
+		private static double distanceEastward(double from, double to) {
+			return ((to - from) % 360 + 360) % 360;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.google.android.gms.maps.model;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.model.Marker. It only
+ * remembers its position, so benchmarks measure the library rather than
+ * rendering.
+ */
+public final class Marker {
+
+	private LatLng position;
+
+	public Marker(LatLng position) {
+		this.position = position;
+	}
+
+	public LatLng getPosition() {
+		return position;
+	}
+
+	public void setPosition(LatLng position) {
+		this.position = position;
+	}
+
+	public void setIcon(BitmapDescriptor icon) {
+	}
+
+	public void setVisible(boolean visible) {
+	}
+
+	public void showInfoWindow() {
+	}
+
+	public void hideInfoWindow() {
+	}
+
+	public boolean isInfoWindowShown() {
+		return false;
+	}
+
+	public void remove() {
+	}
+}
@@ -0,0 +1,28 @@
+package com.google.android.gms.maps.model;
+
+/**
+ * JVM stand-in for com.google.android.gms.maps.model.MarkerOptions
+ */
+public final class MarkerOptions {
+
+	private LatLng position;
+	private BitmapDescriptor icon;
+
+	public MarkerOptions position(LatLng position) {
+		this.position = position;
+		return this;
+	}
+
+	public MarkerOptions icon(BitmapDescriptor icon) {
+		this.icon = icon;
+		return this;
+	}
+
+	public LatLng getPosition() {
+		return position;
+	}
+
+	public BitmapDescriptor getIcon() {
+		return icon;
+	}
+}
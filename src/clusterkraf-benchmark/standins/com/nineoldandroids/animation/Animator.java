@@ -0,0 +1,26 @@
+package com.nineoldandroids.animation;
+
+/**
+ * JVM stand-in for com.nineoldandroids.animation.Animator. Nothing animates.
+ */
+public abstract class Animator {
+
+	public void addListener(AnimatorListener listener) {
+	}
+
+	public void start() {
+	}
+
+	public void cancel() {
+	}
+
+	public interface AnimatorListener {
+		void onAnimationStart(Animator animation);
+
+		void onAnimationEnd(Animator animation);
+
+		void onAnimationCancel(Animator animation);
+
+		void onAnimationRepeat(Animator animation);
+	}
+}
@@ -0,0 +1,16 @@
+package com.nineoldandroids.animation;
+
+/**
+ * JVM stand-in for com.nineoldandroids.animation.ObjectAnimator
+ */
+public final class ObjectAnimator extends ValueAnimator {
+
+	public static ObjectAnimator ofFloat(Object target, String propertyName, float... values) {
+		return new ObjectAnimator();
+	}
+
+	@Override
+	public ObjectAnimator setDuration(long duration) {
+		return this;
+	}
+}
@@ -0,0 +1,23 @@
+package com.nineoldandroids.animation;
+
+import android.view.animation.Interpolator;
+
+/**
+ * JVM stand-in for com.nineoldandroids.animation.ValueAnimator
+ */
+public class ValueAnimator extends Animator {
+
+	public void addUpdateListener(AnimatorUpdateListener listener) {
+	}
+
+	public ValueAnimator setDuration(long duration) {
+		return this;
+	}
+
+	public void setInterpolator(Interpolator interpolator) {
+	}
+
+	public interface AnimatorUpdateListener {
+		void onAnimationUpdate(ValueAnimator animation);
+	}
+}
@@ -0,0 +1,237 @@
+package com.twotoasters.clusterkraf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.android.gms.maps.GoogleMap;
+
+/**
+ * Checks that a ClusterHierarchy written to a snapshot reads back with the
+ * same clusters, and that a damaged snapshot is rejected rather than read
+ */
+public class ClusterHierarchySnapshotTest {
+
+	private static final int POINT_COUNT = 200;
+	private static final double WORLD_PIXEL_SIZE = 256;
+
+	private InputPointStore store;
+	private int[] rows;
+	private Options options;
+	private ClusterHierarchy clusterHierarchy;
+
+	@Before
+	public void setUp() {
+		store = BenchmarkDataset.CLUSTERED.createStore(BenchmarkMap.projection(), BenchmarkMap.WIDTH, BenchmarkMap.HEIGHT, POINT_COUNT);
+		rows = BenchmarkDataset.allRows(store);
+		options = new Options();
+		options.setPrecomputeClusterHierarchy(true);
+		clusterHierarchy = new ClusterHierarchy(store, rows, options, WORLD_PIXEL_SIZE);
+	}
+
+	@Test
+	public void snapshotReadsBackTheSameClusters() throws IOException {
+		File file = writeSnapshot();
+		try {
+			ClusterHierarchy loaded = ClusterHierarchy.readSnapshot(file, store, rows, options, WORLD_PIXEL_SIZE);
+			assertNotNull(loaded);
+			assertSameClusters(clusterHierarchy, loaded);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void snapshotReadsBackItsPoints() throws IOException {
+		File file = writeSnapshot();
+		try {
+			ClusterHierarchy loaded = ClusterHierarchy.readSnapshot(file, (InputPointStore.TagLookup) null, options, WORLD_PIXEL_SIZE);
+			assertNotNull(loaded);
+			InputPointStore loadedStore = loaded.getStore();
+			assertEquals(store.size(), loadedStore.size());
+			for (int row = 0; row < store.size(); row++) {
+				assertEquals(store.getLatitude(row), loadedStore.getLatitude(row), 0);
+				assertEquals(store.getLongitude(row), loadedStore.getLongitude(row), 0);
+				assertEquals(store.getId(row), loadedStore.getId(row));
+			}
+			assertSameClusters(clusterHierarchy, loaded);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void snapshotOfOtherPointsIsRejected() throws IOException {
+		File file = writeSnapshot();
+		try {
+			InputPointStore movedStore = BenchmarkDataset.UNIFORM.createStore(BenchmarkMap.projection(), BenchmarkMap.WIDTH, BenchmarkMap.HEIGHT,
+					POINT_COUNT);
+			assertNull(ClusterHierarchy.readSnapshot(file, movedStore, rows, options, WORLD_PIXEL_SIZE));
+
+			Options otherOptions = new Options();
+			otherOptions.setClusterHierarchyMaxZoom(10);
+			assertNull(ClusterHierarchy.readSnapshot(file, store, rows, otherOptions, WORLD_PIXEL_SIZE));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void truncatedSnapshotIsRejected() throws IOException {
+		File file = writeSnapshot();
+		try {
+			long length = file.length();
+			for (long truncatedLength = length - 1; truncatedLength >= 0; truncatedLength -= 97) {
+				RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+				try {
+					randomAccessFile.setLength(truncatedLength);
+				} finally {
+					randomAccessFile.close();
+				}
+				assertNull(ClusterHierarchy.readSnapshot(file, store, rows, options, WORLD_PIXEL_SIZE));
+				assertNull(ClusterHierarchy.readSnapshot(file, (InputPointStore.TagLookup) null, options, WORLD_PIXEL_SIZE));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Overwrites each int of the snapshot in turn with a value out of range
+	 * for any count or index. Not every such change can be noticed, since
+	 * positions are not checksummed, but none may make reading or querying
+	 * the snapshot throw.
+	 */
+	@Test
+	public void corruptSnapshotNeverThrows() throws IOException {
+		File file = writeSnapshot();
+		try {
+			long length = file.length();
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				for (long offset = 0; offset + 4 <= length; offset += 4) {
+					randomAccessFile.seek(offset);
+					int original = randomAccessFile.readInt();
+					randomAccessFile.seek(offset);
+					randomAccessFile.writeInt(Integer.MAX_VALUE);
+
+					ClusterHierarchy loaded = ClusterHierarchy.readSnapshot(file, (InputPointStore.TagLookup) null, options, WORLD_PIXEL_SIZE);
+					if (loaded != null) {
+						for (int zoom = options.getClusterHierarchyMinZoom(); zoom <= options.getClusterHierarchyMaxZoom() + 1; zoom++) {
+							loaded.getClusters(null, zoom);
+						}
+					}
+
+					randomAccessFile.seek(offset);
+					randomAccessFile.writeInt(original);
+				}
+			} finally {
+				randomAccessFile.close();
+			}
+			assertNotNull(ClusterHierarchy.readSnapshot(file, store, rows, options, WORLD_PIXEL_SIZE));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void clusterkrafLoadsPointsFromSavedSnapshot() throws IOException, InterruptedException {
+		final BlockingQueue<ClusteringMetrics> measuredPasses = new LinkedBlockingQueue<ClusteringMetrics>();
+		final BlockingQueue<File> savedFiles = new LinkedBlockingQueue<File>();
+		options.setMetricsListener(new Clusterkraf.MetricsListener() {
+
+			@Override
+			public void onClusteringPassMeasured(ClusteringMetrics metrics) {
+				measuredPasses.add(metrics);
+			}
+
+			@Override
+			public void onMarkersUpdated(int markersAdded, int markersRemoved, long durationNanos) {
+			}
+
+			@Override
+			public void onTransitionFrame(long frameIntervalNanos, long updateNanos) {
+			}
+		});
+		GoogleMap map = new GoogleMap(BenchmarkMap.projection());
+		File file = File.createTempFile("clusterkraf", ".snapshot");
+		try {
+			Clusterkraf clusterkraf = new Clusterkraf(map, options, store);
+			assertEquals(POINT_COUNT, awaitPointCount(measuredPasses));
+			clusterkraf.saveClusterHierarchySnapshot(file, new Clusterkraf.SnapshotListener() {
+
+				@Override
+				public void onSnapshotSaved(File file) {
+					savedFiles.add(file);
+				}
+
+				@Override
+				public void onSnapshotFailed(File file, IOException e) {
+				}
+			});
+			assertNotNull(savedFiles.poll(10, TimeUnit.SECONDS));
+
+			new Clusterkraf(map, options, file, null);
+			assertEquals(POINT_COUNT, awaitPointCount(measuredPasses));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void missingSnapshotIsRejected() {
+		assertNull(ClusterHierarchy.readSnapshot(new File("no-such-snapshot"), store, rows, options, WORLD_PIXEL_SIZE));
+		assertNull(ClusterHierarchy.readSnapshot(null, store, rows, options, WORLD_PIXEL_SIZE));
+	}
+
+	/**
+	 * @return the number of points clustered by the next pass to finish
+	 */
+	private static int awaitPointCount(BlockingQueue<ClusteringMetrics> measuredPasses) throws InterruptedException {
+		ClusteringMetrics metrics = measuredPasses.poll(10, TimeUnit.SECONDS);
+		assertNotNull("no clustering pass finished", metrics);
+		return metrics.getPointCount();
+	}
+
+	private File writeSnapshot() throws IOException {
+		File file = File.createTempFile("clusterkraf", ".snapshot");
+		clusterHierarchy.writeSnapshot(file, rows);
+		return file;
+	}
+
+	/**
+	 * Compares the clusters of every zoom level by size and position of their
+	 * points
+	 */
+	private static void assertSameClusters(ClusterHierarchy expected, ClusterHierarchy actual) {
+		for (int zoom = 0; zoom <= 21; zoom++) {
+			ArrayList<ClusterPoint> expectedClusters = expected.getClusters(null, zoom);
+			ArrayList<ClusterPoint> actualClusters = actual.getClusters(null, zoom);
+			assertEquals(expectedClusters.size(), actualClusters.size());
+			for (int i = 0; i < expectedClusters.size(); i++) {
+				ClusterPoint expectedCluster = expectedClusters.get(i);
+				ClusterPoint actualCluster = actualClusters.get(i);
+				assertEquals(expectedCluster.size(), actualCluster.size());
+				for (int offset = 0; offset < expectedCluster.size(); offset++) {
+					InputPointStore expectedStore = expectedCluster.getStore();
+					InputPointStore actualStore = actualCluster.getStore();
+					int expectedRow = expectedCluster.getRowAtOffset(offset);
+					int actualRow = actualCluster.getRowAtOffset(offset);
+					assertEquals(expectedStore.getLatitude(expectedRow), actualStore.getLatitude(actualRow), 0);
+					assertEquals(expectedStore.getLongitude(expectedRow), actualStore.getLongitude(actualRow), 0);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.twotoasters.clusterkraf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Checks that InputPoint objects removed from a Clusterkraf are not shown
+ * again by a later change to the filter. Clusterkraf applies filter changes
+ * in place without a clustering pass unless it precomputes its clusters, so
+ * the passes measured here query the cluster hierarchy with the filtered
+ * points hidden.
+ */
+public class ClusterkrafFilterTest {
+
+	private static final int POINT_COUNT = 100;
+	private static final int REMOVED_COUNT = 10;
+
+	private final BlockingQueue<ClusteringMetrics> measuredPasses = new LinkedBlockingQueue<ClusteringMetrics>();
+
+	private ArrayList<InputPoint> points;
+
+	@Before
+	public void setUp() {
+		points = new ArrayList<InputPoint>(POINT_COUNT);
+		for (int i = 0; i < POINT_COUNT; i++) {
+			InputPoint point = new InputPoint(new LatLng(48.0 + i * 0.01, 8.0 + i * 0.01));
+			point.setTime(i);
+			points.add(point);
+		}
+	}
+
+	@Test
+	public void filterIndexDoesNotShowRemovedPoints() {
+		InputPointStore store = new InputPointStore();
+		int[] rows = new int[points.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = store.add(points.get(i));
+		}
+		PointFilterIndex filterIndex = new PointFilterIndex(store, rows);
+		RowList removedRows = new RowList();
+		for (int i = 0; i < REMOVED_COUNT; i++) {
+			removedRows.add(rows[i]);
+		}
+		filterIndex.remove(removedRows);
+
+		RowList added = new RowList();
+		RowList removed = new RowList();
+		filterIndex.setFilter(POINT_COUNT / 2, POINT_COUNT, -1L, added, removed);
+		assertTrue(added.isEmpty());
+		assertEquals(POINT_COUNT / 2 - REMOVED_COUNT, removed.size());
+
+		added.clear();
+		removed.clear();
+		filterIndex.clearFilter(added, removed);
+		assertEquals(POINT_COUNT / 2 - REMOVED_COUNT, added.size());
+		for (int i = 0; i < added.size(); i++) {
+			assertTrue(added.get(i) >= REMOVED_COUNT);
+		}
+		assertEquals(POINT_COUNT - REMOVED_COUNT, filterIndex.getFilteredPoints().size());
+	}
+
+	@Test
+	public void removeAllThenSetFilterDoesNotReAddPoints() throws InterruptedException {
+		Options options = new Options();
+		options.setPrecomputeClusterHierarchy(true);
+		options.setMetricsListener(new Clusterkraf.MetricsListener() {
+
+			@Override
+			public void onClusteringPassMeasured(ClusteringMetrics metrics) {
+				measuredPasses.add(metrics);
+			}
+
+			@Override
+			public void onMarkersUpdated(int markersAdded, int markersRemoved, long durationNanos) {
+			}
+
+			@Override
+			public void onTransitionFrame(long frameIntervalNanos, long updateNanos) {
+			}
+		});
+		Clusterkraf clusterkraf = new Clusterkraf(new GoogleMap(BenchmarkMap.projection()), options, new ArrayList<InputPoint>());
+		assertEquals(0, awaitPointCount());
+
+		clusterkraf.setFilterablePoints(points);
+		assertEquals(POINT_COUNT, awaitPointCount());
+
+		clusterkraf.removeAll(new ArrayList<InputPoint>(points.subList(0, REMOVED_COUNT)));
+		assertEquals(POINT_COUNT - REMOVED_COUNT, awaitPointCount());
+
+		clusterkraf.setFilter(POINT_COUNT / 2, POINT_COUNT, -1L);
+		assertEquals(POINT_COUNT / 2, awaitPointCount());
+
+		clusterkraf.clearFilter();
+		assertEquals(POINT_COUNT - REMOVED_COUNT, awaitPointCount());
+	}
+
+	/**
+	 * @return the number of points clustered by the next pass to finish,
+	 *         having checked that its clusters hold exactly that many, as
+	 *         every point is in view
+	 */
+	private int awaitPointCount() throws InterruptedException {
+		ClusteringMetrics metrics = measuredPasses.poll(10, TimeUnit.SECONDS);
+		assertNotNull("no clustering pass finished", metrics);
+		assertEquals(metrics.getPointCount(), metrics.getRelevantPointCount());
+		return metrics.getPointCount();
+	}
+}
@@ -12,13 +12,12 @@ class AnimatedTransition {
 	private final ClusterPoint destinationClusterPoint;
 	private final boolean spans180Meridian;
 
-	AnimatedTransition(Projection projection, ClusterPoint originClusterPoint, InputPoint firstRelevantInputPointFromOriginClusterPoint,
-			ClusterPoint destinationClusterPoint) {
-		originClusterPoint.clearScreenPosition();
+	AnimatedTransition(Projection projection, ClusterPoint originClusterPoint, int firstRelevantRowFromOriginClusterPoint, ClusterPoint destinationClusterPoint) {
+		originClusterPoint.setScreenPosition(null);
 		originClusterPoint.buildScreenPosition(projection);
 		this.originClusterPoint = originClusterPoint;
 
-		this.originClusterRelevantInputPoints = new ClusterPoint(firstRelevantInputPointFromOriginClusterPoint, projection, true,
+		this.originClusterRelevantInputPoints = new ClusterPoint(originClusterPoint.getStore(), firstRelevantRowFromOriginClusterPoint, projection, true,
 				originClusterPoint.getMapPosition());
 		this.originClusterRelevantInputPoints.setScreenPosition(originClusterPoint.getScreenPosition());
 
@@ -27,12 +26,12 @@ class AnimatedTransition {
 		this.spans180Meridian = Math.abs((originClusterPoint.getMapPosition().longitude) - (destinationClusterPoint.getMapPosition().longitude)) > 180;
 	}
 
-	boolean originContains(InputPoint point) {
-		return originClusterPoint != null && originClusterPoint.containsInputPoint(point);
+	boolean originContains(int row) {
+		return originClusterPoint != null && originClusterPoint.containsRow(row);
 	}
 
-	boolean destinationContains(InputPoint point) {
-		return destinationClusterPoint != null && destinationClusterPoint.containsInputPoint(point);
+	boolean destinationContains(int row) {
+		return destinationClusterPoint != null && destinationClusterPoint.containsRow(row);
 	}
 
 	ClusterPoint getOriginClusterRelevantInputPoints() {
@@ -43,8 +42,8 @@ class AnimatedTransition {
 		return destinationClusterPoint;
 	}
 
-	void addOriginClusterRelevantInputPoint(InputPoint previousInputPoint) {
-		originClusterRelevantInputPoints.add(previousInputPoint);
+	void addOriginClusterRelevantRow(int previousRow) {
+		originClusterRelevantInputPoints.add(previousRow);
 	}
 
 	/**
@@ -40,6 +40,14 @@ abstract class BasePoint {
 		this.screenPosition = screenPosition;
 	}
 
+	void setScreenPosition(int x, int y) {
+		if (screenPosition == null) {
+			screenPosition = new Point(x, y);
+		} else {
+			screenPosition.set(x, y);
+		}
+	}
+
 	double getPixelDistanceFrom(BasePoint otherPoint) {
 		return Distance.from(screenPosition, otherPoint.screenPosition);
 	}
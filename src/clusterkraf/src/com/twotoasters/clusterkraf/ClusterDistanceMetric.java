@@ -0,0 +1,173 @@
+package com.twotoasters.clusterkraf;
+
+import android.graphics.Point;
+
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * Decides whether an InputPoint is close enough to a cluster to join it.
+ * 
+ * Use one of the provided metrics, or extend this class. Implementations are
+ * called for every candidate cluster of every point in a clustering pass, so
+ * they should compare against a threshold rather than compute a distance
+ * where they can, e.g. comparing squared distances to avoid a square root.
+ */
+public abstract class ClusterDistanceMetric {
+
+	/**
+	 * Straight-line screen distance, compared squared. This is the default.
+	 */
+	public static final ClusterDistanceMetric EUCLIDEAN = new ClusterDistanceMetric() {
+
+		@Override
+		public boolean isWithin(Point a, LatLng aPosition, Point b, LatLng bPosition, int pixelDistanceToJoinCluster) {
+			if (a == null || b == null) {
+				return true;
+			}
+			return isWithin(a.x, a.y, 0, 0, b.x, b.y, 0, 0, pixelDistanceToJoinCluster);
+		}
+
+		@Override
+		boolean isWithin(int ax, int ay, double aLatitude, double aLongitude, int bx, int by, double bLatitude, double bLongitude,
+				int pixelDistanceToJoinCluster) {
+			long dx = ax - bx;
+			long dy = ay - by;
+			return dx * dx + dy * dy <= (long) pixelDistanceToJoinCluster * pixelDistanceToJoinCluster;
+		}
+	};
+
+	/**
+	 * Screen distance measured as the larger of the horizontal and vertical
+	 * distances, so points cluster within a square box rather than a circle
+	 */
+	public static final ClusterDistanceMetric CHEBYSHEV = new ClusterDistanceMetric() {
+
+		@Override
+		public boolean isWithin(Point a, LatLng aPosition, Point b, LatLng bPosition, int pixelDistanceToJoinCluster) {
+			if (a == null || b == null) {
+				return true;
+			}
+			return isWithin(a.x, a.y, 0, 0, b.x, b.y, 0, 0, pixelDistanceToJoinCluster);
+		}
+
+		@Override
+		boolean isWithin(int ax, int ay, double aLatitude, double aLongitude, int bx, int by, double bLatitude, double bLongitude,
+				int pixelDistanceToJoinCluster) {
+			return Math.abs(ax - bx) <= pixelDistanceToJoinCluster && Math.abs(ay - by) <= pixelDistanceToJoinCluster;
+		}
+	};
+
+	/**
+	 * @param meters
+	 * @return a metric that clusters points within the given distance of each
+	 *         other on the ground, regardless of zoom, ignoring the pixel
+	 *         distance set on Options
+	 */
+	public static ClusterDistanceMetric geodesic(double meters) {
+		return new Geodesic(meters);
+	}
+
+	/**
+	 * @param a
+	 *            the screen position of the cluster, or null if unknown
+	 * @param aPosition
+	 *            the map position of the cluster
+	 * @param b
+	 *            the screen position of the point, or null if unknown
+	 * @param bPosition
+	 *            the map position of the point
+	 * @param pixelDistanceToJoinCluster
+	 *            the pixel distance set on Options
+	 * @return true if the point is close enough to the cluster to join it
+	 */
+	public abstract boolean isWithin(Point a, LatLng aPosition, Point b, LatLng bPosition, int pixelDistanceToJoinCluster);
+
+	/**
+	 * Clustering only compares points with clusters this many pixels or fewer
+	 * away on each axis, so implementations measuring something other than
+	 * screen distance must override this.
+	 * 
+	 * @param projection
+	 * @param bounds
+	 *            the region being clustered
+	 * @param pixelDistanceToJoinCluster
+	 *            the pixel distance set on Options
+	 * @return the largest screen distance on either axis at which isWithin
+	 *         could return true within the bounds
+	 */
+	public int getMaxPixelDistance(Projection projection, LatLngBounds bounds, int pixelDistanceToJoinCluster) {
+		return pixelDistanceToJoinCluster;
+	}
+
+	/**
+	 * The same test on the primitive coordinates a clustering pass keeps for
+	 * its points. The provided metrics answer it without allocating; other
+	 * metrics are handed Point and LatLng objects built from the coordinates.
+	 */
+	boolean isWithin(int ax, int ay, double aLatitude, double aLongitude, int bx, int by, double bLatitude, double bLongitude,
+			int pixelDistanceToJoinCluster) {
+		return isWithin(new Point(ax, ay), new LatLng(aLatitude, aLongitude), new Point(bx, by), new LatLng(bLatitude, bLongitude),
+				pixelDistanceToJoinCluster);
+	}
+
+	private static class Geodesic extends ClusterDistanceMetric {
+
+		private static final double EARTH_RADIUS_METERS = 6371008.8;
+		private static final double METERS_PER_DEGREE_AT_EQUATOR = 2 * Math.PI * EARTH_RADIUS_METERS / 360;
+		private static final double MAX_LATITUDE = 85;
+
+		private final double meters;
+
+		/**
+		 * the haversine of the angle subtended by meters, so comparisons need
+		 * no inverse trigonometry
+		 */
+		private final double maxHaversine;
+
+		private Geodesic(double meters) {
+			this.meters = meters;
+			double halfAngle = meters / EARTH_RADIUS_METERS / 2;
+			double sin = Math.sin(Math.min(halfAngle, Math.PI / 2));
+			this.maxHaversine = sin * sin;
+		}
+
+		@Override
+		public boolean isWithin(Point a, LatLng aPosition, Point b, LatLng bPosition, int pixelDistanceToJoinCluster) {
+			return isWithin(0, 0, aPosition.latitude, aPosition.longitude, 0, 0, bPosition.latitude, bPosition.longitude, pixelDistanceToJoinCluster);
+		}
+
+		@Override
+		boolean isWithin(int ax, int ay, double aLatitude, double aLongitude, int bx, int by, double bLatitude, double bLongitude,
+				int pixelDistanceToJoinCluster) {
+			double latitudeA = Math.toRadians(aLatitude);
+			double latitudeB = Math.toRadians(bLatitude);
+			double sinHalfLatitude = Math.sin((latitudeB - latitudeA) / 2);
+			double sinHalfLongitude = Math.sin(Math.toRadians(bLongitude - aLongitude) / 2);
+			double haversine = sinHalfLatitude * sinHalfLatitude + Math.cos(latitudeA) * Math.cos(latitudeB) * sinHalfLongitude * sinHalfLongitude;
+			return haversine <= maxHaversine;
+		}
+
+		/**
+		 * Mercator stretches distances the most at the latitude nearest a
+		 * pole, so measure how many pixels the distance spans there
+		 */
+		@Override
+		public int getMaxPixelDistance(Projection projection, LatLngBounds bounds, int pixelDistanceToJoinCluster) {
+			if (projection != null && bounds != null) {
+				double latitude = Math.min(MAX_LATITUDE, Math.max(Math.abs(bounds.northeast.latitude), Math.abs(bounds.southwest.latitude)));
+				double longitudeSpan = meters / (METERS_PER_DEGREE_AT_EQUATOR * Math.cos(Math.toRadians(latitude)));
+				double longitude = bounds.southwest.longitude;
+				Point a = projection.toScreenLocation(new LatLng(latitude, longitude));
+				Point b = projection.toScreenLocation(new LatLng(latitude, longitude + Math.min(longitudeSpan, 180)));
+				if (a != null && b != null) {
+					// leave room for rounding and the curvature of the earth
+					return (int) Math.ceil(Math.hypot(a.x - b.x, a.y - b.y) * 1.1) + 1;
+				}
+			}
+			return pixelDistanceToJoinCluster;
+		}
+	}
+
+}
@@ -0,0 +1,964 @@
+package com.twotoasters.clusterkraf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.twotoasters.clusterkraf.util.Mercator;
+
+/**
+ * Clusters a set of InputPointStore rows once for every integer zoom level
+ * in Web Mercator world coordinates, so that the clusters for a camera
+ * position can be answered with a range query instead of a fresh clustering
+ * pass.
+ *
+ * Each zoom level is built by greedily clustering the nodes of the level below
+ * it, the same first-fit rule ClustersBuilder uses. The rows are stored so
+ * that every node at every level covers a contiguous range of them, and the
+ * first row in a node's range is the one whose position the node takes.
+ */
+class ClusterHierarchy {
+
+	private static final int KD_NODE_SIZE = 64;
+
+	private static final int SNAPSHOT_MAGIC = 0x434b4831; // "CKH1"
+	private static final int SNAPSHOT_VERSION = 2;
+
+	/**
+	 * the bytes each node of a Level takes in a snapshot: its id, x, y, start
+	 * and count
+	 */
+	private static final int SNAPSHOT_NODE_BYTES = 4 + 8 + 8 + 4 + 4;
+
+	/**
+	 * how far the world size a snapshot was built for may be from the current
+	 * one before the snapshot is considered stale
+	 */
+	private static final double SNAPSHOT_WORLD_SIZE_TOLERANCE = 0.01;
+
+	private final int minZoom;
+	private final int maxZoom;
+	private final int pixelDistanceToJoinCluster;
+	private final double worldPixelSizeAtZoomZero;
+
+	private final InputPointStore store;
+
+	/**
+	 * rows of the store ordered so that each node's members are contiguous
+	 */
+	private final int[] rows;
+
+	/**
+	 * one Level per zoom from minZoom to maxZoom, plus a final Level of
+	 * unclustered points used beyond maxZoom
+	 */
+	private final Level[] levels;
+
+	/**
+	 * the position in rows of each row, or -1 for rows not in the hierarchy,
+	 * indexed by row; made the first time a position is asked for
+	 */
+	private int[] positions;
+
+	/**
+	 * @param store
+	 * @param inputRows
+	 *            the rows of the store to cluster
+	 * @param options
+	 * @param worldPixelSizeAtZoomZero
+	 */
+	ClusterHierarchy(InputPointStore store, int[] inputRows, Options options, double worldPixelSizeAtZoomZero) {
+		this.minZoom = options.getClusterHierarchyMinZoom();
+		this.maxZoom = Math.max(minZoom, options.getClusterHierarchyMaxZoom());
+		this.pixelDistanceToJoinCluster = options.getPixelDistanceToJoinCluster();
+		this.worldPixelSizeAtZoomZero = worldPixelSizeAtZoomZero;
+
+		this.store = store;
+		InputPointStore.Columns columns = store.getColumns();
+		int pointCount = inputRows.length;
+
+		int levelCount = maxZoom - minZoom + 2;
+		double[][] xs = new double[levelCount][];
+		double[][] ys = new double[levelCount][];
+		int[][] parents = new int[levelCount][];
+
+		int leafLevel = levelCount - 1;
+		xs[leafLevel] = new double[pointCount];
+		ys[leafLevel] = new double[pointCount];
+		for (int i = 0; i < pointCount; i++) {
+			xs[leafLevel][i] = Mercator.xFromLongitude(columns.longitudes[inputRows[i]]);
+			ys[leafLevel][i] = Mercator.yFromLatitude(columns.latitudes[inputRows[i]]);
+		}
+
+		double pixelSize = worldPixelSizeAtZoomZero > 0 ? worldPixelSizeAtZoomZero : 256;
+		for (int level = leafLevel - 1; level >= 0; level--) {
+			double radius = pixelDistanceToJoinCluster / (pixelSize * Math.pow(2, minZoom + level));
+			clusterLevel(xs, ys, parents, level, radius);
+		}
+
+		// count the points under each node, bottom up
+		int[][] counts = new int[levelCount][];
+		counts[leafLevel] = new int[pointCount];
+		for (int i = 0; i < pointCount; i++) {
+			counts[leafLevel][i] = 1;
+		}
+		for (int level = leafLevel; level > 0; level--) {
+			counts[level - 1] = new int[xs[level - 1].length];
+			for (int i = 0; i < parents[level].length; i++) {
+				counts[level - 1][parents[level][i]] += counts[level][i];
+			}
+		}
+
+		// hand each node a range of the ordered points, top down. children
+		// are visited in index order, so each node's seed child comes first.
+		int[][] starts = new int[levelCount][];
+		starts[0] = new int[xs[0].length];
+		for (int i = 1; i < starts[0].length; i++) {
+			starts[0][i] = starts[0][i - 1] + counts[0][i - 1];
+		}
+		for (int level = 1; level < levelCount; level++) {
+			starts[level] = new int[xs[level].length];
+			int[] used = new int[xs[level - 1].length];
+			for (int i = 0; i < starts[level].length; i++) {
+				int parent = parents[level][i];
+				starts[level][i] = starts[level - 1][parent] + used[parent];
+				used[parent] += counts[level][i];
+			}
+		}
+
+		this.rows = new int[pointCount];
+		for (int i = 0; i < pointCount; i++) {
+			rows[starts[leafLevel][i]] = inputRows[i];
+		}
+
+		this.levels = new Level[levelCount];
+		for (int level = 0; level < levelCount; level++) {
+			levels[level] = Level.build(xs[level], ys[level], starts[level], counts[level], options.getClusterPosition());
+		}
+	}
+
+	private ClusterHierarchy(int minZoom, int maxZoom, int pixelDistanceToJoinCluster, double worldPixelSizeAtZoomZero, InputPointStore store,
+			int[] rows, Level[] levels) {
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.pixelDistanceToJoinCluster = pixelDistanceToJoinCluster;
+		this.worldPixelSizeAtZoomZero = worldPixelSizeAtZoomZero;
+		this.store = store;
+		this.rows = rows;
+		this.levels = levels;
+	}
+
+	/**
+	 * Write the hierarchy to a file that readSnapshot can load without
+	 * clustering again. The position, id and weight of every point are
+	 * written in the order of inputRows, followed by the order the hierarchy
+	 * keeps them in, so the snapshot can be checked against the points it is
+	 * loaded for, or loaded without them.
+	 *
+	 * @param file
+	 * @param inputRows
+	 *            the rows the hierarchy was built from
+	 * @throws IOException
+	 */
+	synchronized void writeSnapshot(File file, int[] inputRows) throws IOException {
+		InputPointStore.Columns columns = store.getColumns();
+		int[] indexes = new int[store.size()];
+		Arrays.fill(indexes, -1);
+		for (int i = 0; i < inputRows.length; i++) {
+			indexes[inputRows[i]] = i;
+		}
+
+		// write to a temporary file first so a failed write never leaves a
+		// truncated snapshot in place
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(minZoom);
+			out.writeInt(maxZoom);
+			out.writeInt(pixelDistanceToJoinCluster);
+			out.writeDouble(worldPixelSizeAtZoomZero);
+			out.writeInt(inputRows.length);
+			out.writeBoolean(columns.weights != null);
+
+			for (int row : inputRows) {
+				out.writeDouble(columns.latitudes[row]);
+			}
+			for (int row : inputRows) {
+				out.writeDouble(columns.longitudes[row]);
+			}
+			for (int row : inputRows) {
+				out.writeInt(columns.ids[row]);
+			}
+			if (columns.weights != null) {
+				for (int row : inputRows) {
+					out.writeDouble(columns.weights[row]);
+				}
+			}
+
+			if (rows.length != inputRows.length) {
+				throw new IOException("the hierarchy was not built from the given rows");
+			}
+			for (int row : rows) {
+				int index = row < indexes.length ? indexes[row] : -1;
+				if (index < 0) {
+					throw new IOException("the hierarchy was not built from the given rows");
+				}
+				out.writeInt(index);
+			}
+
+			out.writeInt(levels.length);
+			for (Level level : levels) {
+				level.write(out);
+			}
+		} finally {
+			out.close();
+		}
+		if (file.exists() && file.delete() == false || temporaryFile.renameTo(file) == false) {
+			temporaryFile.delete();
+			throw new IOException("could not replace " + file);
+		}
+	}
+
+	/**
+	 * Memory-map a file written by writeSnapshot and load the hierarchy from
+	 * it for rows of a store, checking that they are the points it was saved
+	 * for. The levels are read from the mapped file in place rather than
+	 * copied onto the heap. This reads the whole file, so call it off the main
+	 * thread.
+	 *
+	 * @param file
+	 * @param store
+	 * @param inputRows
+	 *            the same points, in the same order, that were passed to
+	 *            writeSnapshot
+	 * @param options
+	 * @param worldPixelSizeAtZoomZero
+	 *            the current world size, or 0 if it could not be measured
+	 * @return the hierarchy, or null if the file is missing, unreadable, or
+	 *         was written for different points or options
+	 */
+	static ClusterHierarchy readSnapshot(File file, InputPointStore store, int[] inputRows, Options options, double worldPixelSizeAtZoomZero) {
+		return readSnapshot(file, store, inputRows, null, options, worldPixelSizeAtZoomZero);
+	}
+
+	/**
+	 * Memory-map a file written by writeSnapshot and load the hierarchy from
+	 * it together with its points, which are copied into a new store once;
+	 * every row of the store is in the hierarchy. The levels are read from the
+	 * mapped file in place. This reads the whole file, so call it off the main
+	 * thread.
+	 *
+	 * @param file
+	 * @param tagLookup
+	 *            the TagLookup of the new store, or null
+	 * @param options
+	 * @param worldPixelSizeAtZoomZero
+	 *            the current world size, or 0 if it could not be measured
+	 * @return the hierarchy, or null if the file is missing, unreadable, or
+	 *         was written for different options
+	 */
+	static ClusterHierarchy readSnapshot(File file, InputPointStore.TagLookup tagLookup, Options options, double worldPixelSizeAtZoomZero) {
+		return readSnapshot(file, null, null, tagLookup, options, worldPixelSizeAtZoomZero);
+	}
+
+	/**
+	 * @param store
+	 *            the store holding inputRows, or null to load the points into
+	 *            a new store
+	 */
+	private static ClusterHierarchy readSnapshot(File file, InputPointStore store, int[] inputRows, InputPointStore.TagLookup tagLookup,
+			Options options, double worldPixelSizeAtZoomZero) {
+		if (file == null || file.isFile() == false) {
+			return null;
+		}
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "r");
+			FileChannel channel = randomAccessFile.getChannel();
+			// the mapping stays valid once the file is closed
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.BIG_ENDIAN);
+
+			if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+				return null;
+			}
+			int minZoom = buffer.getInt();
+			int maxZoom = buffer.getInt();
+			int pixelDistanceToJoinCluster = buffer.getInt();
+			double snapshotWorldPixelSize = buffer.getDouble();
+			int pointCount = buffer.getInt();
+			boolean weighted = buffer.get() != 0;
+			if (minZoom != options.getClusterHierarchyMinZoom() || maxZoom != Math.max(minZoom, options.getClusterHierarchyMaxZoom())
+					|| pixelDistanceToJoinCluster != options.getPixelDistanceToJoinCluster()) {
+				return null;
+			}
+			if (worldPixelSizeAtZoomZero > 0
+					&& Math.abs(snapshotWorldPixelSize - worldPixelSizeAtZoomZero) > worldPixelSizeAtZoomZero * SNAPSHOT_WORLD_SIZE_TOLERANCE) {
+				return null;
+			}
+			if (pointCount < 0 || pointCount > buffer.remaining() / (weighted ? 32 : 24)) {
+				return null;
+			}
+
+			DoubleBuffer latitudes = slice(buffer, pointCount * 8).asDoubleBuffer();
+			DoubleBuffer longitudes = slice(buffer, pointCount * 8).asDoubleBuffer();
+			IntBuffer ids = slice(buffer, pointCount * 4).asIntBuffer();
+			DoubleBuffer weights = weighted ? slice(buffer, pointCount * 8).asDoubleBuffer() : null;
+			if (store == null) {
+				store = readStore(latitudes, longitudes, ids, weights, tagLookup);
+				if (store == null) {
+					return null;
+				}
+				inputRows = new int[pointCount];
+				for (int i = 0; i < pointCount; i++) {
+					inputRows[i] = i;
+				}
+			} else if (isSnapshotOf(latitudes, longitudes, ids, weights, store, inputRows) == false) {
+				return null;
+			}
+
+			// every count and index read from here on is checked before it
+			// is used
+			IntBuffer order = slice(buffer, pointCount * 4).asIntBuffer();
+			int[] rows = new int[pointCount];
+			BitSet seen = new BitSet(pointCount);
+			for (int i = 0; i < pointCount; i++) {
+				int index = order.get(i);
+				if (index < 0 || index >= pointCount || seen.get(index)) {
+					return null;
+				}
+				seen.set(index);
+				rows[i] = inputRows[index];
+			}
+
+			int levelCount = buffer.getInt();
+			if (levelCount != maxZoom - minZoom + 2) {
+				return null;
+			}
+			Level[] levels = new Level[levelCount];
+			for (int i = 0; i < levels.length; i++) {
+				levels[i] = Level.read(buffer, pointCount, options.getClusterPosition());
+				if (levels[i] == null) {
+					return null;
+				}
+			}
+			if (buffer.hasRemaining()) {
+				return null;
+			}
+			return new ClusterHierarchy(minZoom, maxZoom, pixelDistanceToJoinCluster, snapshotWorldPixelSize, store, rows, levels);
+		} catch (IOException e) {
+			return null;
+		} catch (BufferUnderflowException e) {
+			// truncated
+			return null;
+		} catch (IndexOutOfBoundsException e) {
+			// corrupt
+			return null;
+		} catch (IllegalArgumentException e) {
+			// corrupt
+			return null;
+		} finally {
+			if (randomAccessFile != null) {
+				try {
+					randomAccessFile.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a store holding the points of a snapshot, or null if any
+	 *         position is outside the range LatLng allows
+	 */
+	private static InputPointStore readStore(DoubleBuffer latitudes, DoubleBuffer longitudes, IntBuffer ids, DoubleBuffer weights,
+			InputPointStore.TagLookup tagLookup) {
+		int pointCount = ids.remaining();
+		double[] latitudeColumn = new double[pointCount];
+		double[] longitudeColumn = new double[pointCount];
+		int[] idColumn = new int[pointCount];
+		double[] weightColumn = weights != null ? new double[pointCount] : null;
+		latitudes.get(latitudeColumn);
+		longitudes.get(longitudeColumn);
+		ids.get(idColumn);
+		if (weights != null) {
+			weights.get(weightColumn);
+		}
+		for (int i = 0; i < pointCount; i++) {
+			if ((latitudeColumn[i] >= -90 && latitudeColumn[i] <= 90 && longitudeColumn[i] >= -180 && longitudeColumn[i] < 180) == false) {
+				return null;
+			}
+		}
+		InputPointStore store = new InputPointStore(latitudeColumn, longitudeColumn, idColumn, weightColumn);
+		store.setTagLookup(tagLookup);
+		return store;
+	}
+
+	/**
+	 * @return true if the rows of the store have the positions, ids and
+	 *         weights of a snapshot's points, in order, otherwise false
+	 */
+	private static boolean isSnapshotOf(DoubleBuffer latitudes, DoubleBuffer longitudes, IntBuffer ids, DoubleBuffer weights,
+			InputPointStore store, int[] inputRows) {
+		if (inputRows.length != ids.remaining()) {
+			return false;
+		}
+		InputPointStore.Columns columns = store.getColumns();
+		for (int i = 0; i < inputRows.length; i++) {
+			int row = inputRows[i];
+			if (columns.latitudes[row] != latitudes.get(i) || columns.longitudes[row] != longitudes.get(i) || columns.ids[row] != ids.get(i)
+					|| columns.getWeight(row) != (weights != null ? weights.get(i) : 1)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a buffer over the next length bytes, which are then skipped
+	 * @throws BufferUnderflowException
+	 *             if fewer remain
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int length) {
+		if (length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		slice.order(buffer.order());
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * Greedily cluster the nodes of level + 1 into level, recording each
+	 * child's parent
+	 */
+	private static void clusterLevel(double[][] xs, double[][] ys, int[][] parents, int level, double radius) {
+		double[] childXs = xs[level + 1];
+		double[] childYs = ys[level + 1];
+		int childCount = childXs.length;
+		int[] childParents = new int[childCount];
+
+		double cellSize = Math.max(radius, 1.0 / (1 << 30));
+		double radiusSquared = radius * radius;
+		SeedCells cells = new SeedCells();
+		double[] seedXs = new double[16];
+		double[] seedYs = new double[16];
+		int seedCount = 0;
+
+		for (int child = 0; child < childCount; child++) {
+			double x = childXs[child];
+			double y = childYs[child];
+			int cellX = (int) Math.floor(x / cellSize);
+			int cellY = (int) Math.floor(y / cellSize);
+
+			int parent = -1;
+			for (int cx = cellX - 1; cx <= cellX + 1; cx++) {
+				for (int cy = cellY - 1; cy <= cellY + 1; cy++) {
+					for (int candidate = cells.first(keyOf(cx, cy)); candidate >= 0; candidate = cells.next(candidate)) {
+						if (parent >= 0 && candidate > parent) {
+							break;
+						}
+						double dx = seedXs[candidate] - x;
+						double dy = seedYs[candidate] - y;
+						if (dx * dx + dy * dy <= radiusSquared) {
+							parent = candidate;
+							break;
+						}
+					}
+				}
+			}
+
+			if (parent < 0) {
+				parent = seedCount++;
+				if (parent == seedXs.length) {
+					seedXs = Arrays.copyOf(seedXs, parent * 2);
+					seedYs = Arrays.copyOf(seedYs, parent * 2);
+				}
+				seedXs[parent] = x;
+				seedYs[parent] = y;
+				cells.append(keyOf(cellX, cellY), parent);
+			}
+			childParents[child] = parent;
+		}
+
+		xs[level] = Arrays.copyOf(seedXs, seedCount);
+		ys[level] = Arrays.copyOf(seedYs, seedCount);
+		parents[level + 1] = childParents;
+	}
+
+	private static long keyOf(int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xffffffffL);
+	}
+
+	/**
+	 * The seeds of a level being clustered, bucketed by cell in primitive
+	 * arrays: an open-addressed table from each cell's key to the first and
+	 * last seed in it, and a link from each seed to the next one in its cell.
+	 * Seeds are appended in increasing order, so each cell lists them in
+	 * order.
+	 */
+	private static class SeedCells {
+
+		private long[] keys = new long[64];
+		private int[] firsts = new int[64];
+		private int[] lasts = new int[64];
+		private int cellCount;
+		private int[] nexts = new int[16];
+
+		private SeedCells() {
+			Arrays.fill(firsts, -1);
+		}
+
+		/**
+		 * @return the first seed in the cell, or -1 if it has none
+		 */
+		private int first(long key) {
+			return firsts[slotOf(key, keys, firsts)];
+		}
+
+		/**
+		 * @return the seed after the given one in its cell, or -1 if it is the
+		 *         last
+		 */
+		private int next(int seed) {
+			return nexts[seed];
+		}
+
+		private void append(long key, int seed) {
+			if (seed >= nexts.length) {
+				nexts = Arrays.copyOf(nexts, Math.max(seed + 1, nexts.length * 2));
+			}
+			nexts[seed] = -1;
+			int slot = slotOf(key, keys, firsts);
+			if (firsts[slot] < 0) {
+				keys[slot] = key;
+				firsts[slot] = seed;
+				lasts[slot] = seed;
+				if (++cellCount * 2 > keys.length) {
+					grow();
+				}
+			} else {
+				nexts[lasts[slot]] = seed;
+				lasts[slot] = seed;
+			}
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldFirsts = firsts;
+			int[] oldLasts = lasts;
+			keys = new long[oldKeys.length * 2];
+			firsts = new int[oldKeys.length * 2];
+			lasts = new int[oldKeys.length * 2];
+			Arrays.fill(firsts, -1);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldFirsts[i] >= 0) {
+					int slot = slotOf(oldKeys[i], keys, firsts);
+					keys[slot] = oldKeys[i];
+					firsts[slot] = oldFirsts[i];
+					lasts[slot] = oldLasts[i];
+				}
+			}
+		}
+
+		/**
+		 * @return the slot holding the key, or the empty slot it would go in
+		 */
+		private static int slotOf(long key, long[] keys, int[] firsts) {
+			int mask = keys.length - 1;
+			long hash = key * 0x9e3779b97f4a7c15L;
+			int slot = (int) (hash >>> 32) & mask;
+			while (firsts[slot] >= 0 && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * @return the number of rows in the hierarchy
+	 */
+	int size() {
+		return rows.length;
+	}
+
+	InputPointStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @param row
+	 * @return the position of the row in the order the hierarchy keeps its
+	 *         rows in, or -1 if the row is not in the hierarchy
+	 */
+	synchronized int getPosition(int row) {
+		if (positions == null) {
+			int maxRow = -1;
+			for (int i = 0; i < rows.length; i++) {
+				maxRow = Math.max(maxRow, rows[i]);
+			}
+			positions = new int[maxRow + 1];
+			Arrays.fill(positions, -1);
+			for (int i = 0; i < rows.length; i++) {
+				positions[rows[i]] = i;
+			}
+		}
+		return row >= 0 && row < positions.length ? positions[row] : -1;
+	}
+
+	/**
+	 * @param rowSet
+	 *            rows, by row
+	 * @return the positions of those of the rows in the hierarchy, by
+	 *         position, for getClusters()
+	 */
+	synchronized BitSet getPositions(BitSet rowSet) {
+		BitSet positionSet = new BitSet(rows.length);
+		for (int row = rowSet.nextSetBit(0); row >= 0; row = rowSet.nextSetBit(row + 1)) {
+			int position = getPosition(row);
+			if (position >= 0) {
+				positionSet.set(position);
+			}
+		}
+		return positionSet;
+	}
+
+	/**
+	 * Get the clusters at the given zoom level that fall within the bounds
+	 *
+	 * @param bounds
+	 *            the region to query, or null for the whole world
+	 * @param zoom
+	 *            the camera zoom; it is truncated to an integer level
+	 * @return the clusters
+	 */
+	ArrayList<ClusterPoint> getClusters(LatLngBounds bounds, float zoom) {
+		return getClusters(bounds, zoom, null);
+	}
+
+	/**
+	 * Get the clusters at the given zoom level that fall within the bounds,
+	 * leaving out hidden points. Clusters keep the place their hidden points
+	 * give them in the hierarchy, and clusters with no other points are left
+	 * out.
+	 *
+	 * @param bounds
+	 *            the region to query, or null for the whole world
+	 * @param zoom
+	 *            the camera zoom; it is truncated to an integer level
+	 * @param hiddenPositions
+	 *            the positions, from getPositions(), of the rows to leave
+	 *            out, or null to show every row
+	 * @return the clusters
+	 */
+	synchronized ArrayList<ClusterPoint> getClusters(LatLngBounds bounds, float zoom, BitSet hiddenPositions) {
+		int clampedZoom = Math.max(minZoom, Math.min(maxZoom + 1, (int) Math.floor(zoom)));
+		Level level = levels[clampedZoom - minZoom];
+		if (hiddenPositions != null && hiddenPositions.isEmpty()) {
+			hiddenPositions = null;
+		}
+
+		ArrayList<ClusterPoint> clusters = new ArrayList<ClusterPoint>();
+		if (bounds == null) {
+			for (int node = 0; node < level.size(); node++) {
+				level.addClusterPoint(node, store, rows, hiddenPositions, clusters);
+			}
+		} else {
+			double minX = Mercator.xFromLongitude(bounds.southwest.longitude);
+			double maxX = Mercator.xFromLongitude(bounds.northeast.longitude);
+			double minY = Mercator.yFromLatitude(bounds.northeast.latitude);
+			double maxY = Mercator.yFromLatitude(bounds.southwest.latitude);
+			if (minX <= maxX) {
+				level.range(minX, minY, maxX, maxY, store, rows, hiddenPositions, clusters);
+			} else {
+				// the bounds span the 180 meridian
+				level.range(minX, minY, 1, maxY, store, rows, hiddenPositions, clusters);
+				level.range(0, minY, maxX, maxY, store, rows, hiddenPositions, clusters);
+			}
+		}
+		return clusters;
+	}
+
+	/**
+	 * The nodes at a single zoom level, stored in a static k-d tree. A Level
+	 * read from a snapshot reads its nodes from the mapped file; one that was
+	 * built wraps the arrays it was sorted in.
+	 */
+	private static class Level {
+
+		private final IntBuffer ids;
+		private final DoubleBuffer coords;
+		private final IntBuffer starts;
+		private final IntBuffer counts;
+		private final int size;
+		private final Options.ClusterPosition clusterPosition;
+
+		/**
+		 * made when the level is first queried, so levels never queried and
+		 * nodes never queried take no heap
+		 */
+		private ClusterPoint[] clusterPoints;
+
+		private Level(IntBuffer ids, DoubleBuffer coords, IntBuffer starts, IntBuffer counts, Options.ClusterPosition clusterPosition) {
+			this.ids = ids;
+			this.coords = coords;
+			this.starts = starts;
+			this.counts = counts;
+			this.size = ids.limit();
+			this.clusterPosition = clusterPosition;
+		}
+
+		private static Level build(double[] xs, double[] ys, int[] starts, int[] counts, Options.ClusterPosition clusterPosition) {
+			int size = xs.length;
+			int[] ids = new int[size];
+			double[] coords = new double[size * 2];
+			for (int i = 0; i < size; i++) {
+				ids[i] = i;
+				coords[2 * i] = xs[i];
+				coords[2 * i + 1] = ys[i];
+			}
+			sort(ids, coords, 0, size - 1, 0);
+			return new Level(IntBuffer.wrap(ids), DoubleBuffer.wrap(coords), IntBuffer.wrap(starts), IntBuffer.wrap(counts), clusterPosition);
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeInt(ids.get(i));
+			}
+			for (int i = 0; i < size * 2; i++) {
+				out.writeDouble(coords.get(i));
+			}
+			for (int i = 0; i < size; i++) {
+				out.writeInt(starts.get(i));
+			}
+			for (int i = 0; i < size; i++) {
+				out.writeInt(counts.get(i));
+			}
+		}
+
+		/**
+		 * @param pointCount
+		 *            the number of rows the nodes' runs index into
+		 * @return the level, reading from the buffer in place, or null if any
+		 *         node is out of range
+		 */
+		private static Level read(ByteBuffer buffer, int pointCount, Options.ClusterPosition clusterPosition) {
+			int size = buffer.getInt();
+			if (size < 0 || size > buffer.remaining() / SNAPSHOT_NODE_BYTES) {
+				return null;
+			}
+			IntBuffer ids = slice(buffer, size * 4).asIntBuffer();
+			DoubleBuffer coords = slice(buffer, size * 16).asDoubleBuffer();
+			IntBuffer starts = slice(buffer, size * 4).asIntBuffer();
+			IntBuffer counts = slice(buffer, size * 4).asIntBuffer();
+			for (int i = 0; i < size; i++) {
+				int id = ids.get(i);
+				int start = starts.get(i);
+				int count = counts.get(i);
+				if (id < 0 || id >= size || start < 0 || count < 1 || count > pointCount - start) {
+					return null;
+				}
+			}
+			return new Level(ids, coords, starts, counts, clusterPosition);
+		}
+
+		private int size() {
+			return size;
+		}
+
+		/**
+		 * A node's points, position and totals are gathered the first time it
+		 * is queried and kept, so returning to a zoom level costs one small
+		 * object per cluster. Every query gets its own ClusterPoint sharing
+		 * them, since the clusters of a pass have their screen positions set
+		 * and may be read on the main thread while the next pass runs. Nodes are
+		 * indexed by their first row's position even when the ClusterPoint is
+		 * placed elsewhere.
+		 */
+		private ClusterPoint getClusterPoint(int node, InputPointStore store, int[] rows) {
+			if (clusterPoints == null) {
+				clusterPoints = new ClusterPoint[size];
+			}
+			ClusterPoint clusterPoint = clusterPoints[node];
+			if (clusterPoint == null) {
+				int start = starts.get(node);
+				int end = start + counts.get(node);
+				clusterPoint = new ClusterPoint(store, rows[start], null, false);
+				for (int i = start + 1; i < end; i++) {
+					clusterPoint.add(rows[i]);
+				}
+				if (clusterPosition != null) {
+					clusterPoint.applyMapPosition(clusterPosition);
+				}
+				clusterPoints[node] = clusterPoint;
+			}
+			return new ClusterPoint(clusterPoint);
+		}
+
+		/**
+		 * Add a node's ClusterPoint to out, unless every one of its points is
+		 * hidden. Nodes with hidden points get a ClusterPoint of their shown
+		 * points that is not kept, since the hidden points change with every
+		 * filter.
+		 */
+		private void addClusterPoint(int node, InputPointStore store, int[] rows, BitSet hiddenPositions, ArrayList<ClusterPoint> out) {
+			int start = starts.get(node);
+			int end = start + counts.get(node);
+			int firstHidden = hiddenPositions != null ? hiddenPositions.nextSetBit(start) : -1;
+			if (firstHidden < 0 || firstHidden >= end) {
+				out.add(getClusterPoint(node, store, rows));
+				return;
+			}
+			int first = hiddenPositions.nextClearBit(start);
+			if (first < end) {
+				ClusterPoint clusterPoint = new ClusterPoint(store, rows[first], null, false);
+				for (int i = hiddenPositions.nextClearBit(first + 1); i < end; i = hiddenPositions.nextClearBit(i + 1)) {
+					clusterPoint.add(rows[i]);
+				}
+				if (clusterPosition != null) {
+					clusterPoint.applyMapPosition(clusterPosition);
+				}
+				out.add(clusterPoint);
+			}
+		}
+
+		private void range(double minX, double minY, double maxX, double maxY, InputPointStore store, int[] rows, BitSet hiddenPositions,
+				ArrayList<ClusterPoint> out) {
+			if (size == 0) {
+				return;
+			}
+			int[] stack = new int[48];
+			int top = 0;
+			stack[top++] = 0;
+			stack[top++] = size - 1;
+			stack[top++] = 0;
+			while (top > 0) {
+				int axis = stack[--top];
+				int right = stack[--top];
+				int left = stack[--top];
+
+				if (right - left <= KD_NODE_SIZE) {
+					for (int i = left; i <= right; i++) {
+						if (contains(i, minX, minY, maxX, maxY)) {
+							addClusterPoint(ids.get(i), store, rows, hiddenPositions, out);
+						}
+					}
+					continue;
+				}
+
+				int middle = (left + right) >> 1;
+				if (contains(middle, minX, minY, maxX, maxY)) {
+					addClusterPoint(ids.get(middle), store, rows, hiddenPositions, out);
+				}
+
+				double value = coords.get(2 * middle + axis);
+				if (top + 6 > stack.length) {
+					int[] grown = new int[stack.length * 2];
+					System.arraycopy(stack, 0, grown, 0, top);
+					stack = grown;
+				}
+				if ((axis == 0 ? minX : minY) <= value) {
+					stack[top++] = left;
+					stack[top++] = middle - 1;
+					stack[top++] = 1 - axis;
+				}
+				if ((axis == 0 ? maxX : maxY) >= value) {
+					stack[top++] = middle + 1;
+					stack[top++] = right;
+					stack[top++] = 1 - axis;
+				}
+			}
+		}
+
+		private boolean contains(int i, double minX, double minY, double maxX, double maxY) {
+			double x = coords.get(2 * i);
+			double y = coords.get(2 * i + 1);
+			return x >= minX && x <= maxX && y >= minY && y <= maxY;
+		}
+
+		private static void sort(int[] ids, double[] coords, int left, int right, int axis) {
+			if (right - left <= KD_NODE_SIZE) {
+				return;
+			}
+			int middle = (left + right) >> 1;
+			select(ids, coords, middle, left, right, axis);
+			sort(ids, coords, left, middle - 1, 1 - axis);
+			sort(ids, coords, middle + 1, right, 1 - axis);
+		}
+
+		/**
+		 * partially sort so the k-th element along the axis is in place, with
+		 * smaller elements before it and larger ones after it
+		 */
+		private static void select(int[] ids, double[] coords, int k, int left, int right, int axis) {
+			while (right > left) {
+				double t = coords[2 * k + axis];
+				int i = left;
+				int j = right;
+
+				swap(ids, coords, left, k);
+				if (coords[2 * right + axis] > t) {
+					swap(ids, coords, left, right);
+				}
+
+				while (i < j) {
+					swap(ids, coords, i, j);
+					i++;
+					j--;
+					while (coords[2 * i + axis] < t) {
+						i++;
+					}
+					while (coords[2 * j + axis] > t) {
+						j--;
+					}
+				}
+
+				if (coords[2 * left + axis] == t) {
+					swap(ids, coords, left, j);
+				} else {
+					j++;
+					swap(ids, coords, j, right);
+				}
+
+				if (j <= k) {
+					left = j + 1;
+				}
+				if (k <= j) {
+					right = j - 1;
+				}
+			}
+		}
+
+		private static void swap(int[] ids, double[] coords, int i, int j) {
+			int id = ids[i];
+			ids[i] = ids[j];
+			ids[j] = id;
+			double x = coords[2 * i];
+			coords[2 * i] = coords[2 * j];
+			coords[2 * j] = x;
+			double y = coords[2 * i + 1];
+			coords[2 * i + 1] = coords[2 * j + 1];
+			coords[2 * j + 1] = y;
+		}
+	}
+
+}
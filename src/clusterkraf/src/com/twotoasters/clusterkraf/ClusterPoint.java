@@ -1,7 +1,6 @@
 package com.twotoasters.clusterkraf;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 
 import com.google.android.gms.maps.Projection;
 import com.google.android.gms.maps.model.LatLng;
@@ -13,49 +12,297 @@ import com.google.android.gms.maps.model.LatLngBounds;
  */
 public class ClusterPoint extends BasePoint {
 
-	private final ArrayList<InputPoint> pointsInClusterList = new ArrayList<InputPoint>();
-	private final HashSet<InputPoint> pointsInClusterSet = new HashSet<InputPoint>();
+	/**
+	 * clusters no larger than this answer containsInputPoint by scanning
+	 * rather than building sortedRows
+	 */
+	private static final int MAX_SCANNED_SIZE = 16;
+
+	private InputPointStore store;
+
+	/**
+	 * the InputPointStore rows of the points in this ClusterPoint, in the
+	 * order they joined
+	 */
+	private int[] rows;
+	private int size;
+
+	/**
+	 * a sorted copy of rows, built the first time containsInputPoint is called
+	 * on a large cluster; most clusters are never asked, so they never pay for
+	 * it
+	 */
+	private int[] sortedRows;
 
 	private final boolean transition;
 
 	private LatLngBounds boundsOfInputPoints;
 
-	ClusterPoint(InputPoint initialPoint, Projection projection, boolean transition) {
-		this.mapPosition = initialPoint.getMapPosition();
+	/**
+	 * Running totals kept by add and remove so that the centroids and bounds
+	 * can be read without visiting every point. Longitudes are kept as
+	 * offsets from referenceLongitude in the range [-180, 180), so clusters
+	 * that span the 180 meridian average and bound correctly.
+	 */
+	private final double referenceLongitude;
+	private double sumLatitude;
+	private double sumLongitudeOffset;
+	private double sumWeight;
+	private double sumWeightedLatitude;
+	private double sumWeightedLongitudeOffset;
+	private double minLatitude;
+	private double maxLatitude;
+	private double minLongitudeOffset;
+	private double maxLongitudeOffset;
+
+	/**
+	 * false once a point has been removed, since the extremes cannot be
+	 * recovered from running totals
+	 */
+	private boolean extremesValid = true;
+
+	ClusterPoint(InputPointStore store, int initialRow, Projection projection, boolean transition) {
+		InputPointStore.Columns columns = store.getColumns();
+		this.store = store;
+		this.rows = new int[1];
+		this.mapPosition = new LatLng(columns.latitudes[initialRow], columns.longitudes[initialRow]);
 		this.transition = transition;
-		add(initialPoint);
+		this.referenceLongitude = mapPosition.longitude;
+		this.minLatitude = mapPosition.latitude;
+		this.maxLatitude = mapPosition.latitude;
+		add(initialRow);
 		buildScreenPosition(projection);
 	}
 
-	ClusterPoint(InputPoint initialPoint, Projection projection, boolean transition, LatLng overridePosition) {
-		this(initialPoint, projection, transition);
+	ClusterPoint(InputPointStore store, int initialRow, Projection projection, boolean transition, LatLng overridePosition) {
+		this(store, initialRow, projection, transition);
 		this.mapPosition = overridePosition;
 	}
 
-	void add(InputPoint point) {
-		pointsInClusterList.add(point);
-		pointsInClusterSet.add(point);
+	/**
+	 * Share the points, position and running totals of a ClusterPoint, but not
+	 * its screen position, so the two can be placed on screen independently.
+	 * Neither may have points added or removed afterward.
+	 * 
+	 * @param clusterPoint
+	 */
+	ClusterPoint(ClusterPoint clusterPoint) {
+		this.store = clusterPoint.store;
+		this.rows = clusterPoint.rows;
+		this.size = clusterPoint.size;
+		this.sortedRows = clusterPoint.sortedRows;
+		this.mapPosition = clusterPoint.mapPosition;
+		this.transition = clusterPoint.transition;
+		this.boundsOfInputPoints = clusterPoint.boundsOfInputPoints;
+		this.referenceLongitude = clusterPoint.referenceLongitude;
+		this.sumLatitude = clusterPoint.sumLatitude;
+		this.sumLongitudeOffset = clusterPoint.sumLongitudeOffset;
+		this.sumWeight = clusterPoint.sumWeight;
+		this.sumWeightedLatitude = clusterPoint.sumWeightedLatitude;
+		this.sumWeightedLongitudeOffset = clusterPoint.sumWeightedLongitudeOffset;
+		this.minLatitude = clusterPoint.minLatitude;
+		this.maxLatitude = clusterPoint.maxLatitude;
+		this.minLongitudeOffset = clusterPoint.minLongitudeOffset;
+		this.maxLongitudeOffset = clusterPoint.maxLongitudeOffset;
+		this.extremesValid = clusterPoint.extremesValid;
+	}
+
+	void add(int row) {
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, size * 2);
+		}
+		rows[size++] = row;
+		sortedRows = null;
+
+		InputPointStore.Columns columns = store.getColumns();
+		double latitude = columns.latitudes[row];
+		double longitudeOffset = getLongitudeOffset(columns.longitudes[row]);
+		double weight = columns.getWeight(row);
+		sumLatitude += latitude;
+		sumLongitudeOffset += longitudeOffset;
+		sumWeight += weight;
+		sumWeightedLatitude += weight * latitude;
+		sumWeightedLongitudeOffset += weight * longitudeOffset;
+		if (extremesValid) {
+			minLatitude = Math.min(minLatitude, latitude);
+			maxLatitude = Math.max(maxLatitude, latitude);
+			minLongitudeOffset = Math.min(minLongitudeOffset, longitudeOffset);
+			maxLongitudeOffset = Math.max(maxLongitudeOffset, longitudeOffset);
+		}
+
+		boundsOfInputPoints = null;
+	}
+
+	/**
+	 * Add every point of another ClusterPoint from the same store
+	 * 
+	 * @param clusterPoint
+	 */
+	void addAll(ClusterPoint clusterPoint) {
+		for (int i = 0; i < clusterPoint.size; i++) {
+			add(clusterPoint.rows[i]);
+		}
+	}
+
+	/**
+	 * Remove every point of this ClusterPoint whose row is among the given
+	 * ones in a single pass over its points
+	 * 
+	 * @param removedRows
+	 *            sorted in ascending order
+	 * @param count
+	 *            how many of removedRows to use
+	 * @return the number of points removed
+	 */
+	int removeAll(int[] removedRows, int count) {
+		int kept = 0;
+		InputPointStore.Columns columns = store.getColumns();
+		for (int i = 0; i < size; i++) {
+			int row = rows[i];
+			if (Arrays.binarySearch(removedRows, 0, count, row) >= 0) {
+				subtract(columns, row);
+			} else {
+				rows[kept++] = row;
+			}
+		}
+		int removed = size - kept;
+		if (removed > 0) {
+			size = kept;
+			sortedRows = null;
+		}
+		return removed;
+	}
+
+	private void subtract(InputPointStore.Columns columns, int row) {
+		double latitude = columns.latitudes[row];
+		double longitudeOffset = getLongitudeOffset(columns.longitudes[row]);
+		double weight = columns.getWeight(row);
+		sumLatitude -= latitude;
+		sumLongitudeOffset -= longitudeOffset;
+		sumWeight -= weight;
+		sumWeightedLatitude -= weight * latitude;
+		sumWeightedLongitudeOffset -= weight * longitudeOffset;
+		extremesValid = false;
 
 		boundsOfInputPoints = null;
 	}
 
-	ArrayList<InputPoint> getPointsInCluster() {
-		return pointsInClusterList;
+	/**
+	 * Refer to the same points by their rows in another store, which holds
+	 * them at the same positions. The rows are copied rather than renumbered
+	 * in place, since a copy of this ClusterPoint may share them.
+	 * 
+	 * @param store
+	 * @param movedRows
+	 *            the row in store of each row of the current store, indexed
+	 *            by row
+	 */
+	void moveRows(InputPointStore store, int[] movedRows) {
+		int[] moved = new int[Math.max(1, size)];
+		for (int i = 0; i < size; i++) {
+			moved[i] = movedRows[rows[i]];
+		}
+		this.store = store;
+		this.rows = moved;
+		this.sortedRows = null;
+	}
+
+	/**
+	 * Move this ClusterPoint to where the ClusterPosition places it given its
+	 * current points, as it would have been placed had it been built from them
+	 * 
+	 * @param clusterPosition
+	 * @param projection
+	 */
+	void resetMapPosition(Options.ClusterPosition clusterPosition, Projection projection) {
+		if (size > 0) {
+			applyMapPosition(clusterPosition);
+			setScreenPosition(null);
+			buildScreenPosition(projection);
+		}
+	}
+
+	/**
+	 * Move this ClusterPoint to where the ClusterPosition places it, leaving
+	 * its screen position for the caller to rebuild
+	 * 
+	 * @param clusterPosition
+	 */
+	void applyMapPosition(Options.ClusterPosition clusterPosition) {
+		if (size > 0) {
+			switch (clusterPosition) {
+				case CENTROID:
+					mapPosition = getCentroid();
+					break;
+				case WEIGHTED_CENTROID:
+					mapPosition = getWeightedCentroid();
+					break;
+				default:
+					InputPointStore.Columns columns = store.getColumns();
+					mapPosition = new LatLng(columns.latitudes[rows[0]], columns.longitudes[rows[0]]);
+					break;
+			}
+		}
+	}
+
+	/**
+	 * @return the mean position of the InputPoint objects in this ClusterPoint
+	 */
+	public LatLng getCentroid() {
+		if (size == 0) {
+			return mapPosition;
+		}
+		return new LatLng(sumLatitude / size, getLongitude(sumLongitudeOffset / size));
+	}
+
+	/**
+	 * @return the mean position of the InputPoint objects in this ClusterPoint,
+	 *         weighted by InputPoint.getWeight(), or the unweighted centroid
+	 *         if the weights sum to zero
+	 */
+	public LatLng getWeightedCentroid() {
+		if (sumWeight == 0) {
+			return getCentroid();
+		}
+		return new LatLng(sumWeightedLatitude / sumWeight, getLongitude(sumWeightedLongitudeOffset / sumWeight));
+	}
+
+	InputPointStore getStore() {
+		return store;
 	}
 
 	/**
 	 * @param index
-	 * @return the InputPoint at the given index
+	 * @return the InputPointStore row of the point at the given index
+	 */
+	int getRowAtOffset(int index) {
+		checkIndex(index);
+		return rows[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the InputPoint at the given index, made from its
+	 *         InputPointStore row if it was added as one
 	 */
 	public InputPoint getPointAtOffset(int index) {
-		return pointsInClusterList.get(index);
+		return store.getInputPoint(getRowAtOffset(index));
 	}
 
 	/**
-	 * @return the number of InputPoint objects in this ClusterPoint
+	 * @param index
+	 * @return the id the point at the given index was added to its
+	 *         InputPointStore with, or -1 if it was added as an InputPoint
+	 */
+	public int getIdAtOffset(int index) {
+		return store.getId(getRowAtOffset(index));
+	}
+
+	/**
+	 * @return the number of points in this ClusterPoint
 	 */
 	public int size() {
-		return pointsInClusterList.size();
+		return size;
 	}
 
 	/**
@@ -63,14 +310,30 @@ public class ClusterPoint extends BasePoint {
 	 * @return true if the InputPoint is in this ClusterPoint, otherwise false
 	 */
 	public boolean containsInputPoint(InputPoint point) {
-		return pointsInClusterSet.contains(point);
+		int row = store.rowOf(point);
+		return row >= 0 && containsRow(row);
 	}
 
-	@Override
-	void clearScreenPosition() {
-		super.clearScreenPosition();
-		for (InputPoint inputPoint : pointsInClusterList) {
-			inputPoint.clearScreenPosition();
+	boolean containsRow(int row) {
+		if (sortedRows == null) {
+			if (size <= MAX_SCANNED_SIZE) {
+				for (int i = 0; i < size; i++) {
+					if (rows[i] == row) {
+						return true;
+					}
+				}
+				return false;
+			}
+			int[] sorted = Arrays.copyOf(rows, size);
+			Arrays.sort(sorted);
+			sortedRows = sorted;
+		}
+		return Arrays.binarySearch(sortedRows, row) >= 0;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
 		}
 	}
 
@@ -82,14 +345,52 @@ public class ClusterPoint extends BasePoint {
 	}
 
 	LatLngBounds getBoundsOfInputPoints() {
-		if (boundsOfInputPoints == null) {
-			LatLngBounds.Builder builder = LatLngBounds.builder();
-			for (InputPoint inputPoint : pointsInClusterList) {
-				builder.include(inputPoint.getMapPosition());
+		if (boundsOfInputPoints == null && size > 0) {
+			if (extremesValid == false) {
+				recomputeExtremes();
 			}
-			boundsOfInputPoints = builder.build();
+			LatLng southwest = new LatLng(minLatitude, getLongitude(minLongitudeOffset));
+			LatLng northeast = new LatLng(maxLatitude, getLongitude(maxLongitudeOffset));
+			boundsOfInputPoints = new LatLngBounds(southwest, northeast);
 		}
 		return boundsOfInputPoints;
 	}
 
+	private void recomputeExtremes() {
+		minLatitude = Double.POSITIVE_INFINITY;
+		maxLatitude = Double.NEGATIVE_INFINITY;
+		minLongitudeOffset = Double.POSITIVE_INFINITY;
+		maxLongitudeOffset = Double.NEGATIVE_INFINITY;
+		InputPointStore.Columns columns = store.getColumns();
+		for (int i = 0; i < size; i++) {
+			double latitude = columns.latitudes[rows[i]];
+			double longitudeOffset = getLongitudeOffset(columns.longitudes[rows[i]]);
+			minLatitude = Math.min(minLatitude, latitude);
+			maxLatitude = Math.max(maxLatitude, latitude);
+			minLongitudeOffset = Math.min(minLongitudeOffset, longitudeOffset);
+			maxLongitudeOffset = Math.max(maxLongitudeOffset, longitudeOffset);
+		}
+		extremesValid = true;
+	}
+
+	private double getLongitudeOffset(double longitude) {
+		double offset = longitude - referenceLongitude;
+		if (offset >= 180) {
+			offset -= 360;
+		} else if (offset < -180) {
+			offset += 360;
+		}
+		return offset;
+	}
+
+	private double getLongitude(double longitudeOffset) {
+		double longitude = referenceLongitude + longitudeOffset;
+		if (longitude >= 180) {
+			longitude -= 360;
+		} else if (longitude < -180) {
+			longitude += 360;
+		}
+		return longitude;
+	}
+
 }
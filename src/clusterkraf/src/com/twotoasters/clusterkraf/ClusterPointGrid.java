@@ -0,0 +1,334 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import android.graphics.Point;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Buckets ClusterPoint objects into square pixel cells so that a clustering
+ * pass only needs to compare an InputPoint against the clusters in its own and
+ * neighboring cells rather than against every cluster built so far.
+ *
+ * The cell size is the largest screen distance at which the distance metric
+ * can join a point to a cluster, so any cluster close enough to be joined is
+ * guaranteed to be in one of the nine cells surrounding the point.
+ *
+ * Joins are measured from each cluster's anchor, which is the ClusterPoint
+ * itself unless the screen and map position of another point is given. A
+ * clustering pass joins points to a cluster's first point and only moves
+ * clusters once it is done, so clusters that have already been moved are
+ * anchored at their first point instead.
+ *
+ * A pass indexes a cluster for every few points it clusters, so the index
+ * is kept in primitive arrays rather than objects: an open-addressed table
+ * from each cell's key to the first and last entry in it, and a link from
+ * each entry to the next one in its cell, in insertion order.
+ */
+class ClusterPointGrid {
+
+	/**
+	 * the first entry of a table slot no cell has used
+	 */
+	private static final int FREE = -1;
+
+	/**
+	 * the first entry of a cell whose entries have all been removed, whose
+	 * slot cannot be freed without breaking the probe sequence of others
+	 */
+	private static final int EMPTY = -2;
+
+	private final int cellSize;
+	private final ClusterDistanceMetric metric;
+	private final int pixelDistanceToJoinCluster;
+
+	private long[] cellKeys = new long[64];
+	private int[] cellFirsts = new int[64];
+	private int[] cellLasts = new int[64];
+	private int usedSlotCount;
+
+	/**
+	 * the indexed ClusterPoint objects and the anchors joins to them are
+	 * measured from, by entry; the ClusterPoint of a removed entry is null
+	 */
+	private ClusterPoint[] clusterPoints = new ClusterPoint[16];
+	private int[] xs = new int[16];
+	private int[] ys = new int[16];
+	private double[] latitudes = new double[16];
+	private double[] longitudes = new double[16];
+	private int[] orders = new int[16];
+	private int[] nexts = new int[16];
+	private int entryCount;
+
+	/**
+	 * the entry of each indexed ClusterPoint, so it can be removed without
+	 * knowing where it was anchored; only built once one is removed, since a
+	 * clustering pass never removes any
+	 */
+	private IdentityHashMap<ClusterPoint, Integer> entries;
+
+	private int nextOrder = 0;
+
+	/**
+	 * @param options
+	 * @param maxPixelDistance
+	 *            the value returned by the clusterDistanceMetric's
+	 *            getMaxPixelDistance for the region being clustered
+	 */
+	ClusterPointGrid(Options options, int maxPixelDistance) {
+		this.cellSize = maxPixelDistance > 0 ? maxPixelDistance : 1;
+		this.metric = options.getClusterDistanceMetric();
+		this.pixelDistanceToJoinCluster = options.getPixelDistanceToJoinCluster();
+		Arrays.fill(cellFirsts, FREE);
+	}
+
+	/**
+	 * Index a ClusterPoint by its screen position. Clusters without a screen
+	 * position are not indexed.
+	 *
+	 * @param clusterPoint
+	 */
+	void add(ClusterPoint clusterPoint) {
+		Point screenPosition = clusterPoint.getScreenPosition();
+		LatLng mapPosition = clusterPoint.getMapPosition();
+		if (screenPosition != null) {
+			add(clusterPoint, screenPosition.x, screenPosition.y, mapPosition.latitude, mapPosition.longitude, nextOrder++);
+		}
+	}
+
+	/**
+	 * Index a ClusterPoint by the screen and map position of the point joins
+	 * to it are measured from
+	 *
+	 * @param clusterPoint
+	 * @param x
+	 * @param y
+	 * @param latitude
+	 * @param longitude
+	 */
+	void add(ClusterPoint clusterPoint, int x, int y, double latitude, double longitude) {
+		add(clusterPoint, x, y, latitude, longitude, nextOrder++);
+	}
+
+	/**
+	 * Index a ClusterPoint by the screen and map position of its anchor,
+	 * keeping the insertion order it was given when it was first added
+	 *
+	 * @param clusterPoint
+	 * @param x
+	 * @param y
+	 * @param latitude
+	 * @param longitude
+	 * @param order
+	 *            the value previously returned by remove(ClusterPoint)
+	 */
+	void add(ClusterPoint clusterPoint, int x, int y, double latitude, double longitude, int order) {
+		if (order < 0) {
+			return;
+		}
+		int entry = entryCount++;
+		if (entry == orders.length) {
+			growEntries();
+		}
+		clusterPoints[entry] = clusterPoint;
+		xs[entry] = x;
+		ys[entry] = y;
+		latitudes[entry] = latitude;
+		longitudes[entry] = longitude;
+		orders[entry] = order;
+		nexts[entry] = -1;
+		if (entries != null) {
+			entries.put(clusterPoint, Integer.valueOf(entry));
+		}
+
+		long key = keyOf(cellOf(x), cellOf(y));
+		int slot = slotOf(key);
+		if (cellFirsts[slot] < 0) {
+			if (cellFirsts[slot] == FREE) {
+				cellKeys[slot] = key;
+				usedSlotCount++;
+			}
+			cellFirsts[slot] = entry;
+			cellLasts[slot] = entry;
+			if (usedSlotCount * 2 > cellKeys.length) {
+				growCells();
+			}
+		} else if (orders[cellLasts[slot]] < order) {
+			nexts[cellLasts[slot]] = entry;
+			cellLasts[slot] = entry;
+		} else {
+			// re-added with its earlier order, so it goes before later entries
+			int previous = -1;
+			int next = cellFirsts[slot];
+			while (next >= 0 && orders[next] < order) {
+				previous = next;
+				next = nexts[next];
+			}
+			nexts[entry] = next;
+			if (previous < 0) {
+				cellFirsts[slot] = entry;
+			} else {
+				nexts[previous] = entry;
+			}
+		}
+	}
+
+	/**
+	 * Remove a ClusterPoint from the index
+	 *
+	 * @param clusterPoint
+	 * @return the insertion order of the removed ClusterPoint, or -1 if it was
+	 *         not indexed
+	 */
+	int remove(ClusterPoint clusterPoint) {
+		if (entries == null) {
+			entries = new IdentityHashMap<ClusterPoint, Integer>(entryCount);
+			for (int entry = 0; entry < entryCount; entry++) {
+				if (clusterPoints[entry] != null) {
+					entries.put(clusterPoints[entry], Integer.valueOf(entry));
+				}
+			}
+		}
+		Integer removedEntry = entries.remove(clusterPoint);
+		if (removedEntry == null) {
+			return -1;
+		}
+		int entry = removedEntry.intValue();
+		int slot = slotOf(keyOf(cellOf(xs[entry]), cellOf(ys[entry])));
+		int previous = -1;
+		for (int current = cellFirsts[slot]; current >= 0 && current != entry; current = nexts[current]) {
+			previous = current;
+		}
+		if (previous < 0) {
+			cellFirsts[slot] = nexts[entry] >= 0 ? nexts[entry] : EMPTY;
+		} else {
+			nexts[previous] = nexts[entry];
+		}
+		if (cellLasts[slot] == entry) {
+			cellLasts[slot] = previous;
+		}
+		clusterPoints[entry] = null;
+		return orders[entry];
+	}
+
+	/**
+	 * Find the earliest-added ClusterPoint another ClusterPoint is close
+	 * enough to join
+	 *
+	 * @param clusterPoint
+	 * @return the matching ClusterPoint, or null if there is none or the
+	 *         ClusterPoint has no screen position
+	 */
+	ClusterPoint findFirstWithin(ClusterPoint clusterPoint) {
+		Point screenPosition = clusterPoint.getScreenPosition();
+		if (screenPosition == null) {
+			return null;
+		}
+		LatLng mapPosition = clusterPoint.getMapPosition();
+		return findFirstWithin(screenPosition.x, screenPosition.y, mapPosition.latitude, mapPosition.longitude);
+	}
+
+	/**
+	 * Find the earliest-added ClusterPoint a point is close enough to join,
+	 * which is the same cluster a linear first-fit scan over the clusters in
+	 * insertion order would have chosen.
+	 *
+	 * @param x
+	 * @param y
+	 * @param latitude
+	 * @param longitude
+	 * @return the matching ClusterPoint, or null if there is none
+	 */
+	ClusterPoint findFirstWithin(int x, int y, double latitude, double longitude) {
+		int cellX = cellOf(x);
+		int cellY = cellOf(y);
+		int first = -1;
+		for (int cx = cellX - 1; cx <= cellX + 1; cx++) {
+			for (int cy = cellY - 1; cy <= cellY + 1; cy++) {
+				for (int entry = cellFirsts[slotOf(keyOf(cx, cy))]; entry >= 0; entry = nexts[entry]) {
+					if (first >= 0 && orders[entry] > orders[first]) {
+						// entries within a cell are in insertion order
+						break;
+					}
+					if (metric.isWithin(xs[entry], ys[entry], latitudes[entry], longitudes[entry], x, y, latitude, longitude, pixelDistanceToJoinCluster)) {
+						first = entry;
+						break;
+					}
+				}
+			}
+		}
+		return first >= 0 ? clusterPoints[first] : null;
+	}
+
+	void clear() {
+		Arrays.fill(cellFirsts, FREE);
+		usedSlotCount = 0;
+		Arrays.fill(clusterPoints, 0, entryCount, null);
+		entryCount = 0;
+		entries = null;
+		nextOrder = 0;
+	}
+
+	private int cellOf(int coordinate) {
+		return (int) Math.floor((double) coordinate / cellSize);
+	}
+
+	private static long keyOf(int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xffffffffL);
+	}
+
+	/**
+	 * @return the slot holding the cell's key, or the free slot it would go
+	 *         in
+	 */
+	private int slotOf(long key) {
+		return slotOf(key, cellKeys, cellFirsts);
+	}
+
+	private static int slotOf(long key, long[] keys, int[] firsts) {
+		int mask = keys.length - 1;
+		long hash = key * 0x9e3779b97f4a7c15L;
+		int slot = (int) (hash >>> 32) & mask;
+		while (firsts[slot] != FREE && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void growEntries() {
+		int capacity = orders.length * 2;
+		clusterPoints = Arrays.copyOf(clusterPoints, capacity);
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+		latitudes = Arrays.copyOf(latitudes, capacity);
+		longitudes = Arrays.copyOf(longitudes, capacity);
+		orders = Arrays.copyOf(orders, capacity);
+		nexts = Arrays.copyOf(nexts, capacity);
+	}
+
+	/**
+	 * Double the table, dropping the slots of cells left empty
+	 */
+	private void growCells() {
+		long[] oldKeys = cellKeys;
+		int[] oldFirsts = cellFirsts;
+		int[] oldLasts = cellLasts;
+		cellKeys = new long[oldKeys.length * 2];
+		cellFirsts = new int[oldKeys.length * 2];
+		cellLasts = new int[oldKeys.length * 2];
+		Arrays.fill(cellFirsts, FREE);
+		usedSlotCount = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldFirsts[i] >= 0) {
+				int slot = slotOf(oldKeys[i], cellKeys, cellFirsts);
+				cellKeys[slot] = oldKeys[i];
+				cellFirsts[slot] = oldFirsts[i];
+				cellLasts[slot] = oldLasts[i];
+				usedSlotCount++;
+			}
+		}
+	}
+
+}
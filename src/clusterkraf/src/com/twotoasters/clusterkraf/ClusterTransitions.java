@@ -2,6 +2,7 @@ package com.twotoasters.clusterkraf;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import com.google.android.gms.maps.Projection;
 
@@ -18,32 +19,58 @@ class ClusterTransitions {
 	static class Builder {
 
 		private final WeakReference<Projection> projectionRef;
-		private final ArrayList<ClusterPoint> previousClusterPoints;
+
+		/**
+		 * the previous ClusterPoint containing each previous row
+		 */
+		private final RowMap<ClusterPoint> previousClusterPointsByRow;
+
+		/**
+		 * the transitions into the ClusterPoint currently being added, by
+		 * their origin; reused between calls to add
+		 */
+		private final HashMap<ClusterPoint, AnimatedTransition> transitionsByOrigin = new HashMap<ClusterPoint, AnimatedTransition>();
 
 		private final ArrayList<AnimatedTransition> animatedTransitions = new ArrayList<AnimatedTransition>();
 		private final ArrayList<ClusterPoint> stationaryTransitions = new ArrayList<ClusterPoint>();
 
 		Builder(Projection projection, ArrayList<ClusterPoint> previousClusterPoints) {
 			this.projectionRef = new WeakReference<Projection>(projection);
-			this.previousClusterPoints = previousClusterPoints;
+			if (previousClusterPoints != null) {
+				int previousInputPointCount = 0;
+				for (ClusterPoint previousClusterPoint : previousClusterPoints) {
+					previousInputPointCount += previousClusterPoint.size();
+				}
+				previousClusterPointsByRow = new RowMap<ClusterPoint>(previousInputPointCount);
+				for (ClusterPoint previousClusterPoint : previousClusterPoints) {
+					for (int i = 0; i < previousClusterPoint.size(); i++) {
+						previousClusterPointsByRow.put(previousClusterPoint.getRowAtOffset(i), previousClusterPoint);
+					}
+				}
+			} else {
+				previousClusterPointsByRow = null;
+			}
 		}
 
 		void add(ClusterPoint currentClusterPoint) {
 			Projection projection = projectionRef != null ? projectionRef.get() : null;
 			if (currentClusterPoint != null && projection != null) {
 				boolean animated = false;
-				if (previousClusterPoints != null) {
-					for (ClusterPoint previousClusterPoint : previousClusterPoints) {
-						for (InputPoint previousInputPoint : previousClusterPoint.getPointsInCluster()) {
-							if (currentClusterPoint.containsInputPoint(previousInputPoint)) {
-								AnimatedTransition transition = getTransition(previousInputPoint);
-								if (transition != null) {
-									transition.addOriginClusterRelevantInputPoint(previousInputPoint);
-								} else {
-									transition = new AnimatedTransition(projection, previousClusterPoint, previousInputPoint, currentClusterPoint);
-									animatedTransitions.add(transition);
-									animated = true;
-								}
+				if (previousClusterPointsByRow != null) {
+					transitionsByOrigin.clear();
+					for (int i = 0; i < currentClusterPoint.size(); i++) {
+						int row = currentClusterPoint.getRowAtOffset(i);
+						ClusterPoint previousClusterPoint = previousClusterPointsByRow.get(row);
+						// rows of a store since replaced are different points
+						if (previousClusterPoint != null && previousClusterPoint.getStore() == currentClusterPoint.getStore()) {
+							AnimatedTransition transition = transitionsByOrigin.get(previousClusterPoint);
+							if (transition != null) {
+								transition.addOriginClusterRelevantRow(row);
+							} else {
+								transition = new AnimatedTransition(projection, previousClusterPoint, row, currentClusterPoint);
+								transitionsByOrigin.put(previousClusterPoint, transition);
+								animatedTransitions.add(transition);
+								animated = true;
 							}
 						}
 					}
@@ -54,15 +81,6 @@ class ClusterTransitions {
 			}
 		}
 
-		private AnimatedTransition getTransition(InputPoint relevantInputPoint) {
-			for (AnimatedTransition at : animatedTransitions) {
-				if (at.destinationContains(relevantInputPoint) && at.originContains(relevantInputPoint)) {
-					return at;
-				}
-			}
-			return null;
-		}
-
 		ClusterTransitions build() {
 			return new ClusterTransitions(this);
 		}
@@ -5,16 +5,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.VisibleRegion;
 import com.nineoldandroids.animation.Animator;
 import com.nineoldandroids.animation.Animator.AnimatorListener;
 import com.nineoldandroids.animation.ObjectAnimator;
 import com.nineoldandroids.animation.ValueAnimator;
 import com.nineoldandroids.animation.ValueAnimator.AnimatorUpdateListener;
 
-class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateListener {
+class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateListener, MarkerInsertionQueue.Host {
 
 	private final WeakReference<GoogleMap> mapRef;
 	private final WeakReference<Options> optionsRef;
@@ -30,6 +33,21 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 	private final HashMap<Marker, AnimatedTransition> animatedTransitionsByMarker = new HashMap<Marker, AnimatedTransition>();
 	private final HashMap<Marker, ClusterPoint> stationaryTransitionsByMarker = new HashMap<Marker, ClusterPoint>();
 
+	/**
+	 * when the previous animation frame was handled, for reporting frame
+	 * intervals to the MetricsListener
+	 */
+	private long previousFrameNanos;
+
+	/**
+	 * adds the transition markers when Options.isBatchedMarkerInsertion() is
+	 * enabled; indexes below the number of animated transitions are animated
+	 * markers, the rest stationary ones
+	 */
+	private final MarkerInsertionQueue markerInsertionQueue = new MarkerInsertionQueue(this);
+	private int batchMarkersAdded;
+	private long batchStartNanos;
+
 	ClusterTransitionsAnimation(GoogleMap map, Options options, Host host) {
 		mapRef = new WeakReference<GoogleMap>(map);
 		optionsRef = new WeakReference<Options>(options);
@@ -43,6 +61,7 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 			if (options != null && host != null) {
 				this.state = new AnimatedTransitionState(transitions.animated);
 				this.transitions = transitions;
+				previousFrameNanos = 0;
 				animator = ObjectAnimator.ofFloat(this.state, "value", 0f, 1f);
 				animator.addListener(this);
 				animator.addUpdateListener(this);
@@ -66,41 +85,52 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 		return stationaryTransitionsByMarker.get(marker);
 	}
 
+	/**
+	 * @return true if a transition is animating or has not yet been cleared by
+	 *         the Host, otherwise false
+	 */
+	boolean isRunning() {
+		return state != null;
+	}
+
 	void cancel() {
 		if (animator != null) {
 			animator.cancel();
 		}
 	}
 
-	private class AnimatedTransitionState {
+	static class AnimatedTransitionState {
 
 		private final ArrayList<AnimatedTransition> transitions;
 
+		/**
+		 * per-transition start coordinates and the distance to travel,
+		 * computed once so that animation frames only interpolate
+		 */
+		private final double[] startLatitudes;
+		private final double[] startLongitudes;
+		private final double[] deltaLatitudes;
+		private final double[] deltaLongitudes;
+
 		private float value;
 
-		private AnimatedTransitionState(ArrayList<AnimatedTransition> transitions) {
+		AnimatedTransitionState(ArrayList<AnimatedTransition> transitions) {
 			this.transitions = transitions;
-		}
-
-		@SuppressWarnings("unused")
-		public void setValue(float value) {
-			this.value = value;
-		}
-
-		public ArrayList<AnimatedTransition> getTransitions() {
-			return transitions;
-		}
 
-		private LatLng[] getPositions() {
-			LatLng[] positions = new LatLng[transitions.size()];
-			int i = 0;
-			for (AnimatedTransition transition : transitions) {
+			int count = transitions.size();
+			startLatitudes = new double[count];
+			startLongitudes = new double[count];
+			deltaLatitudes = new double[count];
+			deltaLongitudes = new double[count];
+			for (int i = 0; i < count; i++) {
+				AnimatedTransition transition = transitions.get(i);
 				LatLng start = transition.getOriginClusterRelevantInputPoints().getMapPosition();
 				LatLng end = transition.getDestinationClusterPoint().getMapPosition();
-				double currentLat = start.latitude + (value * (end.latitude - start.latitude));
-				double currentLon;
+				startLatitudes[i] = start.latitude;
+				deltaLatitudes[i] = end.latitude - start.latitude;
 				if (transition.spans180Meridian() == false) {
-					currentLon = start.longitude + (value * (end.longitude - start.longitude));
+					startLongitudes[i] = start.longitude;
+					deltaLongitudes[i] = end.longitude - start.longitude;
 				} else {
 					/**
 					 * transitions that span the 180 meridian cannot be animated
@@ -111,12 +141,44 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 					 */
 					double shiftedStartLon = start.longitude < 0 ? start.longitude + 360 : start.longitude;
 					double shiftedEndLon = end.longitude < 0 ? end.longitude + 360 : end.longitude;
-					double shiftedCurrentLon = shiftedStartLon + (value * (shiftedEndLon - shiftedStartLon));
-					currentLon = shiftedCurrentLon - 360;
+					startLongitudes[i] = shiftedStartLon - 360;
+					deltaLongitudes[i] = shiftedEndLon - shiftedStartLon;
 				}
-				positions[i++] = new LatLng(currentLat, currentLon);
 			}
-			return positions;
+		}
+
+		@SuppressWarnings("unused")
+		public void setValue(float value) {
+			this.value = value;
+		}
+
+		public ArrayList<AnimatedTransition> getTransitions() {
+			return transitions;
+		}
+
+		/**
+		 * Move each marker to its transition's current position. The Maps API
+		 * only accepts positions as LatLng objects, so one is still created
+		 * per marker, but nothing else is allocated per frame.
+		 * 
+		 * @param markers
+		 *            indexed the same as the transitions; null entries are
+		 *            skipped
+		 */
+		void updatePositions(Marker[] markers) {
+			for (int i = 0; i < markers.length; i++) {
+				Marker marker = markers[i];
+				if (marker != null) {
+					marker.setPosition(getPosition(i));
+				}
+			}
+		}
+
+		/**
+		 * @return the current position of the transition at index
+		 */
+		LatLng getPosition(int index) {
+			return new LatLng(startLatitudes[index] + value * deltaLatitudes[index], startLongitudes[index] + value * deltaLongitudes[index]);
 		}
 	}
 
@@ -127,9 +189,16 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 	@Override
 	public void onAnimationUpdate(ValueAnimator animator) {
 		if (state != null && animatedMarkers != null) {
-			LatLng[] positions = state.getPositions();
-			for (int i = 0; i < animatedMarkers.length; i++) {
-				animatedMarkers[i].setPosition(positions[i]);
+			Options options = optionsRef.get();
+			Clusterkraf.MetricsListener metricsListener = options != null ? options.getMetricsListener() : null;
+			if (metricsListener != null) {
+				long start = System.nanoTime();
+				state.updatePositions(animatedMarkers);
+				long end = System.nanoTime();
+				metricsListener.onTransitionFrame(previousFrameNanos != 0 ? start - previousFrameNanos : 0, end - start);
+				previousFrameNanos = start;
+			} else {
+				state.updatePositions(animatedMarkers);
 			}
 		}
 	}
@@ -175,8 +244,13 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 	public void onAnimationStart(Animator animator) {
 		GoogleMap map = mapRef.get();
 		Options options = optionsRef.get();
-		if (map != null && options != null) {
+		if (map != null && options != null && options.isBatchedMarkerInsertion()) {
+			queueMarkers(map, options);
+		} else if (map != null && options != null) {
+			long start = System.nanoTime();
+			int markersAdded = 0;
 			MarkerOptionsChooser moc = options.getMarkerOptionsChooser();
+			LatLngBounds materializedBounds = getMaterializedBounds(map, options);
 
 			// plot animated transitions at starting point
 			ArrayList<AnimatedTransition> animatedTransitions = state.getTransitions();
@@ -185,7 +259,13 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 			for (int i = 0; i < animatedTransitionCount; i++) {
 				AnimatedTransition animatedTransition = animatedTransitions.get(i);
 				ClusterPoint origin = animatedTransition.getOriginClusterRelevantInputPoints();
+				if (materializedBounds != null && materializedBounds.contains(origin.getMapPosition()) == false
+						&& materializedBounds.contains(animatedTransition.getDestinationClusterPoint().getMapPosition()) == false) {
+					// never on screen during this transition
+					continue;
+				}
 				Marker marker = addMarker(map, moc, origin);
+				markersAdded++;
 
 				animatedMarkers[i] = marker;
 				animatedTransitionsByMarker.put(marker, animatedTransition);
@@ -198,37 +278,140 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 				stationaryMarkers = new Marker[stationaryClusterCount];
 				for (int i = 0; i < stationaryClusterCount; i++) {
 					ClusterPoint stationaryCluster = stationaryClusters.get(i);
+					if (materializedBounds != null && materializedBounds.contains(stationaryCluster.getMapPosition()) == false) {
+						continue;
+					}
 					Marker marker = addMarker(map, moc, stationaryCluster);
+					markersAdded++;
 
 					stationaryMarkers[i] = marker;
 					stationaryTransitionsByMarker.put(marker, stationaryCluster);
 				}
 			}
+
+			reportMarkersUpdated(options, markersAdded, 0, start);
 		}
 
 		Host host = hostRef.get();
 		host.onClusterTransitionStarted();
 	}
 
+	/**
+	 * Queue the stationary and animated transition markers to be added a
+	 * frame's budget at a time, nearest the center of the map first. Animated
+	 * markers added after the first frame start from their current position.
+	 */
+	private void queueMarkers(GoogleMap map, Options options) {
+		LatLngBounds materializedBounds = getMaterializedBounds(map, options);
+		ArrayList<AnimatedTransition> animatedTransitions = state.getTransitions();
+		ArrayList<ClusterPoint> stationaryClusters = transitions.stationary;
+		int animatedTransitionCount = animatedTransitions.size();
+		int stationaryClusterCount = stationaryClusters.size();
+		animatedMarkers = new Marker[animatedTransitionCount];
+		if (stationaryClusterCount > 0) {
+			stationaryMarkers = new Marker[stationaryClusterCount];
+		}
+
+		LatLng[] positions = new LatLng[animatedTransitionCount + stationaryClusterCount];
+		for (int i = 0; i < animatedTransitionCount; i++) {
+			AnimatedTransition animatedTransition = animatedTransitions.get(i);
+			LatLng origin = animatedTransition.getOriginClusterRelevantInputPoints().getMapPosition();
+			if (materializedBounds == null || materializedBounds.contains(origin)
+					|| materializedBounds.contains(animatedTransition.getDestinationClusterPoint().getMapPosition())) {
+				positions[i] = origin;
+			}
+		}
+		for (int i = 0; i < stationaryClusterCount; i++) {
+			LatLng position = stationaryClusters.get(i).getMapPosition();
+			if (materializedBounds == null || materializedBounds.contains(position)) {
+				positions[animatedTransitionCount + i] = position;
+			}
+		}
+
+		CameraPosition cameraPosition = map.getCameraPosition();
+		markerInsertionQueue.start(positions, cameraPosition != null ? cameraPosition.target : null, options.getMarkerInsertionFrameBudget());
+	}
+
+	/**
+	 * @see com.twotoasters.clusterkraf.MarkerInsertionQueue.Host#onMarkerBatchStarting()
+	 */
+	@Override
+	public void onMarkerBatchStarting() {
+		batchMarkersAdded = 0;
+		batchStartNanos = System.nanoTime();
+	}
+
+	/**
+	 * @see com.twotoasters.clusterkraf.MarkerInsertionQueue.Host#onInsertMarker(int)
+	 */
+	@Override
+	public void onInsertMarker(int index) {
+		GoogleMap map = mapRef.get();
+		Options options = optionsRef.get();
+		if (map == null || options == null || state == null) {
+			return;
+		}
+		MarkerOptionsChooser moc = options.getMarkerOptionsChooser();
+		int animatedTransitionCount = animatedMarkers.length;
+		if (index < animatedTransitionCount) {
+			AnimatedTransition animatedTransition = state.getTransitions().get(index);
+			Marker marker = addMarker(map, moc, animatedTransition.getOriginClusterRelevantInputPoints());
+			marker.setPosition(state.getPosition(index));
+			animatedMarkers[index] = marker;
+			animatedTransitionsByMarker.put(marker, animatedTransition);
+		} else {
+			ClusterPoint stationaryCluster = transitions.stationary.get(index - animatedTransitionCount);
+			Marker marker = addMarker(map, moc, stationaryCluster);
+			stationaryMarkers[index - animatedTransitionCount] = marker;
+			stationaryTransitionsByMarker.put(marker, stationaryCluster);
+		}
+		batchMarkersAdded++;
+	}
+
+	/**
+	 * @see com.twotoasters.clusterkraf.MarkerInsertionQueue.Host#onMarkerBatchInserted(boolean)
+	 */
+	@Override
+	public void onMarkerBatchInserted(boolean finished) {
+		Options options = optionsRef.get();
+		if (options != null) {
+			reportMarkersUpdated(options, batchMarkersAdded, 0, batchStartNanos);
+		}
+	}
+
 	/**
 	 * The Host must call this after it plots its cluster points so that the
 	 * stationary and animated transition markers can be removed.
 	 */
 	void onHostPlottedDestinationClusterPoints() {
+		markerInsertionQueue.cancel();
+		long start = System.nanoTime();
+		int markersRemoved = 0;
 		if (animatedMarkers != null && animatedMarkers.length > 0) {
 			for (Marker marker : animatedMarkers) {
-				marker.remove();
+				if (marker != null) {
+					marker.remove();
+					markersRemoved++;
+				}
 			}
 			animatedMarkers = null;
 		}
 
 		if (stationaryMarkers != null && stationaryMarkers.length > 0) {
 			for (Marker marker : stationaryMarkers) {
-				marker.remove();
+				if (marker != null) {
+					marker.remove();
+					markersRemoved++;
+				}
 			}
 			stationaryMarkers = null;
 		}
 
+		Options options = optionsRef.get();
+		if (options != null) {
+			reportMarkersUpdated(options, 0, markersRemoved, start);
+		}
+
 		state = null;
 		transitions = null;
 		animatedTransitionsByMarker.clear();
@@ -236,6 +419,27 @@ class ClusterTransitionsAnimation implements AnimatorListener, AnimatorUpdateLis
 		animator = null;
 	}
 
+	/**
+	 * @return the region outside of which clusters get no markers when
+	 *         Options.isMarkerVirtualization() is enabled, otherwise null
+	 */
+	private LatLngBounds getMaterializedBounds(GoogleMap map, Options options) {
+		if (options.isMarkerVirtualization()) {
+			VisibleRegion visibleRegion = map.getProjection().getVisibleRegion();
+			if (visibleRegion != null) {
+				return ClustersBuilder.getExpandedBounds(visibleRegion.latLngBounds, options.getMarkerVirtualizationMargin());
+			}
+		}
+		return null;
+	}
+
+	private void reportMarkersUpdated(Options options, int markersAdded, int markersRemoved, long startNanos) {
+		Clusterkraf.MetricsListener metricsListener = options.getMetricsListener();
+		if (metricsListener != null && (markersAdded > 0 || markersRemoved > 0)) {
+			metricsListener.onMarkersUpdated(markersAdded, markersRemoved, System.nanoTime() - startNanos);
+		}
+	}
+
 	private Marker addMarker(GoogleMap map, MarkerOptionsChooser moc, ClusterPoint clusterPoint) {
 		MarkerOptions mo = new MarkerOptions();
 		mo.position(clusterPoint.getMapPosition());
@@ -0,0 +1,83 @@
+package com.twotoasters.clusterkraf;
+
+/**
+ * Counts and timings from a single clustering pass, reported to
+ * Clusterkraf.MetricsListener when the pass is delivered. Times are in
+ * nanoseconds of System.nanoTime().
+ */
+public class ClusteringMetrics {
+
+	int pointCount;
+	int relevantPointCount;
+	int clusterCount;
+	int transitionCount;
+	long boundsFilteringNanos;
+	long clusteringNanos;
+	long transitionBuildingNanos;
+	long passNanos;
+
+	ClusteringMetrics() {
+	}
+
+	/**
+	 * @return the number of InputPoint objects the pass was given
+	 */
+	public int getPointCount() {
+		return pointCount;
+	}
+
+	/**
+	 * @return the number of InputPoint objects inside the expanded visible
+	 *         region, which are the ones that were clustered
+	 */
+	public int getRelevantPointCount() {
+		return relevantPointCount;
+	}
+
+	/**
+	 * @return the number of clusters the pass produced
+	 */
+	public int getClusterCount() {
+		return clusterCount;
+	}
+
+	/**
+	 * @return the number of animated transitions built, or 0 if the pass did
+	 *         not build transitions
+	 */
+	public int getTransitionCount() {
+		return transitionCount;
+	}
+
+	/**
+	 * @return the time spent finding and projecting the InputPoint objects
+	 *         inside the expanded visible region. When the cluster hierarchy
+	 *         is precomputed, this is included in the clustering time.
+	 */
+	public long getBoundsFilteringNanos() {
+		return boundsFilteringNanos;
+	}
+
+	/**
+	 * @return the time spent clustering, including building the cluster
+	 *         hierarchy when it had to be built
+	 */
+	public long getClusteringNanos() {
+		return clusteringNanos;
+	}
+
+	/**
+	 * @return the time spent building transitions from the previous clusters
+	 */
+	public long getTransitionBuildingNanos() {
+		return transitionBuildingNanos;
+	}
+
+	/**
+	 * @return the time the pass spent on the background thread
+	 */
+	public long getPassNanos() {
+		return passNanos;
+	}
+
+}
@@ -22,11 +22,13 @@ class ClusteringOnCameraChangeListener implements OnCameraChangeListener {
 
 	@Override
 	public void onCameraChange(CameraPosition newPosition) {
-		long now = System.currentTimeMillis();
-		long notDirtyAfter = now - options.getClusteringOnCameraChangeListenerDirtyLifetimeMillis();
-		if (dirty < notDirtyAfter) {
-			Host host = hostRef.get();
-			if (host != null) {
+		Host host = hostRef.get();
+		if (host != null) {
+			host.onCameraMoved();
+
+			long now = System.currentTimeMillis();
+			long notDirtyAfter = now - options.getClusteringOnCameraChangeListenerDirtyLifetimeMillis();
+			if (dirty < notDirtyAfter) {
 				dirty = now;
 				host.onClusteringCameraChange();
 			}
@@ -39,6 +41,12 @@ class ClusteringOnCameraChangeListener implements OnCameraChangeListener {
 
 	interface Host {
 		void onClusteringCameraChange();
+
+		/**
+		 * Called on every camera change, even those too soon after the last
+		 * one to trigger clustering
+		 */
+		void onCameraMoved();
 	}
 
 }
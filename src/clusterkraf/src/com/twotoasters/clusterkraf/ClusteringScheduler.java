@@ -0,0 +1,229 @@
+package com.twotoasters.clusterkraf;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs clustering passes one at a time on a single background lane.
+ *
+ * Scheduling a pass replaces any pass that has not started yet (latest wins)
+ * and cancels the pass in flight, which notices at its next cancellation check
+ * and stops early. So that a stream of new passes cannot starve the lane, a
+ * pass in flight that has already run longer than MAX_SUPERSEDED_RUN_NANOS is
+ * allowed to finish instead; its result is delivered, the newer passes built
+ * against the state it replaces are cancelled, and the Host is asked to
+ * schedule a fresh one. Every pass that is not cancelled ends with a delivery
+ * to the Host on the main thread, even if it produced no result or failed.
+ */
+class ClusteringScheduler {
+
+	private static final String TAG = "Clusterkraf";
+
+	/**
+	 * how long a pass may have been running when it is superseded and still
+	 * be allowed to finish
+	 */
+	private static final long MAX_SUPERSEDED_RUN_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private static final Executor LANE = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+					runnable.run();
+				}
+			}, "Clusterkraf clustering");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final WeakReference<Host> hostRef;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	private final AtomicReference<Request> pending = new AtomicReference<Request>();
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * passes of this generation or older were cancelled outright and are
+	 * never delivered
+	 */
+	private volatile int cancelledThrough;
+
+	/**
+	 * only accessed on the main thread
+	 */
+	private boolean busy;
+
+	private final Runnable drain = new Runnable() {
+
+		@Override
+		public void run() {
+			final Request request = pending.getAndSet(null);
+			if (request != null && request.isCancelled() == false) {
+				request.start();
+				ClusteringTask.Result result = null;
+				try {
+					result = ClusteringTask.run(request.argument, request);
+				} catch (RuntimeException e) {
+					/**
+					 * letting it escape would kill the lane thread, and on
+					 * Android the process with it
+					 */
+					Log.e(TAG, "clustering pass failed", e);
+				}
+				/**
+				 * a pass that returns null without being cancelled, or throws,
+				 * is still delivered with a null result so the main thread
+				 * stops waiting on it
+				 */
+				if (request.isCancelled() == false) {
+					final ClusteringTask.Result delivered = result;
+					handler.post(new Runnable() {
+
+						@Override
+						public void run() {
+							deliver(request, delivered);
+						}
+					});
+				}
+			}
+		}
+	};
+
+	ClusteringScheduler(Host host) {
+		this.hostRef = new WeakReference<Host>(host);
+	}
+
+	/**
+	 * Schedule a clustering pass, superseding any pass that is pending or in
+	 * flight. Must be called on the main thread.
+	 *
+	 * @param argument
+	 */
+	void schedule(ClusteringTask.Argument argument) {
+		Request request = new Request(argument, generation.incrementAndGet());
+		busy = true;
+		if (pending.getAndSet(request) == null) {
+			LANE.execute(drain);
+		}
+	}
+
+	/**
+	 * Cancel any pending or in-flight pass. Must be called on the main thread.
+	 */
+	void cancel() {
+		cancelledThrough = generation.incrementAndGet();
+		pending.set(null);
+		busy = false;
+	}
+
+	/**
+	 * @return true if a scheduled pass has not yet been delivered or
+	 *         cancelled, otherwise false
+	 */
+	boolean isBusy() {
+		return busy;
+	}
+
+	private void deliver(Request request, ClusteringTask.Result result) {
+		if (request.generation == generation.get()) {
+			busy = false;
+			Host host = hostRef.get();
+			if (host != null) {
+				host.onClusteringPassFinished(result);
+			}
+		} else if (request.isCancelled() == false) {
+			/**
+			 * the pass finished after being superseded; the newer passes were
+			 * built against the clusters its result replaces
+			 */
+			cancel();
+			Host host = hostRef.get();
+			if (host != null) {
+				host.onClusteringPassFinished(result);
+				host.onClusteringPassOutdated();
+			}
+		}
+	}
+
+	private class Request implements Cancellation {
+
+		private final ClusteringTask.Argument argument;
+		private final int generation;
+
+		private long startNanos;
+		private boolean started;
+		private boolean cancelled;
+		private boolean finishing;
+
+		private Request(ClusteringTask.Argument argument, int generation) {
+			this.argument = argument;
+			this.generation = generation;
+		}
+
+		private synchronized void start() {
+			startNanos = System.nanoTime();
+			started = true;
+		}
+
+		/**
+		 * Once a superseded pass is cancelled it stays cancelled, and once it
+		 * is allowed to finish it stays finishing, unless the scheduler
+		 * itself is cancelled.
+		 */
+		@Override
+		public synchronized boolean isCancelled() {
+			if (cancelled || generation <= cancelledThrough) {
+				cancelled = true;
+			} else if (finishing == false && generation != ClusteringScheduler.this.generation.get()) {
+				if (started && System.nanoTime() - startNanos > MAX_SUPERSEDED_RUN_NANOS) {
+					finishing = true;
+				} else {
+					cancelled = true;
+				}
+			}
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Polled by long-running loops so they can stop early once their pass has
+	 * been superseded
+	 */
+	interface Cancellation {
+		boolean isCancelled();
+	}
+
+	interface Host {
+		/**
+		 * Called on the main thread when the most recently scheduled pass, or
+		 * a superseded pass that was allowed to finish, is done
+		 * 
+		 * @param result
+		 *            the Result, or null if the pass could not produce one
+		 */
+		void onClusteringPassFinished(ClusteringTask.Result result);
+
+		/**
+		 * Called on the main thread after a superseded pass was delivered in
+		 * place of the newer ones, which were cancelled and should be
+		 * scheduled again
+		 */
+		void onClusteringPassOutdated();
+	}
+
+}
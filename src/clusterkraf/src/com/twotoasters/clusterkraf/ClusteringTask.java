@@ -1,70 +1,251 @@
 package com.twotoasters.clusterkraf;
 
+import java.io.File;
 import java.util.ArrayList;
-
-import android.os.AsyncTask;
-import android.os.Process;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import com.google.android.gms.maps.Projection;
-import com.twotoasters.clusterkraf.ClusteringTask.Argument;
-import com.twotoasters.clusterkraf.ClusteringTask.Result;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.VisibleRegion;
+import com.twotoasters.clusterkraf.util.Mercator;
 
 /**
- *
+ * The background work of a clustering pass: clustering the points, then
+ * optionally building the transitions from the previous clusters. Run by the
+ * ClusteringScheduler.
  */
-public class ClusteringTask extends AsyncTask<Argument, Void, Result> {
-
-	private final Host host;
+class ClusteringTask {
 
-	ClusteringTask(Host host) {
-		this.host = host;
+	private ClusteringTask() {
 	}
 
 	/**
-	 * @see android.os.AsyncTask#doInBackground(Params[])
+	 * @param arg
+	 * @param cancellation
+	 *            checked between and during the steps of the pass
+	 * @return the Result, or null if the pass was cancelled
 	 */
-	@Override
-	protected Result doInBackground(Argument... args) {
+	static Result run(Argument arg, ClusteringScheduler.Cancellation cancellation) {
+		long passStart = System.nanoTime();
 		Result result = new Result();
-		if (args != null && args.length == 1) {
-			Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+		ClusteringMetrics metrics = new ClusteringMetrics();
+		if (arg.options.isPrecomputeClusterHierarchy() && arg.clusterHierarchy == null && arg.clusterHierarchySnapshot != null) {
+			loadSnapshot(arg);
+		}
+		metrics.pointCount = arg.rows.length;
+		if (arg.options.isPrecomputeClusterHierarchy()) {
+			ClusterHierarchy clusterHierarchy = arg.clusterHierarchy;
+			BitSet hiddenPositions = arg.hiddenPositions;
+			if (clusterHierarchy == null) {
+				double worldPixelSize = Mercator.worldPixelSizeAtZoomZero(arg.projection, arg.cameraPosition);
+				clusterHierarchy = new ClusterHierarchy(arg.store, withHiddenRows(arg.rows, arg.hiddenRows), arg.options, worldPixelSize);
+			}
+			if (hiddenPositions == null && arg.hiddenRows != null) {
+				hiddenPositions = clusterHierarchy.getPositions(arg.hiddenRows);
+			}
+			VisibleRegion visibleRegion = arg.projection.getVisibleRegion();
+			LatLngBounds bounds = visibleRegion != null ? ClustersBuilder.getExpandedBounds(visibleRegion.latLngBounds, arg.options) : null;
+			result.currentClusters = clusterHierarchy.getClusters(bounds, arg.cameraPosition != null ? arg.cameraPosition.zoom : 0, hiddenPositions);
+			result.clusterHierarchy = clusterHierarchy;
+			metrics.clusteringNanos = System.nanoTime() - passStart;
+			countRelevantPoints(result.currentClusters, metrics);
+		} else if (arg.options.isPointThinning()) {
+			ThinnedPoints thinnedPoints = arg.thinnedPoints;
+			MercatorPoints mercatorPoints = getMercatorPoints(arg);
+			if (thinnedPoints == null || thinnedPoints.size() != arg.rows.length) {
+				double worldPixelSize = Mercator.worldPixelSizeAtZoomZero(arg.projection, arg.cameraPosition);
+				thinnedPoints = new ThinnedPoints(arg.rows, mercatorPoints, worldPixelSize, arg.options.getPointThinningCellSize());
+			}
+			ThinnedPoints.Level level = thinnedPoints.getLevel(arg.cameraPosition != null ? arg.cameraPosition.zoom : 0, cancellation);
+			if (level == null) {
+				return null;
+			}
+			MercatorScreenProjection screenProjection = null;
+			if (arg.options.isMercatorScreenPositions()) {
+				screenProjection = new MercatorScreenProjection(arg.projection, arg.cameraPosition);
+			}
+			// previous clusters hold every point, so they are not re-added
+			ClustersBuilder builder = new ClustersBuilder(arg.projection, screenProjection, arg.store, arg.options, null);
+			builder.setCancellation(cancellation);
+			long addStart = System.nanoTime();
+			builder.addRepresentatives(level, mercatorPoints);
+			result.currentClusters = build(builder, addStart, metrics);
+			countRelevantPoints(result.currentClusters, metrics);
+			result.thinnedPoints = thinnedPoints;
+			result.mercatorPoints = mercatorPoints;
+		} else if (arg.options.isMercatorScreenPositions()) {
+			MercatorPoints mercatorPoints = getMercatorPoints(arg);
+			MercatorScreenProjection screenProjection = new MercatorScreenProjection(arg.projection, arg.cameraPosition);
+			ClustersBuilder builder = new ClustersBuilder(arg.projection, screenProjection, arg.store, arg.options, arg.previousClusters);
+			builder.setCancellation(cancellation);
+			long addStart = System.nanoTime();
+			builder.addAll(arg.rows, arg.rows.length, mercatorPoints);
+			result.currentClusters = build(builder, addStart, metrics);
+			result.mercatorPoints = mercatorPoints;
+		} else {
+			ClustersBuilder builder = new ClustersBuilder(arg.projection, arg.store, arg.options, arg.previousClusters);
+			builder.setCancellation(cancellation);
+			long addStart = System.nanoTime();
+			builder.addAll(arg.rows, arg.rows.length);
+			result.currentClusters = build(builder, addStart, metrics);
+		}
+		result.store = arg.store;
+		result.projection = arg.projection;
+		result.pointsVersion = arg.pointsVersion;
 
-			Argument arg = args[0];
-			ClustersBuilder builder = new ClustersBuilder(arg.projection, arg.options, arg.previousClusters);
-			builder.addAll(new ArrayList<InputPoint>(arg.points));
-			result.currentClusters = builder.build();
-			result.projection = arg.projection;
+		if (cancellation.isCancelled() || result.currentClusters == null) {
+			return null;
+		}
+
+		metrics.clusterCount = result.currentClusters.size();
 
-			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		if (arg.buildTransitions) {
+			long transitionsStart = System.nanoTime();
+			ClusterTransitions.Builder ctb = new ClusterTransitions.Builder(arg.projection, arg.previousClusters);
+			for (ClusterPoint currentClusterPoint : result.currentClusters) {
+				if (cancellation.isCancelled()) {
+					return null;
+				}
+				ctb.add(currentClusterPoint);
+			}
+			result.clusterTransitions = ctb.build();
+			metrics.transitionCount = result.clusterTransitions.animated.size();
+			metrics.transitionBuildingNanos = System.nanoTime() - transitionsStart;
 		}
+		metrics.passNanos = System.nanoTime() - passStart;
+		result.metrics = metrics;
 		return result;
 	}
 
 	/**
-	 * @see android.os.AsyncTask#onPostExecute(Object)
+	 * Load the cluster hierarchy from the pass's snapshot, taking the pass's
+	 * points from it too if it has none of its own. A snapshot that cannot be
+	 * used is ignored, and the hierarchy is built as usual.
+	 */
+	private static void loadSnapshot(Argument arg) {
+		double worldPixelSize = Mercator.worldPixelSizeAtZoomZero(arg.projection, arg.cameraPosition);
+		if (arg.pointsFromSnapshot) {
+			ClusterHierarchy clusterHierarchy = ClusterHierarchy.readSnapshot(arg.clusterHierarchySnapshot, arg.store.getTagLookup(), arg.options,
+					worldPixelSize);
+			if (clusterHierarchy != null) {
+				InputPointStore store = clusterHierarchy.getStore();
+				arg.store = store;
+				arg.storeSize = store.size();
+				arg.rows = new int[store.size()];
+				for (int row = 0; row < arg.rows.length; row++) {
+					arg.rows[row] = row;
+				}
+				arg.clusterHierarchy = clusterHierarchy;
+			}
+		} else {
+			arg.clusterHierarchy = ClusterHierarchy.readSnapshot(arg.clusterHierarchySnapshot, arg.store, arg.rows, arg.options, worldPixelSize);
+		}
+	}
+
+	/**
+	 * @return the rows followed by the hidden rows, so that a cluster
+	 *         hierarchy built from them can show the hidden rows again
+	 *         without being rebuilt
+	 */
+	static int[] withHiddenRows(int[] rows, BitSet hiddenRows) {
+		if (hiddenRows == null || hiddenRows.isEmpty()) {
+			return rows;
+		}
+		int[] allRows = Arrays.copyOf(rows, rows.length + hiddenRows.cardinality());
+		int count = rows.length;
+		for (int row = hiddenRows.nextSetBit(0); row >= 0; row = hiddenRows.nextSetBit(row + 1)) {
+			allRows[count++] = row;
+		}
+		return allRows;
+	}
+
+	/**
+	 * @return the world coordinates of every row of the store the pass knows
+	 *         about, extending those of earlier passes rather than starting
+	 *         over
 	 */
-	@Override
-	protected void onPostExecute(Result result) {
-		super.onPostExecute(result);
-		if (isCancelled() == false && result != null && host != null) {
-			host.onClusteringTaskPostExecute(result);
+	private static MercatorPoints getMercatorPoints(Argument arg) {
+		MercatorPoints mercatorPoints = arg.mercatorPoints;
+		if (mercatorPoints == null || mercatorPoints.size() < arg.storeSize) {
+			mercatorPoints = new MercatorPoints(arg.store.getColumns(), arg.storeSize, mercatorPoints);
+		}
+		return mercatorPoints;
+	}
+
+	private static void countRelevantPoints(ArrayList<ClusterPoint> clusters, ClusteringMetrics metrics) {
+		if (clusters != null) {
+			metrics.relevantPointCount = 0;
+			for (ClusterPoint clusterPoint : clusters) {
+				metrics.relevantPointCount += clusterPoint.size();
+			}
 		}
 	}
 
+	/**
+	 * Build the clusters, recording the time spent adding points (which began
+	 * at addStart) and clustering them
+	 */
+	private static ArrayList<ClusterPoint> build(ClustersBuilder builder, long addStart, ClusteringMetrics metrics) {
+		long buildStart = System.nanoTime();
+		metrics.boundsFilteringNanos = buildStart - addStart;
+		metrics.relevantPointCount = builder.getRelevantPointCount();
+		ArrayList<ClusterPoint> clusters = builder.build();
+		metrics.clusteringNanos = System.nanoTime() - buildStart;
+		return clusters;
+	}
+
 	static class Argument {
 		Projection projection;
 		Options options;
-		ArrayList<InputPoint> points;
+		InputPointStore store;
+		/**
+		 * the rows of store to cluster
+		 */
+		int[] rows;
+		/**
+		 * the number of rows store had when the pass was scheduled
+		 */
+		int storeSize;
 		ArrayList<ClusterPoint> previousClusters;
+		CameraPosition cameraPosition;
+		ClusterHierarchy clusterHierarchy;
+		MercatorPoints mercatorPoints;
+		ThinnedPoints thinnedPoints;
+		int pointsVersion;
+		boolean buildTransitions;
+		/**
+		 * the snapshot to load clusterHierarchy from if it is null, or null
+		 */
+		File clusterHierarchySnapshot;
+		/**
+		 * rows of store the filter hides, by row, which a cluster hierarchy
+		 * covers without showing them; or null
+		 */
+		BitSet hiddenRows;
+		/**
+		 * the positions of hiddenRows in clusterHierarchy, or null to find
+		 * them from hiddenRows
+		 */
+		BitSet hiddenPositions;
+		/**
+		 * whether store is a placeholder, and the points are to be loaded
+		 * from clusterHierarchySnapshot into a store of their own
+		 */
+		boolean pointsFromSnapshot;
 	}
 
 	static class Result {
+		InputPointStore store;
 		Projection projection;
 		ArrayList<ClusterPoint> currentClusters;
-	}
-
-	interface Host {
-		void onClusteringTaskPostExecute(Result result);
+		ClusterHierarchy clusterHierarchy;
+		MercatorPoints mercatorPoints;
+		ThinnedPoints thinnedPoints;
+		int pointsVersion;
+		ClusterTransitions clusterTransitions;
+		ClusteringMetrics metrics;
 	}
 
 }
@@ -1,14 +1,25 @@
 package com.twotoasters.clusterkraf;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import android.annotation.SuppressLint;
-import android.os.AsyncTask;
-import android.os.Build;
+import android.graphics.Point;
 import android.os.Handler;
+import android.os.Process;
 
 import com.google.android.gms.maps.CameraUpdate;
 import com.google.android.gms.maps.CameraUpdateFactory;
@@ -17,14 +28,45 @@ import com.google.android.gms.maps.GoogleMap.CancelableCallback;
 import com.google.android.gms.maps.GoogleMap.OnInfoWindowClickListener;
 import com.google.android.gms.maps.GoogleMap.OnMarkerClickListener;
 import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.VisibleRegion;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.twotoasters.clusterkraf.util.Mercator;
 
 /**
  * Clusters InputPoint objects on a GoogleMap
  */
 public class Clusterkraf {
 
+	/**
+	 * how many rows of the store must have been removed, and at least half
+	 * of them, before the rows still in use are copied into a new store
+	 */
+	private static final int MIN_RECLAIMED_ROWS = 1024;
+
+	/**
+	 * builds and writes cluster hierarchy snapshots one at a time, apart from
+	 * the clustering lane so that saving never holds up a clustering pass
+	 */
+	private static final Executor SNAPSHOT_WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "Clusterkraf snapshot");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	private final WeakReference<GoogleMap> mapRef;
 	private final Options options;
 	private final ClusterTransitionsAnimation transitionsAnimation;
@@ -33,15 +75,112 @@ public class Clusterkraf {
 
 	private ClusterkrafInfoWindowAdapter mClusterkrafInfoWindowAdapter;
 
-	private final ArrayList<InputPoint> points = new ArrayList<InputPoint>();
+	/**
+	 * where the points are kept, replaced by clear(), and by a copy of the
+	 * rows still in use once enough have been removed
+	 */
+	private InputPointStore store;
+	/**
+	 * the rows of store being clustered
+	 */
+	private final RowSet liveRows = new RowSet();
 	private ArrayList<ClusterPoint> currentClusters;
-	private ArrayList<Marker> currentMarkers;
+	private HashSet<Marker> currentMarkers;
 	private HashMap<Marker, ClusterPoint> currentClusterPointsByMarker = new HashMap<Marker, ClusterPoint>();
-	private HashMap<BasePoint, Marker> currentMarkerByBasePoints = new HashMap<BasePoint, Marker>();
+	private IdentityHashMap<ClusterPoint, Marker> currentMarkersByClusterPoint = new IdentityHashMap<ClusterPoint, Marker>();
 	private ArrayList<ClusterPoint> previousClusters;
-	private ArrayList<Marker> previousMarkers;
-	private BaseClusteringTaskHost clusteringTaskHost;
-	private ClusterTransitionsBuildingTaskHost clusterTransitionsBuildingTaskHost;
+	private HashSet<Marker> previousMarkers;
+	private final ClusteringScheduler clusteringScheduler;
+	private final MarkerInsertionQueue markerInsertionQueue;
+
+	/**
+	 * the clusters whose markers markerInsertionQueue is adding when
+	 * Options.isBatchedMarkerInsertion() is enabled
+	 */
+	private ArrayList<ClusterPoint> queuedClusters;
+	/**
+	 * whether transitionsAnimation is waiting for markerInsertionQueue to add
+	 * the destination markers before it clears its own
+	 */
+	private boolean transitionMarkersPendingRemoval;
+
+	/**
+	 * precomputed clusters for every zoom level, used when
+	 * Options.isPrecomputeClusterHierarchy() is enabled and discarded whenever
+	 * the points change, but not when the filter does
+	 */
+	private ClusterHierarchy clusterHierarchy;
+	/**
+	 * world coordinates of the rows of store, used when
+	 * Options.isMercatorScreenPositions() or Options.isPointThinning() is
+	 * enabled; rows never change, so they are only discarded with the store
+	 */
+	private MercatorPoints mercatorPoints;
+	/**
+	 * points binned per zoom level, used when Options.isPointThinning() is
+	 * enabled and discarded whenever the points change
+	 */
+	private ThinnedPoints thinnedPoints;
+	private int pointsVersion;
+
+	/**
+	 * the snapshot the next clustering pass loads clusterHierarchy from,
+	 * until a pass is delivered or the points change
+	 */
+	private File clusterHierarchySnapshot;
+	/**
+	 * whether store is a placeholder for the points in
+	 * clusterHierarchySnapshot, which replace it once loaded
+	 */
+	private boolean pointsFromSnapshot;
+
+	/**
+	 * the points passed to setFilterablePoints(), indexed for setFilter();
+	 * discarded by clear()
+	 */
+	private PointFilterIndex filterIndex;
+
+	/**
+	 * the rows filterIndex hides, by row, when
+	 * Options.isPrecomputeClusterHierarchy() is enabled; clusterHierarchy
+	 * covers them too, so changing the filter only changes what it shows
+	 */
+	private BitSet filterHiddenRows;
+	/**
+	 * the positions of filterHiddenRows in clusterHierarchy, kept in step
+	 * with both; null while clusterHierarchy is
+	 */
+	private BitSet filterHiddenPositions;
+
+	/**
+	 * index of currentClusters used to add points incrementally; discarded
+	 * whenever currentClusters is replaced
+	 */
+	private ClusterPointGrid currentClustersGrid;
+
+	/**
+	 * the current ClusterPoint containing each row, including clusters without
+	 * a marker, used to find the marker of an InputPoint and to remove points
+	 * incrementally; discarded whenever currentClusters is replaced
+	 */
+	private RowMap<ClusterPoint> currentClusterPointsByRow;
+
+	/**
+	 * rows shown and hidden by filter changes made while a clustering pass,
+	 * transition or marker batch was in progress, applied to the current
+	 * clusters in place once it is done; discarded whenever a new pass is
+	 * scheduled, as it clusters every point
+	 */
+	private BitSet pendingAddedRows;
+	private BitSet pendingRemovedRows;
+
+	/**
+	 * markers added and removed since beginMarkerUpdate(), reported to the
+	 * MetricsListener by endMarkerUpdate()
+	 */
+	private int markersAdded;
+	private int markersRemoved;
+	private long markerUpdateStartNanos;
 
 	/**
 	 * Construct a Clusterkraf instance to manage your map with customized
@@ -53,196 +192,1283 @@ public class Clusterkraf {
 	 *            Customized options
 	 */
 	public Clusterkraf(final GoogleMap map, final Options options, final ArrayList<InputPoint> points) {
+		this(map, options, points, null);
+	}
+
+	/**
+	 * Construct a Clusterkraf instance to manage your map with customized
+	 * options and a list of points, taking the first clusters from a snapshot
+	 * written by saveClusterHierarchySnapshot() instead of clustering the
+	 * points again. The first clustering pass loads the snapshot off the main
+	 * thread, and only uses it when Options.isPrecomputeClusterHierarchy() is
+	 * enabled and it was saved for the same points, in the same order, and
+	 * the same options; otherwise the clusters are built as usual.
+	 * 
+	 * @param map
+	 *            The GoogleMap to be managed by Clusterkraf
+	 * @param options
+	 *            Customized options
+	 * @param clusterHierarchySnapshot
+	 *            the snapshot file, or null
+	 */
+	public Clusterkraf(final GoogleMap map, final Options options, final ArrayList<InputPoint> points, final File clusterHierarchySnapshot) {
+		this(map, options, new InputPointStore(points != null ? points.size() : 0), points, clusterHierarchySnapshot, false);
+	}
+
+	/**
+	 * Construct a Clusterkraf instance to manage your map with customized
+	 * options and every row of an InputPointStore, which keeps large sets of
+	 * points in far less memory than InputPoint objects do
+	 * 
+	 * @param map
+	 *            The GoogleMap to be managed by Clusterkraf
+	 * @param options
+	 *            Customized options
+	 * @param store
+	 *            the points; add() and addAll() append to it until enough
+	 *            points are removed that the rest are copied into a store of
+	 *            this Clusterkraf's own
+	 */
+	public Clusterkraf(final GoogleMap map, final Options options, final InputPointStore store) {
+		this(map, options, store, null);
+	}
+
+	/**
+	 * Construct a Clusterkraf instance to manage your map with customized
+	 * options and every row of an InputPointStore, drawing the first clusters
+	 * from a snapshot as Clusterkraf(GoogleMap, Options, ArrayList, File)
+	 * does
+	 * 
+	 * @param map
+	 *            The GoogleMap to be managed by Clusterkraf
+	 * @param options
+	 *            Customized options
+	 * @param store
+	 *            the points; add() and addAll() append to it until enough
+	 *            points are removed that the rest are copied into a store of
+	 *            this Clusterkraf's own
+	 * @param clusterHierarchySnapshot
+	 *            the snapshot file, or null
+	 */
+	public Clusterkraf(final GoogleMap map, final Options options, final InputPointStore store, final File clusterHierarchySnapshot) {
+		this(map, options, store != null ? store : new InputPointStore(), null, clusterHierarchySnapshot, false);
+	}
+
+	/**
+	 * Construct a Clusterkraf instance to manage your map with customized
+	 * options and the points saved in a snapshot by
+	 * saveClusterHierarchySnapshot(), so that points which never change need
+	 * not be loaded and clustered on every launch. The first clustering pass
+	 * loads the points and their clusters off the main thread. If the
+	 * snapshot cannot be used, because Options.isPrecomputeClusterHierarchy()
+	 * is disabled or the snapshot is missing, corrupt or was saved with
+	 * different options, no points are shown; pass them to replace() instead.
+	 * Adding points before the snapshot has loaded cancels loading it.
+	 * 
+	 * @param map
+	 *            The GoogleMap to be managed by Clusterkraf
+	 * @param options
+	 *            Customized options
+	 * @param clusterHierarchySnapshot
+	 *            the snapshot file
+	 * @param tagLookup
+	 *            supplies the tags of the loaded points, by the ids they were
+	 *            saved with, or null
+	 */
+	public Clusterkraf(final GoogleMap map, final Options options, final File clusterHierarchySnapshot, final InputPointStore.TagLookup tagLookup) {
+		this(map, options, newPlaceholderStore(tagLookup), null, clusterHierarchySnapshot, true);
+	}
+
+	/**
+	 * @return an empty store whose TagLookup the points loaded from a snapshot
+	 *         are given, set before the first pass can read it
+	 */
+	private static InputPointStore newPlaceholderStore(final InputPointStore.TagLookup tagLookup) {
+		final InputPointStore store = new InputPointStore();
+		store.setTagLookup(tagLookup);
+		return store;
+	}
+
+	private Clusterkraf(final GoogleMap map, final Options options, final InputPointStore store, final ArrayList<InputPoint> points,
+			final File clusterHierarchySnapshot, final boolean pointsFromSnapshot) {
 		this.mapRef = new WeakReference<GoogleMap>(map);
 		this.options = options;
 		this.innerCallbackListener = new InnerCallbackListener(this);
 		this.transitionsAnimation = new ClusterTransitionsAnimation(map, options, innerCallbackListener);
+		this.clusteringScheduler = new ClusteringScheduler(innerCallbackListener);
+		this.markerInsertionQueue = new MarkerInsertionQueue(innerCallbackListener);
+
+		this.store = store;
+		addStoreRows();
+		if (points != null) {
+			addPoints(points);
+		}
+
+		if (map != null) {
+			map.setOnCameraChangeListener(innerCallbackListener.clusteringOnCameraChangeListener);
+			map.setOnMarkerClickListener(innerCallbackListener);
+			map.setOnInfoWindowClickListener(innerCallbackListener);
+		}
+
+		if (clusterHierarchySnapshot != null && options.isPrecomputeClusterHierarchy()) {
+			this.clusterHierarchySnapshot = clusterHierarchySnapshot;
+			this.pointsFromSnapshot = pointsFromSnapshot;
+		}
+		showAllClusters();
+	}
+
+	public void setClusterkrafInfoWindowAdapter(final ClusterkrafInfoWindowAdapter clusterkrafInfoWindowAdapter) {
+		mClusterkrafInfoWindowAdapter = clusterkrafInfoWindowAdapter;
+		final GoogleMap map = mapRef.get();
+		if (map != null) {
+			map.setInfoWindowAdapter(clusterkrafInfoWindowAdapter);
+		}
+	}
+
+	/**
+	 * Add a single InputPoint for clustering
+	 * 
+	 * @param inputPoint
+	 *            The InputPoint object to be clustered
+	 */
+	public void add(final InputPoint inputPoint) {
+		if (inputPoint != null) {
+			final ArrayList<InputPoint> inputPoints = new ArrayList<InputPoint>(1);
+			inputPoints.add(inputPoint);
+			addAll(inputPoints);
+		}
+	}
+
+	/**
+	 * Add a list of InputPoint objects for clustering
+	 * 
+	 * @param inputPoints
+	 *            The list of InputPoint objects for clustering
+	 */
+	public void addAll(final ArrayList<InputPoint> inputPoints) {
+		if (inputPoints != null) {
+			addRows(addPoints(inputPoints));
+		}
+	}
+
+	private void addRows(final RowList rows) {
+		onPointsChanged();
+		if (canUpdateIncrementally()) {
+			addToCurrentClusters(rows);
+		} else {
+			updateClustersAndTransition();
+		}
+	}
+
+	/**
+	 * Remove a single InputPoint
+	 * 
+	 * @param inputPoint
+	 *            The InputPoint object to remove
+	 */
+	public void remove(final InputPoint inputPoint) {
+		if (inputPoint != null) {
+			final ArrayList<InputPoint> inputPoints = new ArrayList<InputPoint>(1);
+			inputPoints.add(inputPoint);
+			removeAll(inputPoints);
+		}
+	}
+
+	/**
+	 * Remove a list of InputPoint objects
+	 * 
+	 * @param inputPoints
+	 *            The list of InputPoint objects to remove
+	 */
+	public void removeAll(final List<InputPoint> inputPoints) {
+		if (inputPoints != null) {
+			// includes rows the filter is hiding, so it never shows them again
+			final RowList removedRows = new RowList(inputPoints.size());
+			for (final InputPoint inputPoint : inputPoints) {
+				final int row = store.rowOf(inputPoint);
+				if (row >= 0) {
+					store.remove(row);
+					removedRows.add(row);
+				}
+			}
+			liveRows.removeAll(removedRows);
+			if (filterIndex != null) {
+				filterIndex.remove(removedRows);
+			}
+			if (filterHiddenRows != null) {
+				for (int i = 0; i < removedRows.size(); i++) {
+					filterHiddenRows.clear(removedRows.get(i));
+				}
+			}
+			onPointsChanged();
+			if (canUpdateIncrementally()) {
+				removeFromCurrentClusters(removedRows);
+				reclaimRemovedRows();
+			} else {
+				reclaimRemovedRows();
+				/**
+				 * the next pass must not carry the removed points over from
+				 * the previous clusters; a pass in flight may still be reading
+				 * the old list, so it is replaced rather than cleared
+				 */
+				if (currentClusters != null) {
+					replaceCurrentClusters();
+				}
+				updateClustersAndTransition();
+			}
+		}
+	}
+
+	/**
+	 * Remove all existing InputPoint objects and add a new list of InputPoint
+	 * objects for clustering
+	 * 
+	 * @param inputPoints
+	 *            The new list of InputPoint objects for clustering
+	 */
+	public void replace(final ArrayList<InputPoint> inputPoints) {
+		clear();
+		addAll(inputPoints);
+	}
+
+	/**
+	 * Remove all existing InputPoint objects and cluster every row of an
+	 * InputPointStore instead
+	 * 
+	 * @param store
+	 *            the new points; add() and addAll() append to it until
+	 *            enough points are removed that the rest are copied into a
+	 *            store of this Clusterkraf's own
+	 */
+	public void replace(final InputPointStore store) {
+		clear();
+		if (store != null) {
+			this.store = store;
+			mercatorPoints = null;
+			addRows(addStoreRows());
+		}
+	}
+
+	/**
+	 * Remove all existing InputPoint objects and add a new list of InputPoint
+	 * objects, indexed by time and category so that setFilter() can show and
+	 * hide them. All of them are shown until a filter is set. InputPoint
+	 * objects added later with add() or addAll() are not indexed and are not
+	 * affected by the filter.
+	 * 
+	 * @param inputPoints
+	 *            The new list of InputPoint objects for clustering
+	 */
+	public void setFilterablePoints(final ArrayList<InputPoint> inputPoints) {
+		clear();
+		if (inputPoints != null) {
+			final int[] rows = new int[inputPoints.size()];
+			int count = 0;
+			for (final InputPoint inputPoint : inputPoints) {
+				if (inputPoint != null && inputPoint.getMapPosition() != null && store.rowOf(inputPoint) < 0) {
+					rows[count++] = store.add(inputPoint);
+				}
+			}
+			filterIndex = new PointFilterIndex(store, Arrays.copyOf(rows, count));
+			final RowList filteredRows = filterIndex.getFilteredPoints();
+			for (int i = 0; i < filteredRows.size(); i++) {
+				liveRows.add(filteredRows.get(i));
+			}
+			addRows(filteredRows);
+		}
+	}
+
+	/**
+	 * Show only the InputPoint objects passed to setFilterablePoints() whose
+	 * time is from fromTime up to but not including toTime and whose category
+	 * is in categories. Only the points whose visibility changes are added or
+	 * removed, so moving a time window a little at a time stays cheap. They
+	 * are added to and removed from the current clusters in place, as
+	 * Options.isIncrementalPointUpdates() does for add() and remove(), whether
+	 * or not it is enabled; changes made while clustering, a transition or
+	 * marker insertion is in progress are applied once it is done. With
+	 * Options.isPrecomputeClusterHierarchy() enabled, the precomputed
+	 * clusters keep the hidden points, and are only queried again without
+	 * them rather than rebuilt.
+	 * 
+	 * @param fromTime
+	 * @param toTime
+	 * @param categories
+	 *            a bitmask with bit n set to show category n
+	 */
+	public void setFilter(final long fromTime, final long toTime, final long categories) {
+		if (filterIndex != null) {
+			final RowList added = new RowList();
+			final RowList removed = new RowList();
+			filterIndex.setFilter(fromTime, toTime, categories, added, removed);
+			if (added.isEmpty() == false || removed.isEmpty() == false) {
+				applyFilterChanges(added, removed);
+			}
+		}
+	}
+
+	/**
+	 * Show all of the InputPoint objects passed to setFilterablePoints()
+	 */
+	public void clearFilter() {
+		if (filterIndex != null) {
+			final RowList added = new RowList();
+			final RowList removed = new RowList();
+			filterIndex.clearFilter(added, removed);
+			if (added.isEmpty() == false || removed.isEmpty() == false) {
+				applyFilterChanges(added, removed);
+			}
+		}
+	}
+
+	private void applyFilterChanges(final RowList added, final RowList removed) {
+		/**
+		 * moving the last row into each removed row's place costs as much as
+		 * the number of rows removed rather than the number of rows
+		 */
+		for (int i = 0; i < removed.size(); i++) {
+			liveRows.remove(removed.get(i));
+		}
+		for (int i = 0; i < added.size(); i++) {
+			liveRows.add(added.get(i));
+		}
+		if (options.isPrecomputeClusterHierarchy()) {
+			hideInClusterHierarchy(added, removed);
+			if (removed.isEmpty() == false && currentClusters != null) {
+				replaceCurrentClusters();
+			}
+			updateClustersAndTransition();
+			return;
+		}
+		onPointsChanged();
+		if (canUpdateInPlace()) {
+			applyPendingPointChanges();
+			if (removed.isEmpty() == false) {
+				removeFromCurrentClusters(removed);
+			}
+			if (added.isEmpty() == false) {
+				addToCurrentClusters(added);
+			}
+		} else if (canUpdateInPlaceLater()) {
+			deferPointChanges(added, removed);
+		} else {
+			if (removed.isEmpty() == false && currentClusters != null) {
+				replaceCurrentClusters();
+			}
+			updateClustersAndTransition();
+		}
+	}
+
+	/**
+	 * Keep the rows the filter hides in the cluster hierarchy, marking them
+	 * hidden there, so that the next pass only queries the hierarchy again
+	 */
+	private void hideInClusterHierarchy(final RowList shown, final RowList hidden) {
+		if (filterHiddenRows == null) {
+			filterHiddenRows = new BitSet();
+			filterHiddenPositions = clusterHierarchy != null ? new BitSet() : null;
+		}
+		for (int i = 0; i < hidden.size(); i++) {
+			final int row = hidden.get(i);
+			filterHiddenRows.set(row);
+			if (filterHiddenPositions != null) {
+				final int position = clusterHierarchy.getPosition(row);
+				if (position >= 0) {
+					filterHiddenPositions.set(position);
+				}
+			}
+		}
+		for (int i = 0; i < shown.size(); i++) {
+			final int row = shown.get(i);
+			filterHiddenRows.clear(row);
+			if (filterHiddenPositions != null) {
+				final int position = clusterHierarchy.getPosition(row);
+				if (position >= 0) {
+					filterHiddenPositions.clear(position);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if points cannot be updated in place now, but can be once
+	 *         the clustering pass, transition or marker batch in progress is
+	 *         done, otherwise false
+	 */
+	private boolean canUpdateInPlaceLater() {
+		if (options.isPrecomputeClusterHierarchy() || mapRef.get() == null) {
+			return false;
+		}
+		return clusteringScheduler.isBusy()
+				|| (currentClusters != null && currentMarkers != null && (transitionsAnimation.isRunning() || markerInsertionQueue.isBusy()));
+	}
+
+	/**
+	 * Record filter changes to apply once the current clusters can be updated
+	 * in place, cancelling out a point that is hidden and shown again
+	 */
+	private void deferPointChanges(final RowList added, final RowList removed) {
+		if (pendingAddedRows == null) {
+			pendingAddedRows = new BitSet();
+			pendingRemovedRows = new BitSet();
+		}
+		for (int i = 0; i < removed.size(); i++) {
+			final int row = removed.get(i);
+			if (pendingAddedRows.get(row)) {
+				pendingAddedRows.clear(row);
+			} else {
+				pendingRemovedRows.set(row);
+			}
+		}
+		for (int i = 0; i < added.size(); i++) {
+			final int row = added.get(i);
+			if (pendingRemovedRows.get(row)) {
+				pendingRemovedRows.clear(row);
+			} else {
+				pendingAddedRows.set(row);
+			}
+		}
+	}
+
+	private void applyPendingPointChanges() {
+		if (pendingAddedRows != null && canUpdateInPlace()) {
+			final RowList added = toRowList(pendingAddedRows);
+			final RowList removed = toRowList(pendingRemovedRows);
+			discardPendingPointChanges();
+			if (removed.isEmpty() == false) {
+				removeFromCurrentClusters(removed);
+			}
+			if (added.isEmpty() == false) {
+				addToCurrentClusters(added);
+			}
+		}
+	}
+
+	private static RowList toRowList(final BitSet rows) {
+		final RowList rowList = new RowList(rows.cardinality());
+		for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+			rowList.add(row);
+		}
+		return rowList;
+	}
+
+	private void discardPendingPointChanges() {
+		pendingAddedRows = null;
+		pendingRemovedRows = null;
+	}
+
+	private void replaceCurrentClusters() {
+		currentClusters = new ArrayList<ClusterPoint>();
+		currentClustersGrid = null;
+		currentClusterPointsByRow = null;
+	}
+
+	/**
+	 * Remove all Clusterkraf-managed markers from the map
+	 */
+	public void clear() {
+		/**
+		 * cancel the background thread clustering pass
+		 */
+		cancelClustering();
+		cancelMarkerInsertion();
+
+		/**
+		 * we avoid GoogleMap.clear() so users can manage their own
+		 * non-clustered markers on the map.
+		 * 
+		 * @see http://code.google.com/p/gmaps-api-issues/issues/detail?id=4703
+		 */
+		beginMarkerUpdate();
+		if (currentMarkers != null) {
+			for (final Marker marker : currentMarkers) {
+				marker.remove();
+			}
+			markersRemoved += currentMarkers.size();
+		}
+		endMarkerUpdate();
+		currentMarkers = null;
+		currentClusters = null;
+		currentClustersGrid = null;
+		currentClusterPointsByRow = null;
+		currentClusterPointsByMarker = null;
+		currentMarkersByClusterPoint = null;
+		store = new InputPointStore();
+		liveRows.clear();
+		mercatorPoints = null;
+		filterIndex = null;
+		filterHiddenRows = null;
+		discardPendingPointChanges();
+		onPointsChanged();
+	}
+
+	/**
+	 * Append InputPoint objects to the store and start clustering their rows.
+	 * Points without a map position, or already in the store, whether being
+	 * clustered or hidden by the filter, are skipped.
+	 * 
+	 * @return the rows added
+	 */
+	private RowList addPoints(final List<InputPoint> inputPoints) {
+		final RowList rows = new RowList(inputPoints.size());
+		for (final InputPoint inputPoint : inputPoints) {
+			if (inputPoint != null && inputPoint.getMapPosition() != null && store.rowOf(inputPoint) < 0) {
+				final int row = store.add(inputPoint);
+				liveRows.add(row);
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Once enough of the store's rows have been removed, copy the rows still
+	 * in use into a new store, in the same order, and renumber every row held
+	 * here to match. Rows the current and previous clusters or markers hold
+	 * are kept even if removed, so those clusters stay whole; they are left
+	 * out of a later copy. Only done right after points are removed, so the
+	 * cluster hierarchy and binned points are already discarded, and while no
+	 * clustering pass, transition or marker batch is reading the clusters.
+	 */
+	private void reclaimRemovedRows() {
+		if (store.getRemovedRowCount() < Math.max(MIN_RECLAIMED_ROWS, store.size() / 2) || clusteringScheduler.isBusy()
+				|| transitionsAnimation.isRunning() || markerInsertionQueue.isBusy() || pendingAddedRows != null) {
+			return;
+		}
+		final Set<ClusterPoint> heldClusters = Collections.newSetFromMap(new IdentityHashMap<ClusterPoint, Boolean>());
+		if (currentClusters != null) {
+			heldClusters.addAll(currentClusters);
+		}
+		if (previousClusters != null) {
+			heldClusters.addAll(previousClusters);
+		}
+		if (currentClusterPointsByMarker != null) {
+			heldClusters.addAll(currentClusterPointsByMarker.values());
+		}
+
+		final BitSet keptRows = new BitSet(store.size());
+		for (int i = 0; i < liveRows.size(); i++) {
+			keptRows.set(liveRows.get(i));
+		}
+		if (filterIndex != null) {
+			filterIndex.collectRows(keptRows);
+		}
+		for (final ClusterPoint clusterPoint : heldClusters) {
+			if (clusterPoint.getStore() == store) {
+				for (int i = 0; i < clusterPoint.size(); i++) {
+					keptRows.set(clusterPoint.getRowAtOffset(i));
+				}
+			}
+		}
+
+		final int[] rows = new int[keptRows.cardinality()];
+		final int[] movedRows = new int[store.size()];
+		Arrays.fill(movedRows, -1);
+		int count = 0;
+		for (int row = keptRows.nextSetBit(0); row >= 0; row = keptRows.nextSetBit(row + 1)) {
+			movedRows[row] = count;
+			rows[count++] = row;
+		}
+		final InputPointStore reclaimedStore = store.copyRows(rows);
+
+		liveRows.moveRows(movedRows);
+		if (filterIndex != null) {
+			filterIndex.moveRows(movedRows);
+		}
+		if (filterHiddenRows != null) {
+			final BitSet movedHiddenRows = new BitSet();
+			for (int row = filterHiddenRows.nextSetBit(0); row >= 0; row = filterHiddenRows.nextSetBit(row + 1)) {
+				movedHiddenRows.set(movedRows[row]);
+			}
+			filterHiddenRows = movedHiddenRows;
+		}
+		for (final ClusterPoint clusterPoint : heldClusters) {
+			if (clusterPoint.getStore() == store) {
+				clusterPoint.moveRows(reclaimedStore, movedRows);
+			}
+		}
+		store = reclaimedStore;
+		mercatorPoints = null;
+		currentClustersGrid = null;
+		currentClusterPointsByRow = null;
+	}
+
+	/**
+	 * Start clustering every row of the store
+	 * 
+	 * @return the rows added
+	 */
+	private RowList addStoreRows() {
+		final int size = store.size();
+		final RowList rows = new RowList(size);
+		for (int row = 0; row < size; row++) {
+			liveRows.add(row);
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Save the cluster hierarchy of the current points so a later Clusterkraf
+	 * can be constructed from it and take its first clusters from it. The
+	 * snapshot is written, and the hierarchy built if no clustering pass has
+	 * built it yet, on a background thread.
+	 * 
+	 * @param file
+	 *            where to write the snapshot
+	 * @param snapshotListener
+	 *            told on the main thread once the snapshot is written or
+	 *            could not be, or null
+	 * @return true if the snapshot is being saved, false if
+	 *         Options.isPrecomputeClusterHierarchy() is disabled or the map is
+	 *         gone
+	 */
+	public boolean saveClusterHierarchySnapshot(final File file, final SnapshotListener snapshotListener) {
+		final GoogleMap map = mapRef.get();
+		if (options.isPrecomputeClusterHierarchy() == false || map == null) {
+			return false;
+		}
+		// the rows are read off the main thread while liveRows keeps changing
+		final InputPointStore savedStore = store;
+		final int[] savedRows = ClusteringTask.withHiddenRows(liveRows.toArray(), filterHiddenRows);
+		final ClusterHierarchy savedHierarchy = clusterHierarchy;
+		final int savedPointsVersion = pointsVersion;
+		final double worldPixelSize = Mercator.worldPixelSizeAtZoomZero(map.getProjection(), map.getCameraPosition());
+		SNAPSHOT_WRITER.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				ClusterHierarchy builtHierarchy = null;
+				IOException failure = null;
+				try {
+					if (savedHierarchy == null) {
+						builtHierarchy = new ClusterHierarchy(savedStore, savedRows, options, worldPixelSize);
+					}
+					(savedHierarchy != null ? savedHierarchy : builtHierarchy).writeSnapshot(file, savedRows);
+				} catch (final IOException e) {
+					failure = e;
+				} catch (final RuntimeException e) {
+					// letting it escape would kill the thread, and on Android
+					// the process with it
+					failure = new IOException("could not save " + file, e);
+				}
+				final ClusterHierarchy deliveredHierarchy = builtHierarchy;
+				final IOException deliveredFailure = failure;
+				innerCallbackListener.handler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						// spare the next pass building it again
+						if (deliveredHierarchy != null && savedPointsVersion == pointsVersion && clusterHierarchy == null) {
+							setClusterHierarchy(deliveredHierarchy);
+						}
+						if (snapshotListener != null) {
+							if (deliveredFailure != null) {
+								snapshotListener.onSnapshotFailed(file, deliveredFailure);
+							} else {
+								snapshotListener.onSnapshotSaved(file);
+							}
+						}
+					}
+				});
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Keep a cluster hierarchy built for the current points, finding the
+	 * positions in it of the rows the filter hides
+	 */
+	private void setClusterHierarchy(final ClusterHierarchy clusterHierarchy) {
+		if (clusterHierarchy != this.clusterHierarchy) {
+			this.clusterHierarchy = clusterHierarchy;
+			filterHiddenPositions = filterHiddenRows != null ? clusterHierarchy.getPositions(filterHiddenRows) : null;
+		}
+	}
+
+	private void onPointsChanged() {
+		pointsVersion++;
+		clusterHierarchy = null;
+		filterHiddenPositions = null;
+		thinnedPoints = null;
+		clusterHierarchySnapshot = null;
+		pointsFromSnapshot = false;
+	}
+
+	/**
+	 * @return true if points added and removed with add() and remove() can be
+	 *         added to or removed from the current clusters and markers in
+	 *         place, otherwise false
+	 */
+	private boolean canUpdateIncrementally() {
+		return options.isIncrementalPointUpdates() && canUpdateInPlace();
+	}
+
+	/**
+	 * @return true if points can be added to or removed from the current
+	 *         clusters and markers in place, as filter changes always are
+	 *         when they can be, otherwise false
+	 */
+	private boolean canUpdateInPlace() {
+		return options.isPrecomputeClusterHierarchy() == false && mapRef.get() != null && currentClusters != null && currentMarkers != null && clusteringScheduler.isBusy() == false && transitionsAnimation.isRunning() == false
+				&& markerInsertionQueue.isBusy() == false;
+	}
+
+	/**
+	 * @return the index of the current clusters by the screen position of
+	 *         their first point, which is where a clustering pass measures
+	 *         joins from, built against the passed Projection the first time
+	 *         it is needed after the current clusters are replaced
+	 */
+	private ClusterPointGrid getCurrentClustersGrid(final Projection projection) {
+		if (currentClustersGrid == null) {
+			final LatLngBounds bounds = ClustersBuilder.getExpandedBounds(projection.getVisibleRegion().latLngBounds, options);
+			currentClustersGrid = new ClusterPointGrid(options, ClustersBuilder.getMaxPixelDistance(options, projection, bounds));
+			for (final ClusterPoint clusterPoint : currentClusters) {
+				if (clusterPoint.size() > 0) {
+					addToGrid(currentClustersGrid, clusterPoint, projection, -1);
+				}
+			}
+		}
+		return currentClustersGrid;
+	}
+
+	/**
+	 * Index a ClusterPoint at the screen position of its first point, built
+	 * against the passed Projection
+	 * 
+	 * @param order
+	 *            the order it keeps in the grid, or -1 to go after every
+	 *            ClusterPoint already in it
+	 */
+	private void addToGrid(final ClusterPointGrid grid, final ClusterPoint clusterPoint, final Projection projection, final int order) {
+		final int row = clusterPoint.getRowAtOffset(0);
+		final LatLng anchor = new LatLng(store.getLatitude(row), store.getLongitude(row));
+		final Point screenPosition = projection.toScreenLocation(anchor);
+		if (screenPosition != null) {
+			if (order >= 0) {
+				grid.add(clusterPoint, screenPosition.x, screenPosition.y, anchor.latitude, anchor.longitude, order);
+			} else {
+				grid.add(clusterPoint, screenPosition.x, screenPosition.y, anchor.latitude, anchor.longitude);
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the current clusters by row, built the first time
+	 *         it is needed after the current clusters are replaced
+	 */
+	private RowMap<ClusterPoint> getCurrentClusterPointsByRow() {
+		if (currentClusterPointsByRow == null) {
+			currentClusterPointsByRow = new RowMap<ClusterPoint>(liveRows.size());
+			for (final ClusterPoint clusterPoint : currentClusters) {
+				for (int i = 0; i < clusterPoint.size(); i++) {
+					currentClusterPointsByRow.put(clusterPoint.getRowAtOffset(i), clusterPoint);
+				}
+			}
+		}
+		return currentClusterPointsByRow;
+	}
+
+	private void addToCurrentClusters(final RowList rows) {
+		final GoogleMap map = mapRef.get();
+		final Projection projection = map.getProjection();
+		final LatLngBounds bounds = ClustersBuilder.getExpandedBounds(projection.getVisibleRegion().latLngBounds, options);
+		final ClusterPointGrid grid = getCurrentClustersGrid(projection);
+		final Set<ClusterPoint> changedClusters = Collections.newSetFromMap(new IdentityHashMap<ClusterPoint, Boolean>());
+		for (int i = 0; i < rows.size(); i++) {
+			final int row = rows.get(i);
+			final LatLng mapPosition = new LatLng(store.getLatitude(row), store.getLongitude(row));
+			final Point screenPosition = bounds != null && bounds.contains(mapPosition) ? projection.toScreenLocation(mapPosition) : null;
+			if (screenPosition != null) {
+				ClusterPoint clusterPoint = grid.findFirstWithin(screenPosition.x, screenPosition.y, mapPosition.latitude, mapPosition.longitude);
+				if (clusterPoint != null) {
+					clusterPoint.add(row);
+				} else {
+					clusterPoint = new ClusterPoint(store, row, projection, false);
+					currentClusters.add(clusterPoint);
+					grid.add(clusterPoint, screenPosition.x, screenPosition.y, mapPosition.latitude, mapPosition.longitude);
+				}
+				if (currentClusterPointsByRow != null) {
+					currentClusterPointsByRow.put(row, clusterPoint);
+				}
+				changedClusters.add(clusterPoint);
+			}
+		}
+		replaceMarkers(map, changedClusters, projection);
+	}
+
+	private void removeFromCurrentClusters(final RowList rows) {
+		final GoogleMap map = mapRef.get();
+		final Projection projection = map.getProjection();
+		final ClusterPointGrid grid = getCurrentClustersGrid(projection);
+		final RowMap<ClusterPoint> clusterPointsByRow = getCurrentClusterPointsByRow();
+		final int[] removedRows = new int[rows.size()];
+		int removedCount = 0;
+		final Set<ClusterPoint> changedClusters = Collections.newSetFromMap(new IdentityHashMap<ClusterPoint, Boolean>());
+		for (int i = 0; i < rows.size(); i++) {
+			final ClusterPoint clusterPoint = clusterPointsByRow.remove(rows.get(i));
+			if (clusterPoint != null) {
+				removedRows[removedCount++] = rows.get(i);
+				changedClusters.add(clusterPoint);
+			}
+		}
+		Arrays.sort(removedRows, 0, removedCount);
+
+		final Set<ClusterPoint> emptiedClusters = Collections.newSetFromMap(new IdentityHashMap<ClusterPoint, Boolean>());
+		for (final ClusterPoint clusterPoint : changedClusters) {
+			final int anchorRow = clusterPoint.getRowAtOffset(0);
+			clusterPoint.removeAll(removedRows, removedCount);
+			if (clusterPoint.size() == 0) {
+				grid.remove(clusterPoint);
+				emptiedClusters.add(clusterPoint);
+			} else if (clusterPoint.getRowAtOffset(0) != anchorRow) {
+				addToGrid(grid, clusterPoint, projection, grid.remove(clusterPoint));
+			}
+		}
+		if (emptiedClusters.isEmpty() == false) {
+			currentClusters.removeAll(emptiedClusters);
+		}
+		replaceMarkers(map, changedClusters, projection);
+	}
+
+	/**
+	 * Move each cluster changed by an incremental update and replace its
+	 * marker, once per cluster however many of its points changed, and drop
+	 * the markers of clusters left empty. Clusters stay indexed at their first
+	 * point, so moving them does not change which points they join.
+	 */
+	private void replaceMarkers(final GoogleMap map, final Set<ClusterPoint> changedClusters, final Projection projection) {
+		final LatLngBounds materializedBounds = getMaterializedBounds(projection);
+		final Options.ClusterPosition clusterPosition = isPositionedOnFirstPoint() ? Options.ClusterPosition.FIRST_POINT : options
+				.getClusterPosition();
+		beginMarkerUpdate();
+		for (final ClusterPoint clusterPoint : changedClusters) {
+			final Marker marker = currentMarkersByClusterPoint.get(clusterPoint);
+			if (marker != null) {
+				removeMarker(marker);
+			}
+			if (clusterPoint.size() > 0) {
+				clusterPoint.resetMapPosition(clusterPosition, projection);
+				addMarkerIfMaterialized(map, clusterPoint, materializedBounds);
+			}
+		}
+		endMarkerUpdate();
+		onCurrentMarkersChanged();
+	}
+
+	private boolean isPositionedOnFirstPoint() {
+		return options.getClusterPosition() == null || options.getClusterPosition() == Options.ClusterPosition.FIRST_POINT;
+	}
+
+	/**
+	 * @return the region in which clusters get markers when
+	 *         Options.isMarkerVirtualization() is enabled, otherwise null
+	 */
+	private LatLngBounds getMaterializedBounds(final Projection projection) {
+		if (options.isMarkerVirtualization() && projection != null) {
+			final VisibleRegion visibleRegion = projection.getVisibleRegion();
+			if (visibleRegion != null) {
+				return ClustersBuilder.getExpandedBounds(visibleRegion.latLngBounds, options.getMarkerVirtualizationMargin());
+			}
+		}
+		return null;
+	}
+
+	private static boolean isMaterialized(final ClusterPoint clusterPoint, final LatLngBounds materializedBounds) {
+		return materializedBounds == null || materializedBounds.contains(clusterPoint.getMapPosition());
+	}
+
+	private void addMarkerIfMaterialized(final GoogleMap map, final ClusterPoint clusterPoint, final LatLngBounds materializedBounds) {
+		if (isMaterialized(clusterPoint, materializedBounds)) {
+			addMarker(map, clusterPoint);
+		}
+	}
+
+	/**
+	 * Add markers for current clusters that have moved into the materialized
+	 * region and remove the markers of those that have left it
+	 */
+	private void updateMaterializedMarkers() {
+		final GoogleMap map = mapRef.get();
+		if (map != null && options.isMarkerVirtualization() && currentClusters != null && currentMarkers != null
+				&& transitionsAnimation.isRunning() == false && markerInsertionQueue.isBusy() == false) {
+			final LatLngBounds materializedBounds = getMaterializedBounds(map.getProjection());
+			if (materializedBounds != null) {
+				beginMarkerUpdate();
+				for (final ClusterPoint clusterPoint : currentClusters) {
+					final Marker marker = currentMarkersByClusterPoint.get(clusterPoint);
+					final boolean materialized = isMaterialized(clusterPoint, materializedBounds);
+					if (materialized && marker == null) {
+						addMarker(map, clusterPoint);
+					} else if (materialized == false && marker != null) {
+						removeMarker(marker);
+					}
+				}
+				endMarkerUpdate();
+				onCurrentMarkersChanged();
+			}
+		}
+	}
+
+	private Marker addMarker(final GoogleMap map, final ClusterPoint clusterPoint) {
+		final MarkerOptions markerOptions = new MarkerOptions();
+		markerOptions.position(clusterPoint.getMapPosition());
+		final MarkerOptionsChooser moc = options.getMarkerOptionsChooser();
+		if (moc != null) {
+			moc.choose(markerOptions, clusterPoint);
+		}
+		final Marker marker = map.addMarker(markerOptions);
+		markersAdded++;
+		trackMarker(marker, clusterPoint);
+		return marker;
+	}
+
+	private void trackMarker(final Marker marker, final ClusterPoint clusterPoint) {
+		currentMarkers.add(marker);
+		currentClusterPointsByMarker.put(marker, clusterPoint);
+		currentMarkersByClusterPoint.put(clusterPoint, marker);
+	}
+
+	private void removeMarker(final Marker marker) {
+		marker.remove();
+		markersRemoved++;
+		untrackMarker(marker);
+	}
+
+	/**
+	 * Forget a marker that is no longer on the map, including its cluster's
+	 * entry, so a cluster left without a marker is seen as such until one is
+	 * added for it again
+	 */
+	private void untrackMarker(final Marker marker) {
+		currentMarkers.remove(marker);
+		final ClusterPoint clusterPoint = currentClusterPointsByMarker.remove(marker);
+		if (clusterPoint != null && currentMarkersByClusterPoint.get(clusterPoint) == marker) {
+			currentMarkersByClusterPoint.remove(clusterPoint);
+		}
+	}
+
+	/**
+	 * @return the marker currently showing the InputPoint, or null if its
+	 *         cluster has none
+	 */
+	private Marker getCurrentMarker(final BasePoint basePoint) {
+		if (currentClusters == null || currentMarkersByClusterPoint == null || basePoint instanceof InputPoint == false) {
+			return null;
+		}
+		final int row = store.rowOf((InputPoint)basePoint);
+		final ClusterPoint clusterPoint = liveRows.contains(row) ? getCurrentClusterPointsByRow().get(row) : null;
+		return clusterPoint != null ? currentMarkersByClusterPoint.get(clusterPoint) : null;
+	}
+
+	private void beginMarkerUpdate() {
+		markersAdded = 0;
+		markersRemoved = 0;
+		markerUpdateStartNanos = System.nanoTime();
+	}
 
-		if (points != null) {
-			this.points.addAll(points);
+	private void endMarkerUpdate() {
+		final MetricsListener metricsListener = options.getMetricsListener();
+		if (metricsListener != null && (markersAdded > 0 || markersRemoved > 0)) {
+			metricsListener.onMarkersUpdated(markersAdded, markersRemoved, System.nanoTime() - markerUpdateStartNanos);
 		}
+	}
 
-		if (map != null) {
-			map.setOnCameraChangeListener(innerCallbackListener.clusteringOnCameraChangeListener);
-			map.setOnMarkerClickListener(innerCallbackListener);
-			map.setOnInfoWindowClickListener(innerCallbackListener);
+	private void onCurrentMarkersChanged() {
+		if (mClusterkrafInfoWindowAdapter != null) {
+			mClusterkrafInfoWindowAdapter.setMarkersClustersMap(currentClusterPointsByMarker);
 		}
-
-		showAllClusters();
 	}
 
-	public void setClusterkrafInfoWindowAdapter(final ClusterkrafInfoWindowAdapter clusterkrafInfoWindowAdapter) {
-		mClusterkrafInfoWindowAdapter = clusterkrafInfoWindowAdapter;
+	private void drawMarkers() {
+		cancelMarkerInsertion();
 		final GoogleMap map = mapRef.get();
-		if (map != null) {
-			map.setInfoWindowAdapter(clusterkrafInfoWindowAdapter);
+		if (map != null && currentClusters != null && options.isMarkerDiffing() && currentMarkers != null) {
+			beginMarkerUpdate();
+			diffMarkers(map);
+			endMarkerUpdate();
+		} else if (map != null && currentClusters != null) {
+			currentMarkers = new HashSet<Marker>(currentClusters.size());
+			currentClusterPointsByMarker = new HashMap<Marker, ClusterPoint>(currentClusters.size());
+			currentMarkersByClusterPoint = new IdentityHashMap<ClusterPoint, Marker>(currentClusters.size());
+			final LatLngBounds materializedBounds = getMaterializedBounds(map.getProjection());
+			if (options.isBatchedMarkerInsertion()) {
+				// each batch reports its own marker update
+				queueMarkers(map, materializedBounds);
+			} else {
+				beginMarkerUpdate();
+				for (final ClusterPoint clusterPoint : currentClusters) {
+					addMarkerIfMaterialized(map, clusterPoint, materializedBounds);
+				}
+				endMarkerUpdate();
+			}
+
+			onCurrentMarkersChanged();
 		}
 	}
 
 	/**
-	 * Add a single InputPoint for clustering
-	 * 
-	 * @param inputPoint
-	 *            The InputPoint object to be clustered
+	 * Queue markers for the current clusters to be added a frame's budget at a
+	 * time, nearest the center of the map first. The first batch is added
+	 * before this returns.
 	 */
-	public void add(final InputPoint inputPoint) {
-		// @TODO: test individually adding points
-		if (inputPoint != null) {
-			points.add(inputPoint);
-			updateClustersAndTransition();
+	private void queueMarkers(final GoogleMap map, final LatLngBounds materializedBounds) {
+		final LatLng[] positions = new LatLng[currentClusters.size()];
+		for (int i = 0; i < positions.length; i++) {
+			final ClusterPoint clusterPoint = currentClusters.get(i);
+			if (isMaterialized(clusterPoint, materializedBounds)) {
+				positions[i] = clusterPoint.getMapPosition();
+			}
 		}
+		final CameraPosition cameraPosition = map.getCameraPosition();
+		queuedClusters = currentClusters;
+		markerInsertionQueue.start(positions, cameraPosition != null ? cameraPosition.target : null, options.getMarkerInsertionFrameBudget());
 	}
 
-	/**
-	 * Add a list of InputPoint objects for clustering
-	 * 
-	 * @param inputPoints
-	 *            The list of InputPoint objects for clustering
-	 */
-	public void addAll(final ArrayList<InputPoint> inputPoints) {
-		if (inputPoints != null) {
-			points.addAll(inputPoints);
-			updateClustersAndTransition();
+	private void insertQueuedMarker(final int index) {
+		final GoogleMap map = mapRef.get();
+		if (map != null && queuedClusters != null) {
+			addMarker(map, queuedClusters.get(index));
 		}
 	}
 
-	/**
-	 * Remove a list of InputPoint objects
-	 * 
-	 * @param inputPoints
-	 *            The list of InputPoint objects to remove
-	 */
-	public void removeAll(final List<InputPoint> inputPoints) {
-		if (inputPoints != null) {
-			points.removeAll(inputPoints);
-			currentClusters.clear();
-			updateClustersAndTransition();
+	private void onMarkerBatchInserted(final boolean finished) {
+		endMarkerUpdate();
+		onCurrentMarkersChanged();
+		if (finished) {
+			queuedClusters = null;
+			removeTransitionMarkersIfPending();
+			// catch up with any camera movement while markers were queued
+			updateMaterializedMarkers();
+			applyPendingPointChanges();
 		}
 	}
 
 	/**
-	 * Remove all existing InputPoint objects and add a new list of InputPoint
-	 * objects for clustering
-	 * 
-	 * @param inputPoints
-	 *            The new list of InputPoint objects for clustering
+	 * Drop any markers still queued, leaving clusters without markers until
+	 * they are next drawn, and let transitionsAnimation clear its markers if it
+	 * was waiting on the queue
 	 */
-	public void replace(final ArrayList<InputPoint> inputPoints) {
-		clear();
-		addAll(inputPoints);
+	private void cancelMarkerInsertion() {
+		markerInsertionQueue.cancel();
+		queuedClusters = null;
+		removeTransitionMarkersIfPending();
 	}
 
-	/**
-	 * Remove all Clusterkraf-managed markers from the map
-	 */
-	public void clear() {
-		/**
-		 * cancel the background thread clustering task
-		 */
-		if (clusteringTaskHost != null) {
-			clusteringTaskHost.cancel();
-			clusteringTaskHost = null;
-		}
-		/**
-		 * cancel the background thread transition building task
-		 */
-		if (clusterTransitionsBuildingTaskHost != null) {
-			clusterTransitionsBuildingTaskHost.cancel();
-			clusterTransitionsBuildingTaskHost = null;
+	private void removeTransitionMarkersIfPending() {
+		if (transitionMarkersPendingRemoval) {
+			transitionMarkersPendingRemoval = false;
+			transitionsAnimation.onHostPlottedDestinationClusterPoints();
 		}
+	}
 
-		/**
-		 * we avoid GoogleMap.clear() so users can manage their own
-		 * non-clustered markers on the map.
-		 * 
-		 * @see http://code.google.com/p/gmaps-api-issues/issues/detail?id=4703
-		 */
-		if (currentMarkers != null) {
-			for (final Marker marker : currentMarkers) {
-				marker.remove();
+	/**
+	 * Update the markers on the map to match currentClusters by keeping the
+	 * marker of every cluster whose InputPoint objects are unchanged, moving it
+	 * if needed, and only removing and adding markers for the clusters that
+	 * did change
+	 */
+	private void diffMarkers(final GoogleMap map) {
+		final HashMap<Marker, ClusterPoint> previousClusterPointsByMarker = currentClusterPointsByMarker;
+		final RowMap<Marker> previousMarkersByRow = new RowMap<Marker>();
+		for (final Map.Entry<Marker, ClusterPoint> entry : previousClusterPointsByMarker.entrySet()) {
+			final ClusterPoint previousClusterPoint = entry.getValue();
+			// rows of a store since replaced are different points
+			if (previousClusterPoint.getStore() == store) {
+				for (int i = 0; i < previousClusterPoint.size(); i++) {
+					previousMarkersByRow.put(previousClusterPoint.getRowAtOffset(i), entry.getKey());
+				}
 			}
 		}
-		currentMarkers = null;
-		currentClusters = null;
-		currentClusterPointsByMarker = null;
-		points.clear();
-	}
-
-	// TODO: support removing individual InputPoint objects
-
-	private void drawMarkers() {
-		final GoogleMap map = mapRef.get();
-		if (map != null && currentClusters != null) {
-			currentMarkers = new ArrayList<Marker>(currentClusters.size());
-			currentClusterPointsByMarker = new HashMap<Marker, ClusterPoint>(currentClusters.size());
-			currentMarkerByBasePoints = new HashMap<BasePoint, Marker>(currentClusters.size());
-			final MarkerOptionsChooser moc = options.getMarkerOptionsChooser();
-			for (final ClusterPoint clusterPoint : currentClusters) {
-				final MarkerOptions markerOptions = new MarkerOptions();
-				markerOptions.position(clusterPoint.getMapPosition());
-				if (moc != null) {
-					moc.choose(markerOptions, clusterPoint);
+		currentMarkers = new HashSet<Marker>(currentClusters.size());
+		currentClusterPointsByMarker = new HashMap<Marker, ClusterPoint>(currentClusters.size());
+		currentMarkersByClusterPoint = new IdentityHashMap<ClusterPoint, Marker>(currentClusters.size());
+		final LatLngBounds materializedBounds = getMaterializedBounds(map.getProjection());
+
+		for (final ClusterPoint clusterPoint : currentClusters) {
+			/**
+			 * a cluster with unchanged membership contains the first point of
+			 * the current cluster, so that point's marker is the only
+			 * candidate
+			 */
+			final Marker marker = clusterPoint.size() > 0 ? previousMarkersByRow.get(clusterPoint.getRowAtOffset(0)) : null;
+			final ClusterPoint previousClusterPoint = marker != null ? previousClusterPointsByMarker.remove(marker) : null;
+			final boolean materialized = isMaterialized(clusterPoint, materializedBounds);
+			if (previousClusterPoint != null && materialized && hasSameInputPoints(previousClusterPoint, clusterPoint)) {
+				if (previousClusterPoint.getMapPosition().equals(clusterPoint.getMapPosition()) == false) {
+					marker.setPosition(clusterPoint.getMapPosition());
 				}
-				final Marker marker = map.addMarker(markerOptions);
-				currentMarkers.add(marker);
-				currentClusterPointsByMarker.put(marker, clusterPoint);
-
-				for (final InputPoint inputPoint : clusterPoint.getPointsInCluster()) {
-					currentMarkerByBasePoints.put(inputPoint, marker);
+				trackMarker(marker, clusterPoint);
+			} else {
+				if (previousClusterPoint != null) {
+					marker.remove();
+					markersRemoved++;
+				}
+				if (materialized) {
+					addMarker(map, clusterPoint);
 				}
 			}
+		}
+
+		for (final Marker marker : previousClusterPointsByMarker.keySet()) {
+			marker.remove();
+		}
+		markersRemoved += previousClusterPointsByMarker.size();
+		previousMarkers = null;
+		previousClusters = null;
+
+		onCurrentMarkersChanged();
+	}
 
-			if (mClusterkrafInfoWindowAdapter != null) {
-				mClusterkrafInfoWindowAdapter.setMarkersClustersMap(currentClusterPointsByMarker);
+	private static boolean hasSameInputPoints(final ClusterPoint a, final ClusterPoint b) {
+		if (a.getStore() != b.getStore() || a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < b.size(); i++) {
+			if (a.containsRow(b.getRowAtOffset(i)) == false) {
+				return false;
 			}
 		}
+		return true;
 	}
 
 	private void removePreviousMarkers() {
 		final GoogleMap map = mapRef.get();
 		if (map != null && previousClusters != null && previousMarkers != null) {
+			beginMarkerUpdate();
 			for (final Marker marker : previousMarkers) {
 				marker.remove();
 			}
+			markersRemoved += previousMarkers.size();
+			endMarkerUpdate();
 			previousMarkers = null;
 			previousClusters = null;
 		}
 	}
 
 	private void updateClustersAndTransition() {
+		cancelMarkerInsertion();
 		previousClusters = currentClusters;
 		previousMarkers = currentMarkers;
 
-		startClusteringTask();
-	}
-
-	private void startClusteringTask() {
-		clusteringTaskHost = new UpdateClustersAndTransitionClusteringTaskHost();
-		clusteringTaskHost.executeTask();
+		/**
+		 * when diffing markers, changes are applied in place rather than
+		 * animated
+		 */
+		startClustering(options.isMarkerDiffing() == false);
 	}
 
 	private void transitionClusters(final ClusterTransitions clusterTransitions) {
 		if (clusterTransitions != null) {
+			cancelMarkerInsertion();
 			transitionsAnimation.animate(clusterTransitions);
 		}
-		clusterTransitionsBuildingTaskHost = null;
 	}
 
-	private void startClusterTransitionsBuildingTask(final Projection projection) {
-		clusterTransitionsBuildingTaskHost = new ClusterTransitionsBuildingTaskHost();
-		clusterTransitionsBuildingTaskHost.executeTask(projection);
+	private void showAllClusters() {
+		startClustering(false);
+	}
+
+	/**
+	 * Schedule a clustering pass, superseding any pass still pending or in
+	 * progress
+	 * 
+	 * @param buildTransitions
+	 *            whether the pass should build transitions from the previous
+	 *            clusters to be animated, or the new clusters should just be
+	 *            drawn
+	 */
+	private void startClustering(final boolean buildTransitions) {
+		final GoogleMap map = mapRef.get();
+		if (map != null) {
+			if (clusteringScheduler.isBusy() == false) {
+				final ProcessingListener processingListener = options.getProcessingListener();
+				if (processingListener != null) {
+					processingListener.onClusteringStarted();
+				}
+			}
 
-		clusteringTaskHost = null;
+			// the pass clusters every point, including any pending changes
+			discardPendingPointChanges();
+
+			final ClusteringTask.Argument arg = new ClusteringTask.Argument();
+			arg.projection = map.getProjection();
+			arg.options = options;
+			// the pass reads its own copy while liveRows keeps changing here
+			arg.store = store;
+			arg.rows = liveRows.toArray();
+			arg.storeSize = store.size();
+			arg.previousClusters = previousClusters;
+			arg.cameraPosition = map.getCameraPosition();
+			arg.clusterHierarchy = clusterHierarchy;
+			arg.mercatorPoints = mercatorPoints;
+			arg.thinnedPoints = thinnedPoints;
+			arg.pointsVersion = pointsVersion;
+			arg.buildTransitions = buildTransitions;
+			arg.clusterHierarchySnapshot = clusterHierarchySnapshot;
+			arg.pointsFromSnapshot = pointsFromSnapshot;
+			if (filterHiddenRows != null) {
+				arg.hiddenRows = (BitSet) filterHiddenRows.clone();
+				arg.hiddenPositions = filterHiddenPositions != null ? (BitSet) filterHiddenPositions.clone() : null;
+			}
+			clusteringScheduler.schedule(arg);
+		}
 	}
 
-	private void showAllClusters() {
-		if (clusteringTaskHost != null) {
-			drawMarkers();
-			clusteringTaskHost = null;
+	private void cancelClustering() {
+		if (clusteringScheduler.isBusy()) {
+			clusteringScheduler.cancel();
+			final ProcessingListener processingListener = options.getProcessingListener();
+			if (processingListener != null) {
+				processingListener.onClusteringFinished();
+			}
+		}
+	}
+
+	private void onClusteringPassFinished(final ClusteringTask.Result result) {
+		final ProcessingListener processingListener = options.getProcessingListener();
+		if (processingListener != null) {
+			processingListener.onClusteringFinished();
+		}
+		// whether or not the snapshot could be used, it is only tried once
+		final boolean snapshotPointsLoaded = pointsFromSnapshot && result != null && result.store != store && result.pointsVersion == pointsVersion;
+		clusterHierarchySnapshot = null;
+		pointsFromSnapshot = false;
+		if (result == null) {
+			// the pass failed or lost its Projection; keep the current clusters
+			discardPendingPointChanges();
+			return;
+		}
+		if (snapshotPointsLoaded) {
+			store = result.store;
+			addStoreRows();
+		}
+		final MetricsListener metricsListener = options.getMetricsListener();
+		if (metricsListener != null && result.metrics != null) {
+			metricsListener.onClusteringPassMeasured(result.metrics);
+		}
+		if (result.store == store && result.mercatorPoints != null && (mercatorPoints == null || result.mercatorPoints.size() > mercatorPoints.size())) {
+			mercatorPoints = result.mercatorPoints;
+		}
+		if (result.pointsVersion == pointsVersion) {
+			if (result.clusterHierarchy != null) {
+				setClusterHierarchy(result.clusterHierarchy);
+			}
+			if (result.thinnedPoints != null) {
+				thinnedPoints = result.thinnedPoints;
+			}
+		}
+		currentClusters = result.currentClusters;
+		currentClustersGrid = null;
+		currentClusterPointsByRow = null;
+		if (result.clusterTransitions != null) {
+			transitionClusters(result.clusterTransitions);
 		} else {
-			clusteringTaskHost = new ShowAllClustersClusteringTaskHost();
-			clusteringTaskHost.executeTask();
+			drawMarkers();
 		}
+		applyPendingPointChanges();
 	}
 
 	/**
@@ -333,7 +1559,7 @@ public class Clusterkraf {
 					innerCallbackListener.handler.postDelayed(new Runnable() {
 						@Override
 						public void run() {
-							final Marker marker = currentMarkerByBasePoints.get(basePoint);
+							final Marker marker = getCurrentMarker(basePoint);
 							if (marker != null) {
 								marker.showInfoWindow();
 							}
@@ -349,8 +1575,8 @@ public class Clusterkraf {
 		}
 	}
 
-	private static class InnerCallbackListener implements ClusteringOnCameraChangeListener.Host, ClusterTransitionsAnimation.Host, OnMarkerClickListener,
-			OnInfoWindowClickListener {
+	private static class InnerCallbackListener implements ClusteringOnCameraChangeListener.Host, ClusteringScheduler.Host,
+			ClusterTransitionsAnimation.Host, MarkerInsertionQueue.Host, OnMarkerClickListener, OnInfoWindowClickListener {
 
 		private final WeakReference<Clusterkraf> clusterkrafRef;
 
@@ -367,19 +1593,51 @@ public class Clusterkraf {
 		public void onClusteringCameraChange() {
 			final Clusterkraf clusterkraf = clusterkrafRef.get();
 			if (clusterkraf != null) {
-				if (clusterkraf.clusteringTaskHost != null) {
-					clusterkraf.clusteringTaskHost.cancel();
-					clusterkraf.clusteringTaskHost = null;
-				}
-				if (clusterkraf.clusterTransitionsBuildingTaskHost != null) {
-					clusterkraf.clusterTransitionsBuildingTaskHost.cancel();
-					clusterkraf.clusterTransitionsBuildingTaskHost = null;
-				}
+				/**
+				 * any pass still pending or in progress is superseded by the
+				 * one scheduled here
+				 */
 				clusterkraf.transitionsAnimation.cancel();
 				clusterkraf.updateClustersAndTransition();
 			}
 		}
 
+		/**
+		 * @see com.twotoasters.clusterkraf.ClusteringOnCameraChangeListener.Host#
+		 *      onCameraMoved()
+		 */
+		@Override
+		public void onCameraMoved() {
+			final Clusterkraf clusterkraf = clusterkrafRef.get();
+			if (clusterkraf != null) {
+				clusterkraf.updateMaterializedMarkers();
+			}
+		}
+
+		/**
+		 * @see com.twotoasters.clusterkraf.ClusteringScheduler.Host#
+		 *      onClusteringPassFinished(ClusteringTask.Result)
+		 */
+		@Override
+		public void onClusteringPassFinished(final ClusteringTask.Result result) {
+			final Clusterkraf clusterkraf = clusterkrafRef.get();
+			if (clusterkraf != null) {
+				clusterkraf.onClusteringPassFinished(result);
+			}
+		}
+
+		/**
+		 * @see com.twotoasters.clusterkraf.ClusteringScheduler.Host#
+		 *      onClusteringPassOutdated()
+		 */
+		@Override
+		public void onClusteringPassOutdated() {
+			final Clusterkraf clusterkraf = clusterkrafRef.get();
+			if (clusterkraf != null) {
+				clusterkraf.updateClustersAndTransition();
+			}
+		}
+
 		/**
 		 * @see com.twotoasters.clusterkraf.ClusterTransitionsAnimation.Host#
 		 *      onClusterTransitionStarting()
@@ -417,13 +1675,55 @@ public class Clusterkraf {
 				clusterkraf.drawMarkers();
 				/**
 				 * now that we have drawn our new set of markers, we can let the
-				 * transitionsAnimation know so it can clear its markers
+				 * transitionsAnimation know so it can clear its markers. When
+				 * markers are still queued, that waits until they are added.
 				 */
-				clusterkraf.transitionsAnimation.onHostPlottedDestinationClusterPoints();
+				if (clusterkraf.markerInsertionQueue.isBusy()) {
+					clusterkraf.transitionMarkersPendingRemoval = true;
+				} else {
+					clusterkraf.transitionsAnimation.onHostPlottedDestinationClusterPoints();
+					clusterkraf.applyPendingPointChanges();
+				}
 			}
 			clusteringOnCameraChangeListener.setDirty(0);
 		}
 
+		/**
+		 * @see com.twotoasters.clusterkraf.MarkerInsertionQueue.Host#
+		 *      onMarkerBatchStarting()
+		 */
+		@Override
+		public void onMarkerBatchStarting() {
+			final Clusterkraf clusterkraf = clusterkrafRef.get();
+			if (clusterkraf != null) {
+				clusterkraf.beginMarkerUpdate();
+			}
+		}
+
+		/**
+		 * @see com.twotoasters.clusterkraf.MarkerInsertionQueue.Host#
+		 *      onInsertMarker(int)
+		 */
+		@Override
+		public void onInsertMarker(final int index) {
+			final Clusterkraf clusterkraf = clusterkrafRef.get();
+			if (clusterkraf != null) {
+				clusterkraf.insertQueuedMarker(index);
+			}
+		}
+
+		/**
+		 * @see com.twotoasters.clusterkraf.MarkerInsertionQueue.Host#
+		 *      onMarkerBatchInserted(boolean)
+		 */
+		@Override
+		public void onMarkerBatchInserted(final boolean finished) {
+			final Clusterkraf clusterkraf = clusterkrafRef.get();
+			if (clusterkraf != null) {
+				clusterkraf.onMarkerBatchInserted(finished);
+			}
+		}
+
 		/**
 		 * @see com.google.android.gms.maps.GoogleMap.OnMarkerClickListener#onMarkerClick
 		 *      (com.google.android.gms.maps.model.Marker)
@@ -522,123 +1822,47 @@ public class Clusterkraf {
 		}
 	}
 
-	abstract private class BaseClusteringTaskHost implements ClusteringTask.Host {
-
-		private ClusteringTask task;
-
-		BaseClusteringTaskHost() {
-			this.task = new ClusteringTask(this);
-		}
-
-		@Override
-		public void onClusteringTaskPostExecute(final ClusteringTask.Result result) {
-			currentClusters = result.currentClusters;
-			onCurrentClustersSet(result);
-			task = null;
-		}
-
-		public void cancel() {
-			final ProcessingListener processingListener = options.getProcessingListener();
-			if (processingListener != null) {
-				processingListener.onClusteringFinished();
-			}
-			task.cancel(true);
-			task = null;
-		}
-
-		@SuppressLint("NewApi")
-		public void executeTask() {
-			final GoogleMap map = mapRef.get();
-			if (map != null) {
-				final ProcessingListener processingListener = options.getProcessingListener();
-				if (processingListener != null) {
-					processingListener.onClusteringStarted();
-				}
-
-				final ClusteringTask.Argument arg = new ClusteringTask.Argument();
-				arg.projection = map.getProjection();
-				arg.options = options;
-				arg.points = points;
-				arg.previousClusters = previousClusters;
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-					task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, arg);
-				} else {
-					task.execute(arg);
-				}
-			}
-
-		}
-
-		abstract protected void onCurrentClustersSet(ClusteringTask.Result result);
-
-	}
-
-	private class ShowAllClustersClusteringTaskHost extends BaseClusteringTaskHost {
+	/**
+	 * Told on the main thread how saveClusterHierarchySnapshot() went
+	 */
+	public interface SnapshotListener {
+		void onSnapshotSaved(File file);
 
-		@Override
-		protected void onCurrentClustersSet(final ClusteringTask.Result result) {
-			final ProcessingListener processingListener = options.getProcessingListener();
-			if (processingListener != null) {
-				processingListener.onClusteringFinished();
-			}
-			showAllClusters();
-		}
+		void onSnapshotFailed(File file, IOException e);
 	}
 
-	private class UpdateClustersAndTransitionClusteringTaskHost extends BaseClusteringTaskHost {
+	public interface ProcessingListener {
+		void onClusteringStarted();
 
-		@Override
-		protected void onCurrentClustersSet(final ClusteringTask.Result result) {
-			startClusterTransitionsBuildingTask(result.projection);
-		}
+		void onClusteringFinished();
 	}
 
-	private class ClusterTransitionsBuildingTaskHost implements ClusterTransitionsBuildingTask.Host {
-
-		private ClusterTransitionsBuildingTask task;
-
-		ClusterTransitionsBuildingTaskHost() {
-			this.task = new ClusterTransitionsBuildingTask(this);
-		}
-
-		@Override
-		public void onClusterTransitionsBuildingTaskPostExecute(final ClusterTransitionsBuildingTask.Result result) {
-			final ProcessingListener processingListener = options.getProcessingListener();
-			if (processingListener != null) {
-				processingListener.onClusteringFinished();
-			}
-			if (result != null) {
-				transitionClusters(result.clusterTransitions);
-			}
-			task = null;
-		}
-
-		public void cancel() {
-			task.cancel(true);
-			task = null;
-		}
-
-		@SuppressLint("NewApi")
-		public void executeTask(final Projection projection) {
-			if (projection != null) {
-				final ClusterTransitionsBuildingTask.Argument arg = new ClusterTransitionsBuildingTask.Argument();
-				arg.currentClusters = currentClusters;
-				arg.previousClusters = previousClusters;
-				arg.projection = projection;
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-					task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, arg);
-				} else {
-					task.execute(arg);
-				}
-			}
-		}
-
-	}
+	/**
+	 * Receives counts and timings from the clustering pipeline, on the main
+	 * thread. Times are in nanoseconds of System.nanoTime().
+	 */
+	public interface MetricsListener {
+		/**
+		 * Called when a clustering pass is delivered, before its markers are
+		 * drawn or its transition animated
+		 */
+		void onClusteringPassMeasured(ClusteringMetrics metrics);
 
-	public interface ProcessingListener {
-		void onClusteringStarted();
+		/**
+		 * Called after markers are added to or removed from the map,
+		 * including the temporary markers of a cluster transition
+		 */
+		void onMarkersUpdated(int markersAdded, int markersRemoved, long durationNanos);
 
-		void onClusteringFinished();
+		/**
+		 * Called for every frame of a cluster transition animation
+		 * 
+		 * @param frameIntervalNanos
+		 *            the time since the previous frame, or 0 for the first
+		 * @param updateNanos
+		 *            the time spent moving the animated markers
+		 */
+		void onTransitionFrame(long frameIntervalNanos, long updateNanos);
 	}
 
 }
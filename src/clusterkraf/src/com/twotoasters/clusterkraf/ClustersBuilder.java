@@ -2,39 +2,117 @@ package com.twotoasters.clusterkraf;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Point;
+import android.os.Process;
 
 import com.google.android.gms.maps.Projection;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.VisibleRegion;
+import com.twotoasters.clusterkraf.util.Mercator;
 
 class ClustersBuilder {
 
 	private final Options options;
 
-	private final ArrayList<InputPoint> relevantInputPointsList = new ArrayList<InputPoint>();
-	private final HashSet<InputPoint> releventInputPointsSet = new HashSet<InputPoint>();
+	private final InputPointStore store;
+	private final InputPointStore.Columns columns;
+
+	/**
+	 * the rows found inside the expanded visible region, in the order they
+	 * were added, with their screen positions
+	 */
+	private int[] relevantRows = new int[16];
+	private int[] relevantXs = new int[16];
+	private int[] relevantYs = new int[16];
+	private int relevantCount;
+
+	/**
+	 * the rows of the previous clusters, which are added first, so a row
+	 * found both there and in the rows added afterward is only clustered
+	 * once; null if there were no previous clusters
+	 */
+	private BitSet initialRows;
 
 	private final WeakReference<Projection> projectionRef;
 	private final WeakReference<VisibleRegion> visibleRegionRef;
 
-	ClustersBuilder(Projection projection, Options options, ArrayList<ClusterPoint> initialClusteredPoints) {
+	/**
+	 * when set, screen positions are computed arithmetically rather than with
+	 * the Projection
+	 */
+	private final MercatorScreenProjection screenProjection;
+
+	/**
+	 * how many points to process between cancellation checks
+	 */
+	private static final int CANCELLATION_CHECK_INTERVAL = 256;
+
+	private ClusteringScheduler.Cancellation cancellation;
+
+	/**
+	 * when thinning, the bins whose representatives were added, and the index
+	 * of each relevant row among the representatives, so the other points of
+	 * its bin can join whichever cluster it joins
+	 */
+	private ThinnedPoints.Level thinnedPointsLevel;
+	private int[] relevantRepresentatives;
+
+	/**
+	 * the clusterDistanceMetric's largest joining distance in pixels for this
+	 * pass, set by build()
+	 */
+	private int maxPixelDistance;
+
+	ClustersBuilder(Projection projection, InputPointStore store, Options options, ArrayList<ClusterPoint> initialClusteredPoints) {
+		this(projection, null, store, options, initialClusteredPoints);
+	}
+
+	ClustersBuilder(Projection projection, MercatorScreenProjection screenProjection, InputPointStore store, Options options,
+			ArrayList<ClusterPoint> initialClusteredPoints) {
 		this.options = options;
+		this.store = store;
+		this.columns = store.getColumns();
+		this.screenProjection = screenProjection != null && screenProjection.isValid() ? screenProjection : null;
 
 		this.projectionRef = new WeakReference<Projection>(projection);
 		this.visibleRegionRef = new WeakReference<VisibleRegion>(projection.getVisibleRegion());
 
 		if (initialClusteredPoints != null) {
-			addRelevantInitialInputPoints(initialClusteredPoints);
+			addRelevantInitialRows(initialClusteredPoints);
 		}
 	}
 
-	private void addRelevantInitialInputPoints(ArrayList<ClusterPoint> initialClusteredPoints) {
+	private void addRelevantInitialRows(ArrayList<ClusterPoint> initialClusteredPoints) {
+		initialRows = new BitSet();
+		int[] rows = new int[16];
+		int count = 0;
 		for (ClusterPoint clusterPoint : initialClusteredPoints) {
-			clusterPoint.clearScreenPosition();
-			addAll(clusterPoint.getPointsInCluster());
+			// clusters from a store since replaced have nothing to carry over
+			if (clusterPoint.getStore() == store) {
+				for (int i = 0; i < clusterPoint.size(); i++) {
+					int row = clusterPoint.getRowAtOffset(i);
+					if (initialRows.get(row) == false) {
+						initialRows.set(row);
+						if (count == rows.length) {
+							rows = Arrays.copyOf(rows, count * 2);
+						}
+						rows[count++] = row;
+					}
+				}
+			}
 		}
+		addRows(rows, count, null, false, true);
 	}
 
 	private Projection getProjection() {
@@ -45,23 +123,141 @@ class ClustersBuilder {
 		return visibleRegionRef.get();
 	}
 
-	void addAll(ArrayList<InputPoint> points) {
-		if (points != null) {
-			Projection projection = getProjection();
-			VisibleRegion visibleRegion = getVisibleRegion();
-			if (projection != null && visibleRegion != null) {
-				LatLngBounds bounds = getExpandedBounds(visibleRegion.latLngBounds);
-				for (InputPoint point : points) {
-					addIfNecessary(point, projection, bounds);
+	/**
+	 * Add rows of the store, skipping any carried over from the previous
+	 * clusters
+	 * 
+	 * @param rows
+	 * @param count
+	 *            how many of rows to add
+	 */
+	void addAll(int[] rows, int count) {
+		addAll(rows, count, null);
+	}
+
+	/**
+	 * Add rows of the store using their precomputed world coordinates where
+	 * screen positions are being computed arithmetically
+	 * 
+	 * @param rows
+	 * @param count
+	 *            how many of rows to add
+	 * @param mercatorPoints
+	 *            the world coordinates of the store's rows, or null
+	 */
+	void addAll(int[] rows, int count, MercatorPoints mercatorPoints) {
+		addRows(rows, count, mercatorPoints, false, false);
+	}
+
+	/**
+	 * Cluster the representatives of a ThinnedPoints.Level instead of every
+	 * point. The other points of each bin join whichever cluster their
+	 * representative joins.
+	 * 
+	 * @param level
+	 * @param mercatorPoints
+	 *            the world coordinates of the store's rows, or null
+	 */
+	void addRepresentatives(ThinnedPoints.Level level, MercatorPoints mercatorPoints) {
+		thinnedPointsLevel = level;
+		relevantRepresentatives = new int[relevantRows.length];
+		addRows(level.representatives, level.representatives.length, mercatorPoints, true, false);
+	}
+
+	/**
+	 * @param cancellation
+	 *            polled while adding and clustering points; once it reports
+	 *            cancelled, adding stops and build() returns null
+	 */
+	void setCancellation(ClusteringScheduler.Cancellation cancellation) {
+		this.cancellation = cancellation;
+	}
+
+	private boolean isCancelled(int iteration) {
+		return cancellation != null && iteration % CANCELLATION_CHECK_INTERVAL == 0 && cancellation.isCancelled();
+	}
+
+	/**
+	 * @param representatives
+	 *            if true, the rows are the representatives of
+	 *            thinnedPointsLevel, in order
+	 * @param initial
+	 *            if true, the rows are from the previous clusters, so are not
+	 *            skipped for being in initialRows
+	 */
+	private void addRows(int[] rows, int count, MercatorPoints mercatorPoints, boolean representatives, boolean initial) {
+		Projection projection = getProjection();
+		VisibleRegion visibleRegion = getVisibleRegion();
+		if (rows == null || projection == null || visibleRegion == null) {
+			return;
+		}
+		LatLngBounds bounds = getExpandedBounds(visibleRegion.latLngBounds, options);
+		if (bounds == null) {
+			return;
+		}
+		double south = bounds.southwest.latitude;
+		double north = bounds.northeast.latitude;
+		double west = bounds.southwest.longitude;
+		double east = bounds.northeast.longitude;
+		double[] latitudes = columns.latitudes;
+		double[] longitudes = columns.longitudes;
+		double[] xs = screenProjection != null && mercatorPoints != null ? mercatorPoints.xs : null;
+		double[] ys = xs != null ? mercatorPoints.ys : null;
+		BitSet skippedRows = initial ? null : initialRows;
+		for (int i = 0; i < count; i++) {
+			if (isCancelled(i)) {
+				return;
+			}
+			int row = rows[i];
+			double latitude = latitudes[row];
+			double longitude = longitudes[row];
+			if (contains(south, north, west, east, latitude, longitude) == false || (skippedRows != null && skippedRows.get(row))) {
+				continue;
+			}
+			int x;
+			int y;
+			if (screenProjection != null) {
+				long screenPosition;
+				if (xs != null && row < xs.length) {
+					screenPosition = screenProjection.toScreenLocation(xs[row], ys[row]);
+				} else {
+					screenPosition = screenProjection.toScreenLocation(Mercator.xFromLongitude(longitude), Mercator.yFromLatitude(latitude));
 				}
+				x = MercatorScreenProjection.screenXOf(screenPosition);
+				y = MercatorScreenProjection.screenYOf(screenPosition);
+			} else {
+				Point screenPosition = projection.toScreenLocation(new LatLng(latitude, longitude));
+				if (screenPosition == null) {
+					continue;
+				}
+				x = screenPosition.x;
+				y = screenPosition.y;
 			}
+			addRelevant(row, x, y, representatives ? i : -1);
 		}
 	}
 
-	private LatLngBounds getExpandedBounds(LatLngBounds bounds) {
-		if (bounds != null && options != null) {
-			double expandBoundsFactor = options.getExpandBoundsFactor();
+	/**
+	 * @param options
+	 * @param projection
+	 * @param bounds
+	 *            the region being clustered
+	 * @return the largest screen distance on either axis at which
+	 *         options.getClusterDistanceMetric() can join a point to a cluster
+	 */
+	static int getMaxPixelDistance(Options options, Projection projection, LatLngBounds bounds) {
+		return options.getClusterDistanceMetric().getMaxPixelDistance(projection, bounds, options.getPixelDistanceToJoinCluster());
+	}
 
+	static LatLngBounds getExpandedBounds(LatLngBounds bounds, Options options) {
+		if (options != null) {
+			return getExpandedBounds(bounds, options.getExpandBoundsFactor());
+		}
+		return null;
+	}
+
+	static LatLngBounds getExpandedBounds(LatLngBounds bounds, double expandBoundsFactor) {
+		if (bounds != null) {
 			boolean spans180Meridian = bounds.northeast.longitude < bounds.southwest.longitude;
 
 			double distanceFromNorthToSouth = bounds.northeast.latitude - bounds.southwest.latitude;
@@ -83,34 +279,258 @@ class ClustersBuilder {
 		return null;
 	}
 
-	private void addIfNecessary(InputPoint point, Projection projection, LatLngBounds bounds) {
-		if (bounds != null && bounds.contains(point.getMapPosition()) && !releventInputPointsSet.contains(point)) {
-			point.buildScreenPosition(projection);
-			relevantInputPointsList.add(point);
-			releventInputPointsSet.add(point);
+	/**
+	 * The same test as LatLngBounds.contains(), without a LatLng
+	 */
+	private static boolean contains(double south, double north, double west, double east, double latitude, double longitude) {
+		if (latitude < south || latitude > north) {
+			return false;
+		}
+		if (west <= east) {
+			return west <= longitude && longitude <= east;
 		}
+		// spans the 180th meridian
+		return west <= longitude || longitude <= east;
+	}
+
+	private void addRelevant(int row, int x, int y, int representative) {
+		if (relevantCount == relevantRows.length) {
+			int capacity = relevantCount * 2;
+			relevantRows = Arrays.copyOf(relevantRows, capacity);
+			relevantXs = Arrays.copyOf(relevantXs, capacity);
+			relevantYs = Arrays.copyOf(relevantYs, capacity);
+		}
+		if (relevantRepresentatives != null && relevantRepresentatives.length < relevantRows.length) {
+			relevantRepresentatives = Arrays.copyOf(relevantRepresentatives, relevantRows.length);
+		}
+		relevantRows[relevantCount] = row;
+		relevantXs[relevantCount] = x;
+		relevantYs[relevantCount] = y;
+		if (relevantRepresentatives != null) {
+			relevantRepresentatives[relevantCount] = representative;
+		}
+		relevantCount++;
+	}
+
+	/**
+	 * @return the number of points added so far that are inside the expanded
+	 *         visible region
+	 */
+	int getRelevantPointCount() {
+		return relevantCount;
 	}
 
 	ArrayList<ClusterPoint> build() {
 		Projection projection = getProjection();
 		ArrayList<ClusterPoint> clusteredPoints = null;
 		if (projection != null) {
-			clusteredPoints = new ArrayList<ClusterPoint>(relevantInputPointsList.size());
-			for (InputPoint point : relevantInputPointsList) {
-				boolean addedToExistingCluster = false;
-				for (ClusterPoint clusterPoint : clusteredPoints) {
-					if (clusterPoint.getPixelDistanceFrom(point) <= options.getPixelDistanceToJoinCluster()) {
-						clusterPoint.add(point);
-						addedToExistingCluster = true;
-						break;
+			VisibleRegion visibleRegion = getVisibleRegion();
+			LatLngBounds bounds = visibleRegion != null ? getExpandedBounds(visibleRegion.latLngBounds, options) : null;
+			maxPixelDistance = getMaxPixelDistance(options, projection, bounds);
+			if (options.isParallelClustering() && relevantCount >= options.getParallelClusteringMinPoints()) {
+				clusteredPoints = buildInParallel();
+			} else {
+				clusteredPoints = build(null, relevantCount);
+			}
+			if (clusteredPoints != null) {
+				applyClusterPosition(clusteredPoints, projection);
+			}
+		}
+		return clusteredPoints;
+	}
+
+	/**
+	 * Move clusters off their first InputPoint if Options asks for it. This
+	 * happens after clustering so that the grid's cells stay valid while
+	 * points are being joined.
+	 */
+	private void applyClusterPosition(ArrayList<ClusterPoint> clusteredPoints, Projection projection) {
+		Options.ClusterPosition clusterPosition = options.getClusterPosition();
+		if (clusterPosition != null && clusterPosition != Options.ClusterPosition.FIRST_POINT) {
+			for (ClusterPoint clusterPoint : clusteredPoints) {
+				if (clusterPoint.size() > 1) {
+					clusterPoint.applyMapPosition(clusterPosition);
+					clusterPoint.setScreenPosition(null);
+					if (screenProjection != null) {
+						screenProjection.buildScreenPosition(clusterPoint);
+					} else {
+						clusterPoint.buildScreenPosition(projection);
 					}
 				}
-				if (addedToExistingCluster == false) {
-					clusteredPoints.add(new ClusterPoint(point, projection, false));
-				}
+			}
+		}
+	}
+
+	/**
+	 * Cluster the relevant points with a greedy first-fit pass
+	 * 
+	 * @param entries
+	 *            indexes of the relevant points to cluster, in order, or null
+	 *            for all of them
+	 * @param count
+	 */
+	private ArrayList<ClusterPoint> build(int[] entries, int count) {
+		ClusterPointGrid grid = new ClusterPointGrid(options, maxPixelDistance);
+		double[] latitudes = columns.latitudes;
+		double[] longitudes = columns.longitudes;
+		ArrayList<ClusterPoint> clusteredPoints = new ArrayList<ClusterPoint>();
+		for (int i = 0; i < count; i++) {
+			if (isCancelled(i)) {
+				return null;
+			}
+			int entry = entries != null ? entries[i] : i;
+			int row = relevantRows[entry];
+			int x = relevantXs[entry];
+			int y = relevantYs[entry];
+			double latitude = latitudes[row];
+			double longitude = longitudes[row];
+			ClusterPoint existingClusterPoint = grid.findFirstWithin(x, y, latitude, longitude);
+			if (existingClusterPoint != null) {
+				existingClusterPoint.add(row);
+				addOthers(existingClusterPoint, entry);
+			} else {
+				ClusterPoint clusterPoint = new ClusterPoint(store, row, null, false);
+				clusterPoint.setScreenPosition(x, y);
+				addOthers(clusterPoint, entry);
+				clusteredPoints.add(clusterPoint);
+				grid.add(clusterPoint, x, y, latitude, longitude);
 			}
 		}
 		return clusteredPoints;
 	}
 
+	/**
+	 * Add the points represented by a thinned point to its cluster
+	 */
+	private void addOthers(ClusterPoint clusterPoint, int entry) {
+		if (thinnedPointsLevel != null) {
+			int representative = relevantRepresentatives[entry];
+			int[] others = thinnedPointsLevel.others;
+			for (int i = thinnedPointsLevel.otherStarts[representative]; i < thinnedPointsLevel.otherStarts[representative + 1]; i++) {
+				clusterPoint.add(others[i]);
+			}
+		}
+	}
+
+	/**
+	 * Split the screen into vertical strips, cluster each strip on its own
+	 * thread, then merge clusters that ended up within the join distance of
+	 * each other across a seam between strips
+	 */
+	private ArrayList<ClusterPoint> buildInParallel() {
+		int tileCount = Runtime.getRuntime().availableProcessors();
+		if (tileCount < 2) {
+			return build(null, relevantCount);
+		}
+		int minX = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		for (int i = 0; i < relevantCount; i++) {
+			minX = Math.min(minX, relevantXs[i]);
+			maxX = Math.max(maxX, relevantXs[i]);
+		}
+
+		// points keep their relative order within each tile
+		double tileWidth = (maxX - minX + 1) / (double) tileCount;
+		int[] tileCounts = new int[tileCount];
+		for (int i = 0; i < relevantCount; i++) {
+			tileCounts[tileOf(relevantXs[i], minX, tileWidth, tileCount)]++;
+		}
+		final int[][] tiles = new int[tileCount][];
+		for (int i = 0; i < tileCount; i++) {
+			tiles[i] = new int[tileCounts[i]];
+			tileCounts[i] = 0;
+		}
+		for (int i = 0; i < relevantCount; i++) {
+			int tile = tileOf(relevantXs[i], minX, tileWidth, tileCount);
+			tiles[tile][tileCounts[tile]++] = i;
+		}
+
+		ArrayList<Future<ArrayList<ClusterPoint>>> futures = new ArrayList<Future<ArrayList<ClusterPoint>>>(tileCount);
+		ArrayList<ClusterPoint> clusteredPoints = new ArrayList<ClusterPoint>();
+		try {
+			ExecutorService executor = TileExecutorHolder.EXECUTOR;
+			for (final int[] tile : tiles) {
+				futures.add(executor.submit(new Callable<ArrayList<ClusterPoint>>() {
+					@Override
+					public ArrayList<ClusterPoint> call() {
+						return build(tile, tile.length);
+					}
+				}));
+			}
+			for (Future<ArrayList<ClusterPoint>> future : futures) {
+				ArrayList<ClusterPoint> tileClusteredPoints = future.get();
+				if (tileClusteredPoints == null) {
+					// cancelled
+					return null;
+				}
+				clusteredPoints.addAll(tileClusteredPoints);
+			}
+		} catch (InterruptedException e) {
+			for (Future<ArrayList<ClusterPoint>> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return build(null, relevantCount);
+		}
+
+		return mergeAcrossSeams(clusteredPoints, minX, tileWidth, tileCount);
+	}
+
+	/**
+	 * Clusters within a tile are already too far apart to join, so only
+	 * clusters within the largest joining distance of a seam can need merging,
+	 * and only into a cluster from a neighboring tile.
+	 */
+	private ArrayList<ClusterPoint> mergeAcrossSeams(ArrayList<ClusterPoint> clusteredPoints, int minX, double tileWidth, int tileCount) {
+		ClusterPointGrid seamGrid = new ClusterPointGrid(options, maxPixelDistance);
+		ArrayList<ClusterPoint> mergedPoints = new ArrayList<ClusterPoint>(clusteredPoints.size());
+		for (ClusterPoint clusterPoint : clusteredPoints) {
+			int x = clusterPoint.getScreenPosition().x;
+			int tile = tileOf(x, minX, tileWidth, tileCount);
+			double tileLeft = minX + tile * tileWidth;
+			double tileRight = tileLeft + tileWidth;
+			boolean nearSeam = (tile > 0 && x - tileLeft <= maxPixelDistance) || (tile < tileCount - 1 && tileRight - x <= maxPixelDistance);
+			if (nearSeam) {
+				ClusterPoint neighbor = seamGrid.findFirstWithin(clusterPoint);
+				if (neighbor != null) {
+					neighbor.addAll(clusterPoint);
+					continue;
+				}
+				seamGrid.add(clusterPoint);
+			}
+			mergedPoints.add(clusterPoint);
+		}
+		return mergedPoints;
+	}
+
+	private static int tileOf(int x, int minX, double tileWidth, int tileCount) {
+		return Math.min(tileCount - 1, (int) ((x - minX) / tileWidth));
+	}
+
+	/**
+	 * lazily creates the bounded pool of tile clustering threads, sized to the
+	 * number of cores
+	 */
+	private static class TileExecutorHolder {
+		private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+						runnable.run();
+					}
+				}, "Clusterkraf tile #" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
 }
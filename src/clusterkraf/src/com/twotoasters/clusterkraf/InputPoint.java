@@ -12,6 +12,29 @@ public class InputPoint extends BasePoint {
 	 */
 	private Object tag;
 
+	/**
+	 * How much this InputPoint counts toward a cluster's weighted centroid
+	 */
+	private double weight = 1;
+
+	/**
+	 * When this InputPoint happened, in whatever units the app filters by,
+	 * for Clusterkraf.setFilter()
+	 */
+	private long time;
+
+	/**
+	 * Which of up to 64 categories, 0 through 63, this InputPoint belongs
+	 * to, for Clusterkraf.setFilter()
+	 */
+	private int category;
+
+	/**
+	 * the InputPointStore row that gives back this InputPoint, or -1; only
+	 * trusted once the store confirms it
+	 */
+	int row = -1;
+
 	/**
 	 * Construct an InputPoint with only a mapPosition
 	 * 
@@ -48,4 +71,62 @@ public class InputPoint extends BasePoint {
 		this.tag = tag;
 	}
 
+	/**
+	 * Get the weight of this InputPoint
+	 */
+	public double getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Set the weight of this InputPoint. Set it before adding the InputPoint
+	 * to Clusterkraf; clusters it already belongs to keep the old weight.
+	 * 
+	 * @param weight
+	 */
+	public void setWeight(double weight) {
+		this.weight = weight;
+	}
+
+	/**
+	 * Get the time of this InputPoint
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Set the time of this InputPoint. Set it before passing the InputPoint to
+	 * Clusterkraf.setFilterablePoints(); the filter index is not updated
+	 * afterward.
+	 * 
+	 * @param time
+	 */
+	public void setTime(long time) {
+		this.time = time;
+	}
+
+	/**
+	 * Get the category of this InputPoint
+	 */
+	public int getCategory() {
+		return category;
+	}
+
+	/**
+	 * Set the category of this InputPoint, from 0 through 63. Set it before
+	 * passing the InputPoint to Clusterkraf.setFilterablePoints(); the filter
+	 * index is not updated afterward.
+	 * 
+	 * @param category
+	 * @throws IllegalArgumentException
+	 *             if the category is outside 0 through 63
+	 */
+	public void setCategory(int category) {
+		if (category < 0 || category > 63) {
+			throw new IllegalArgumentException("category must be from 0 through 63: " + category);
+		}
+		this.category = category;
+	}
+
 }
@@ -0,0 +1,422 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Holds points for clustering in columns of primitives rather than as one
+ * InputPoint object each: a latitude, a longitude and an int id per row,
+ * which is 20 bytes a point, plus 8 more once any row is given a weight other
+ * than 1. Clusters refer to their points by row.
+ *
+ * InputPoint objects are only made for the rows the public API hands out, for
+ * example by ClusterPoint.getPointAtOffset(), and are kept once made so a row
+ * always gives back the same InputPoint. Their tags come from the TagLookup,
+ * by id. Rows added from an InputPoint give back that InputPoint, and have an
+ * id of -1.
+ *
+ * Rows are only ever appended, and never change once added, so a clustering
+ * pass can read them on its own thread while more are added on the main
+ * thread. Removing a row only lets go of its InputPoint; the row itself stays
+ * until the rows still in use are copied into a new store with copyRows().
+ */
+public class InputPointStore {
+
+	/**
+	 * Supplies the tag of the InputPoint made for a row
+	 */
+	public interface TagLookup {
+		/**
+		 * @param id
+		 *            the id the row was added with
+		 * @return the tag for the row's InputPoint
+		 */
+		Object getTag(int id);
+	}
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * replaced, never modified below size, whenever it needs to grow, so a
+	 * thread that read it can keep reading the rows it knew about
+	 */
+	private volatile Columns columns;
+	private volatile int size;
+
+	private TagLookup tagLookup;
+
+	/**
+	 * the InputPoint of each row that has one, made on demand; guarded by
+	 * this store
+	 */
+	private InputPoint[] inputPoints;
+
+	/**
+	 * the rows of InputPoint objects added here that were already in another
+	 * store, whose InputPoint.row field belongs to that store; null until
+	 * there is one
+	 */
+	private IdentityHashMap<InputPoint, Integer> sharedInputPointRows;
+
+	/**
+	 * the rows removed with remove(), null until there is one; guarded by
+	 * this store
+	 */
+	private BitSet removedRows;
+	private int removedRowCount;
+
+	public InputPointStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            how many rows to make room for up front
+	 */
+	public InputPointStore(int capacity) {
+		int initialCapacity = Math.max(1, capacity);
+		this.columns = new Columns(new double[initialCapacity], new double[initialCapacity], new int[initialCapacity], null);
+	}
+
+	/**
+	 * Make a store of rows already in columns, such as those of a cluster
+	 * hierarchy snapshot. The arrays are kept, not copied, and every value in
+	 * them is a row.
+	 *
+	 * @param weights
+	 *            null if every row weighs 1
+	 */
+	InputPointStore(double[] latitudes, double[] longitudes, int[] ids, double[] weights) {
+		this.columns = new Columns(latitudes, longitudes, ids, weights);
+		this.size = ids.length;
+	}
+
+	/**
+	 * Append a row
+	 *
+	 * @param latitude
+	 *            clamped to [-90, 90], as LatLng does
+	 * @param longitude
+	 *            wrapped to [-180, 180), as LatLng does
+	 * @param id
+	 *            passed to the TagLookup to find the tag of the row's
+	 *            InputPoint
+	 * @return the row
+	 */
+	public int add(double latitude, double longitude, int id) {
+		return add(latitude, longitude, id, 1);
+	}
+
+	/**
+	 * Append a row
+	 *
+	 * @param latitude
+	 *            clamped to [-90, 90], as LatLng does
+	 * @param longitude
+	 *            wrapped to [-180, 180), as LatLng does
+	 * @param id
+	 *            passed to the TagLookup to find the tag of the row's
+	 *            InputPoint
+	 * @param weight
+	 *            how much the row counts toward a cluster's weighted centroid
+	 * @return the row
+	 */
+	public synchronized int add(double latitude, double longitude, int id, double weight) {
+		int row = size;
+		Columns columns = ensureCapacity(row + 1, weight != 1);
+		columns.latitudes[row] = Math.max(-90, Math.min(90, latitude));
+		if (-180 <= longitude && longitude < 180) {
+			columns.longitudes[row] = longitude;
+		} else {
+			columns.longitudes[row] = ((longitude - 180) % 360 + 360) % 360 - 180;
+		}
+		columns.ids[row] = id;
+		if (columns.weights != null) {
+			columns.weights[row] = weight;
+		}
+		size = row + 1;
+		return row;
+	}
+
+	/**
+	 * Append a row for an InputPoint, which the row then gives back. Its
+	 * position and weight are copied; changing them afterward does not change
+	 * the row. An InputPoint already given back by a row of this store is not
+	 * added again.
+	 *
+	 * @param inputPoint
+	 * @return the row, or the row already giving back the InputPoint
+	 * @throws IllegalArgumentException
+	 *             if the InputPoint has no map position
+	 */
+	public synchronized int add(InputPoint inputPoint) {
+		LatLng mapPosition = inputPoint.getMapPosition();
+		if (mapPosition == null) {
+			throw new IllegalArgumentException("InputPoint has no map position");
+		}
+		int existingRow = rowOf(inputPoint);
+		if (existingRow >= 0) {
+			return existingRow;
+		}
+		boolean inOtherStore = inputPoint.row >= 0 && isRowOf(inputPoint, inputPoint.row) == false;
+		int row = add(mapPosition.latitude, mapPosition.longitude, -1, inputPoint.getWeight());
+		ensureInputPointCapacity(row + 1);
+		inputPoints[row] = inputPoint;
+		if (inOtherStore) {
+			if (sharedInputPointRows == null) {
+				sharedInputPointRows = new IdentityHashMap<InputPoint, Integer>();
+			}
+			sharedInputPointRows.put(inputPoint, Integer.valueOf(row));
+		} else {
+			inputPoint.row = row;
+		}
+		return row;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	public double getLatitude(int row) {
+		return getColumns(row).latitudes[row];
+	}
+
+	public double getLongitude(int row) {
+		return getColumns(row).longitudes[row];
+	}
+
+	public int getId(int row) {
+		return getColumns(row).ids[row];
+	}
+
+	public double getWeight(int row) {
+		Columns columns = getColumns(row);
+		return columns.weights != null ? columns.weights[row] : 1;
+	}
+
+	/**
+	 * Set where the tags of the InputPoint objects made for rows come from.
+	 * InputPoint objects already made keep their tags.
+	 *
+	 * @param tagLookup
+	 */
+	public synchronized void setTagLookup(TagLookup tagLookup) {
+		this.tagLookup = tagLookup;
+	}
+
+	synchronized TagLookup getTagLookup() {
+		return tagLookup;
+	}
+
+	/**
+	 * @param row
+	 * @return the InputPoint for the row, made the first time it is asked for
+	 */
+	public synchronized InputPoint getInputPoint(int row) {
+		Columns columns = getColumns(row);
+		ensureInputPointCapacity(row + 1);
+		InputPoint inputPoint = inputPoints[row];
+		if (inputPoint == null) {
+			int id = columns.ids[row];
+			inputPoint = new InputPoint(new LatLng(columns.latitudes[row], columns.longitudes[row]), tagLookup != null ? tagLookup.getTag(id) : null);
+			if (columns.weights != null) {
+				inputPoint.setWeight(columns.weights[row]);
+			}
+			// a removed row is only asked for by clusters made before it was
+			// removed, and does not keep what it gives them
+			if (isRemoved(row) == false) {
+				inputPoint.row = row;
+				inputPoints[row] = inputPoint;
+			}
+		}
+		return inputPoint;
+	}
+
+	/**
+	 * Remove a row, letting go of its InputPoint, which rowOf() no longer
+	 * finds and add() appends again. The row keeps its position until it is
+	 * left out of a copyRows().
+	 *
+	 * @param row
+	 */
+	synchronized void remove(int row) {
+		getColumns(row);
+		if (isRemoved(row)) {
+			return;
+		}
+		if (removedRows == null) {
+			removedRows = new BitSet();
+		}
+		removedRows.set(row);
+		removedRowCount++;
+		InputPoint inputPoint = inputPoints != null && row < inputPoints.length ? inputPoints[row] : null;
+		if (inputPoint != null) {
+			inputPoints[row] = null;
+			Integer sharedRow = sharedInputPointRows != null ? sharedInputPointRows.get(inputPoint) : null;
+			if (sharedRow != null && sharedRow.intValue() == row) {
+				sharedInputPointRows.remove(inputPoint);
+			} else if (inputPoint.row == row) {
+				inputPoint.row = -1;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of rows removed with remove()
+	 */
+	synchronized int getRemovedRowCount() {
+		return removedRowCount;
+	}
+
+	synchronized boolean isRemoved(int row) {
+		return removedRows != null && removedRows.get(row);
+	}
+
+	/**
+	 * Copy rows into a new store, with the same TagLookup, so the rows left
+	 * out can be reclaimed. The copies give back the InputPoint objects of
+	 * the rows they were copied from, which this store then no longer finds,
+	 * and a removed row stays removed.
+	 *
+	 * @param rows
+	 *            the rows to copy, in the order of their new rows
+	 * @return the new store
+	 */
+	synchronized InputPointStore copyRows(int[] rows) {
+		Columns columns = this.columns;
+		int count = rows.length;
+		double[] latitudes = new double[count];
+		double[] longitudes = new double[count];
+		int[] ids = new int[count];
+		double[] weights = columns.weights != null ? new double[count] : null;
+		for (int i = 0; i < count; i++) {
+			int row = rows[i];
+			latitudes[i] = columns.latitudes[row];
+			longitudes[i] = columns.longitudes[row];
+			ids[i] = columns.ids[row];
+			if (weights != null) {
+				weights[i] = columns.weights[row];
+			}
+		}
+		InputPointStore copy = new InputPointStore(latitudes, longitudes, ids, weights);
+		copy.tagLookup = tagLookup;
+		for (int i = 0; i < count; i++) {
+			int row = rows[i];
+			if (isRemoved(row)) {
+				if (copy.removedRows == null) {
+					copy.removedRows = new BitSet();
+				}
+				copy.removedRows.set(i);
+				copy.removedRowCount++;
+			} else if (inputPoints != null && row < inputPoints.length && inputPoints[row] != null) {
+				InputPoint inputPoint = inputPoints[row];
+				copy.ensureInputPointCapacity(count);
+				copy.inputPoints[i] = inputPoint;
+				if (sharedInputPointRows == null || sharedInputPointRows.containsKey(inputPoint) == false) {
+					inputPoint.row = i;
+				} else {
+					if (copy.sharedInputPointRows == null) {
+						copy.sharedInputPointRows = new IdentityHashMap<InputPoint, Integer>();
+					}
+					copy.sharedInputPointRows.put(inputPoint, Integer.valueOf(i));
+				}
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * @param inputPoint
+	 * @return the row giving back the InputPoint, or -1 if there is none
+	 */
+	synchronized int rowOf(InputPoint inputPoint) {
+		if (inputPoint == null) {
+			return -1;
+		}
+		if (isRowOf(inputPoint, inputPoint.row)) {
+			return inputPoint.row;
+		}
+		Integer sharedRow = sharedInputPointRows != null ? sharedInputPointRows.get(inputPoint) : null;
+		return sharedRow != null ? sharedRow.intValue() : -1;
+	}
+
+	private boolean isRowOf(InputPoint inputPoint, int row) {
+		return row >= 0 && inputPoints != null && row < inputPoints.length && inputPoints[row] == inputPoint;
+	}
+
+	/**
+	 * @return the columns holding at least every row added so far; read them
+	 *         once per pass rather than once per row
+	 */
+	Columns getColumns() {
+		return columns;
+	}
+
+	private Columns getColumns(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+		}
+		return columns;
+	}
+
+	private Columns ensureCapacity(int capacity, boolean weighted) {
+		Columns columns = this.columns;
+		if (capacity > columns.ids.length || (weighted && columns.weights == null)) {
+			int newCapacity = Math.max(1, columns.ids.length);
+			while (newCapacity < capacity) {
+				newCapacity *= 2;
+			}
+			double[] weights = null;
+			if (columns.weights != null) {
+				weights = Arrays.copyOf(columns.weights, newCapacity);
+			} else if (weighted) {
+				weights = new double[newCapacity];
+				Arrays.fill(weights, 0, size, 1);
+			}
+			columns = new Columns(Arrays.copyOf(columns.latitudes, newCapacity), Arrays.copyOf(columns.longitudes, newCapacity), Arrays.copyOf(
+					columns.ids, newCapacity), weights);
+			this.columns = columns;
+		}
+		return columns;
+	}
+
+	private void ensureInputPointCapacity(int capacity) {
+		if (inputPoints == null) {
+			inputPoints = new InputPoint[Math.max(capacity, columns.ids.length)];
+		} else if (capacity > inputPoints.length) {
+			inputPoints = Arrays.copyOf(inputPoints, Math.max(capacity, inputPoints.length * 2));
+		}
+	}
+
+	/**
+	 * The arrays behind a store at one capacity. Rows below the store's size
+	 * when they were read never change.
+	 */
+	static final class Columns {
+		final double[] latitudes;
+		final double[] longitudes;
+		final int[] ids;
+		/**
+		 * null while every row weighs 1
+		 */
+		final double[] weights;
+
+		private Columns(double[] latitudes, double[] longitudes, int[] ids, double[] weights) {
+			this.latitudes = latitudes;
+			this.longitudes = longitudes;
+			this.ids = ids;
+			this.weights = weights;
+		}
+
+		double getWeight(int row) {
+			return weights != null ? weights[row] : 1;
+		}
+	}
+
+}
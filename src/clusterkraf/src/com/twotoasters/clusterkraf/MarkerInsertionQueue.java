@@ -0,0 +1,226 @@
+package com.twotoasters.clusterkraf;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * Adds markers over several frames, nearest the center of the map first,
+ * spending at most a fixed budget of each frame so that thousands of markers
+ * do not stall the main thread in one burst.
+ *
+ * The queue only orders and paces the work; the Host adds the marker for each
+ * index it is handed. Frames are driven by Choreographer on Jelly Bean and
+ * later, and by posting to the main looper before that. Must only be used on
+ * the main thread.
+ */
+class MarkerInsertionQueue {
+
+	private final WeakReference<Host> hostRef;
+	private final Frames frames;
+
+	/**
+	 * indexes of the queued positions, nearest the center first
+	 */
+	private int[] order;
+	private int next;
+	private long frameBudgetNanos;
+
+	private final Runnable insertBatch = new Runnable() {
+
+		@Override
+		public void run() {
+			insertBatch();
+		}
+	};
+
+	MarkerInsertionQueue(Host host) {
+		this.hostRef = new WeakReference<Host>(host);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			frames = new ChoreographerFrames(insertBatch);
+		} else {
+			frames = new HandlerFrames(insertBatch);
+		}
+	}
+
+	/**
+	 * Queue a marker for each non-null position, replacing anything still
+	 * queued, and add the first frame's worth before returning
+	 *
+	 * @param positions
+	 *            the position of each marker; the Host is handed indexes into
+	 *            this array, and null entries are skipped
+	 * @param center
+	 *            markers nearest this are added first
+	 * @param frameBudgetMillis
+	 *            how long each frame may spend adding markers; at least one
+	 *            marker is added per frame regardless
+	 */
+	void start(LatLng[] positions, LatLng center, int frameBudgetMillis) {
+		cancel();
+		order = orderByDistance(positions, center);
+		next = 0;
+		frameBudgetNanos = frameBudgetMillis * 1000000L;
+		if (order.length > 0) {
+			insertBatch();
+		} else {
+			order = null;
+		}
+	}
+
+	/**
+	 * Drop whatever is still queued. Markers already added are left alone.
+	 */
+	void cancel() {
+		if (order != null) {
+			frames.cancel();
+			order = null;
+		}
+	}
+
+	/**
+	 * @return true if markers are still queued, otherwise false
+	 */
+	boolean isBusy() {
+		return order != null;
+	}
+
+	private void insertBatch() {
+		Host host = hostRef.get();
+		if (host == null || order == null) {
+			order = null;
+			return;
+		}
+		long start = System.nanoTime();
+		host.onMarkerBatchStarting();
+		do {
+			host.onInsertMarker(order[next++]);
+		} while (next < order.length && System.nanoTime() - start < frameBudgetNanos);
+
+		boolean finished = next >= order.length;
+		if (finished) {
+			order = null;
+		} else {
+			frames.post();
+		}
+		host.onMarkerBatchInserted(finished);
+	}
+
+	/**
+	 * @return the indexes of the non-null positions, sorted by their distance
+	 *         from center
+	 */
+	private static int[] orderByDistance(LatLng[] positions, LatLng center) {
+		double longitudeScale = center != null ? Math.cos(Math.toRadians(center.latitude)) : 1;
+		long[] keys = new long[positions.length];
+		int count = 0;
+		for (int i = 0; i < positions.length; i++) {
+			LatLng position = positions[i];
+			if (position != null) {
+				float distance = 0;
+				if (center != null) {
+					double deltaLatitude = position.latitude - center.latitude;
+					double deltaLongitude = Math.abs(position.longitude - center.longitude);
+					if (deltaLongitude > 180) {
+						deltaLongitude = 360 - deltaLongitude;
+					}
+					deltaLongitude *= longitudeScale;
+					distance = (float)(deltaLatitude * deltaLatitude + deltaLongitude * deltaLongitude);
+				}
+				/**
+				 * the bits of a non-negative float sort the same as its value,
+				 * so packing them above the index sorts indexes by distance
+				 * without boxing
+				 */
+				keys[count++] = ((long)Float.floatToIntBits(distance) << 32) | i;
+			}
+		}
+		Arrays.sort(keys, 0, count);
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = (int)keys[i];
+		}
+		return order;
+	}
+
+	private interface Frames {
+		/**
+		 * Run the batch at the next frame
+		 */
+		void post();
+
+		void cancel();
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class ChoreographerFrames implements Frames, Choreographer.FrameCallback {
+
+		private final Runnable batch;
+
+		ChoreographerFrames(Runnable batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void post() {
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		@Override
+		public void cancel() {
+			Choreographer.getInstance().removeFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			batch.run();
+		}
+	}
+
+	private static class HandlerFrames implements Frames {
+
+		private final Handler handler = new Handler(Looper.getMainLooper());
+		private final Runnable batch;
+
+		HandlerFrames(Runnable batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void post() {
+			handler.post(batch);
+		}
+
+		@Override
+		public void cancel() {
+			handler.removeCallbacks(batch);
+		}
+	}
+
+	interface Host {
+		/**
+		 * Called before each frame's markers are added
+		 */
+		void onMarkerBatchStarting();
+
+		/**
+		 * Add the marker for the position at index
+		 */
+		void onInsertMarker(int index);
+
+		/**
+		 * Called after each frame's markers are added
+		 *
+		 * @param finished
+		 *            true if nothing is left queued
+		 */
+		void onMarkerBatchInserted(boolean finished);
+	}
+}
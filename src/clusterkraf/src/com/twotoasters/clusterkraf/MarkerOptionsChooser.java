@@ -1,9 +1,12 @@
 package com.twotoasters.clusterkraf;
 
 import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.graphics.Bitmap;
 
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.MarkerOptions;
 
@@ -69,6 +72,99 @@ public abstract class MarkerOptionsChooser {
 		}
 	}
 
+	/**
+	 * A MarkerOptionsChooser that sets the MarkerOptions object's icon using a
+	 * bitmap from its host, but only asks the host to render a bitmap the first
+	 * time it sees a given icon key. Clusters whose icons would look the same,
+	 * such as every cluster of "100+" points, should share a key. The most
+	 * recently used BitmapDescriptor objects are kept, up to maxSize.
+	 */
+	public static class CachingBitmapChooser extends MarkerOptionsChooser {
+
+		private static final int DEFAULT_MAX_SIZE = 32;
+
+		private final WeakReference<Host> hostRef;
+		private final LinkedHashMap<Object, BitmapDescriptor> descriptors;
+
+		private int hitCount;
+		private int missCount;
+
+		public CachingBitmapChooser(Host host) {
+			this(host, DEFAULT_MAX_SIZE);
+		}
+
+		/**
+		 * @param host
+		 * @param maxSize
+		 *            the number of BitmapDescriptor objects to keep
+		 */
+		public CachingBitmapChooser(Host host, final int maxSize) {
+			this.hostRef = new WeakReference<Host>(host);
+			this.descriptors = new LinkedHashMap<Object, BitmapDescriptor>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Object, BitmapDescriptor> eldest) {
+					return size() > maxSize;
+				}
+			};
+		}
+
+		@Override
+		public synchronized void choose(MarkerOptions markerOptions, ClusterPoint clusterPoint) {
+			Host host = hostRef.get();
+			if (host != null) {
+				Object key = host.getIconKey(clusterPoint);
+				BitmapDescriptor descriptor = key != null ? descriptors.get(key) : null;
+				if (descriptor != null) {
+					hitCount++;
+				} else {
+					missCount++;
+					Bitmap bitmap = host.getIconBitmap(clusterPoint);
+					descriptor = BitmapDescriptorFactory.fromBitmap(bitmap);
+					if (key != null) {
+						descriptors.put(key, descriptor);
+					}
+				}
+				markerOptions.icon(descriptor);
+			}
+		}
+
+		/**
+		 * @return the number of times an icon was found in the cache
+		 */
+		public synchronized int getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * @return the number of times an icon had to be rendered by the host
+		 */
+		public synchronized int getMissCount() {
+			return missCount;
+		}
+
+		/**
+		 * Discard every cached icon, e.g. after the host changes how its icons
+		 * look
+		 */
+		public synchronized void clearCache() {
+			descriptors.clear();
+		}
+
+		public interface Host {
+			/**
+			 * @param clusterPoint
+			 * @return a key shared by every ClusterPoint that should have the
+			 *         same icon, or null to render this icon without caching
+			 */
+			Object getIconKey(ClusterPoint clusterPoint);
+
+			Bitmap getIconBitmap(ClusterPoint clusterPoint);
+		}
+	}
+
 	/**
 	 * An example MarkerOptionsChooser that sets the MarkerOptions object's icon
 	 * using a resource ID from its host.
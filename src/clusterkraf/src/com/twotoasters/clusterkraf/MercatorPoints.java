@@ -0,0 +1,43 @@
+package com.twotoasters.clusterkraf;
+
+import com.twotoasters.clusterkraf.util.Mercator;
+
+/**
+ * The Web Mercator world coordinates of the rows of an InputPointStore,
+ * stored in parallel primitive arrays indexed by row. Rows never change, so
+ * the coordinates only need to be computed once per row, and extending them
+ * to rows added later reuses those already computed.
+ */
+class MercatorPoints {
+
+	final double[] xs;
+	final double[] ys;
+
+	/**
+	 * @param columns
+	 *            the columns of the store
+	 * @param size
+	 *            the number of rows to cover
+	 * @param previous
+	 *            coordinates already computed for the same store, or null
+	 */
+	MercatorPoints(InputPointStore.Columns columns, int size, MercatorPoints previous) {
+		xs = new double[size];
+		ys = new double[size];
+		int computed = 0;
+		if (previous != null) {
+			computed = Math.min(size, previous.size());
+			System.arraycopy(previous.xs, 0, xs, 0, computed);
+			System.arraycopy(previous.ys, 0, ys, 0, computed);
+		}
+		for (int row = computed; row < size; row++) {
+			xs[row] = Mercator.xFromLongitude(columns.longitudes[row]);
+			ys[row] = Mercator.yFromLatitude(columns.latitudes[row]);
+		}
+	}
+
+	int size() {
+		return xs.length;
+	}
+
+}
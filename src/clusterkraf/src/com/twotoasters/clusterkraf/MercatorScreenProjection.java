@@ -0,0 +1,108 @@
+package com.twotoasters.clusterkraf;
+
+import android.graphics.Point;
+
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.twotoasters.clusterkraf.util.Mercator;
+
+/**
+ * Computes screen positions from Web Mercator world coordinates and the camera
+ * position arithmetically, so that a clustering pass only calls the
+ * Projection a few times instead of once per point.
+ *
+ * Only valid for an untilted camera; use isValid() before relying on it.
+ */
+class MercatorScreenProjection {
+
+	private final boolean valid;
+
+	private double targetX;
+	private double targetY;
+	private int centerX;
+	private int centerY;
+	private double worldPixelSize;
+	private double cos;
+	private double sin;
+
+	MercatorScreenProjection(Projection projection, CameraPosition cameraPosition) {
+		boolean valid = false;
+		if (projection != null && cameraPosition != null && cameraPosition.target != null && cameraPosition.tilt == 0) {
+			double worldPixelSizeAtZoomZero = Mercator.worldPixelSizeAtZoomZero(projection, cameraPosition);
+			Point center = projection.toScreenLocation(cameraPosition.target);
+			if (worldPixelSizeAtZoomZero > 0 && center != null) {
+				this.targetX = Mercator.xFromLongitude(cameraPosition.target.longitude);
+				this.targetY = Mercator.yFromLatitude(cameraPosition.target.latitude);
+				this.centerX = center.x;
+				this.centerY = center.y;
+				this.worldPixelSize = worldPixelSizeAtZoomZero * Math.pow(2, cameraPosition.zoom);
+				double bearing = Math.toRadians(cameraPosition.bearing);
+				this.cos = Math.cos(bearing);
+				this.sin = Math.sin(bearing);
+				valid = true;
+			}
+		}
+		this.valid = valid;
+	}
+
+	boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * Set the point's screen position from its map position
+	 * 
+	 * @param point
+	 */
+	void buildScreenPosition(BasePoint point) {
+		LatLng mapPosition = point.getMapPosition();
+		if (mapPosition != null) {
+			buildScreenPosition(point, Mercator.xFromLongitude(mapPosition.longitude), Mercator.yFromLatitude(mapPosition.latitude));
+		}
+	}
+
+	/**
+	 * Set the point's screen position from its precomputed world coordinates,
+	 * reusing its existing Point if it has one
+	 * 
+	 * @param point
+	 * @param x
+	 * @param y
+	 */
+	void buildScreenPosition(BasePoint point, double x, double y) {
+		long screenPosition = toScreenLocation(x, y);
+		point.setScreenPosition(screenXOf(screenPosition), screenYOf(screenPosition));
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return the screen position of the world coordinates, packed into a
+	 *         long for screenXOf and screenYOf so that no Point is allocated
+	 */
+	long toScreenLocation(double x, double y) {
+		double dx = x - targetX;
+		// take the short way around the world
+		if (dx > 0.5) {
+			dx -= 1;
+		} else if (dx < -0.5) {
+			dx += 1;
+		}
+		dx *= worldPixelSize;
+		double dy = (y - targetY) * worldPixelSize;
+		// the camera bearing rotates the map counterclockwise on screen
+		int screenX = centerX + (int) Math.round(dx * cos + dy * sin);
+		int screenY = centerY + (int) Math.round(dy * cos - dx * sin);
+		return ((long) screenX << 32) | (screenY & 0xffffffffL);
+	}
+
+	static int screenXOf(long screenPosition) {
+		return (int) (screenPosition >> 32);
+	}
+
+	static int screenYOf(long screenPosition) {
+		return (int) screenPosition;
+	}
+
+}
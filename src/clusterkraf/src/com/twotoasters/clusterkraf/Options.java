@@ -3,6 +3,7 @@ package com.twotoasters.clusterkraf;
 import android.view.animation.Interpolator;
 import android.view.animation.LinearInterpolator;
 
+import com.twotoasters.clusterkraf.Clusterkraf.MetricsListener;
 import com.twotoasters.clusterkraf.Clusterkraf.ProcessingListener;
 
 /**
@@ -107,11 +108,151 @@ public class Options {
 	 */
 	private long clusteringOnCameraChangeListenerDirtyLifetimeMillis = 200l;
 
+	/**
+	 * Whether adding and removing InputPoint objects should update the current
+	 * clusters and their markers in place rather than re-clustering every
+	 * point. Points join the first nearby cluster as they would during a full
+	 * pass, but clusters that lose points are not split apart until the next
+	 * camera change re-clusters everything. Updates made while clustering or
+	 * a transition is in progress always fall back to a full pass. Changes
+	 * made by Clusterkraf.setFilter() are applied in place this way whether
+	 * or not this is enabled.
+	 */
+	private boolean incrementalPointUpdates = false;
+
+	/**
+	 * Whether screen positions should be computed arithmetically from the
+	 * camera position and each InputPoint's Web Mercator world coordinates,
+	 * which are computed once and kept until the points change, rather than
+	 * asking the Projection for every point on every clustering pass. Passes
+	 * made while the camera is tilted still use the Projection.
+	 */
+	private boolean mercatorScreenPositions = false;
+
+	/**
+	 * Whether large clustering passes should be split into vertical strips of
+	 * the screen that are clustered in parallel, one per core, with clusters
+	 * that meet at a seam between strips merged afterward. Clusters near the
+	 * seams may differ slightly from a single-threaded pass.
+	 */
+	private boolean parallelClustering = false;
+
+	private static final int DEFAULT_PARALLEL_CLUSTERING_MIN_POINTS = 5000;
+	/**
+	 * The number of InputPoint objects in the expanded visible region below
+	 * which clustering stays on a single thread even if parallelClustering is
+	 * enabled
+	 */
+	private int parallelClusteringMinPoints = DEFAULT_PARALLEL_CLUSTERING_MIN_POINTS;
+
+	/**
+	 * Whether markers should be updated in place after each clustering pass
+	 * rather than animated through a cluster transition. Markers of clusters
+	 * whose InputPoint objects are unchanged are kept (and moved if their
+	 * position changed), and only the markers of clusters that changed are
+	 * removed and added.
+	 */
+	private boolean markerDiffing = false;
+
+	/**
+	 * Whether markers should only exist for clusters inside the visible region
+	 * plus markerVirtualizationMargin. Markers are added as clusters come into
+	 * that region while the camera moves, and removed as they leave it. Cluster
+	 * transitions likewise skip clusters that start and end outside it.
+	 */
+	private boolean markerVirtualization = false;
+
+	private static final double DEFAULT_MARKER_VIRTUALIZATION_MARGIN = 0.1;
+	/**
+	 * How much the visible region bounds should be expanded, in the same terms
+	 * as expandBoundsFactor, when deciding which clusters get markers if
+	 * markerVirtualization is enabled
+	 */
+	private double markerVirtualizationMargin = DEFAULT_MARKER_VIRTUALIZATION_MARGIN;
+
+	/**
+	 * Where a cluster is placed: on its first InputPoint, or on the centroid
+	 * or weighted centroid of all of its InputPoint objects. Clustering still
+	 * measures join distances from the first InputPoint; clusters are moved
+	 * once they are built.
+	 */
+	private ClusterPosition clusterPosition = ClusterPosition.FIRST_POINT;
+
+	/**
+	 * How the distance between an InputPoint and a cluster is measured when
+	 * deciding whether the point joins the cluster. The default measures
+	 * straight-line screen distance against pixelDistanceToJoinCluster. Not
+	 * used when precomputeClusterHierarchy is enabled.
+	 */
+	private ClusterDistanceMetric clusterDistanceMetric = ClusterDistanceMetric.EUCLIDEAN;
+
+	/**
+	 * Whether points should be binned into small cells of world space at each
+	 * zoom level before clustering, so that a pass only filters, projects and
+	 * compares one point per occupied cell. The other points in a cell join
+	 * the same cluster as the first, so cluster sizes are exact, but clusters
+	 * may differ slightly from unthinned ones near their edges. Not used when
+	 * precomputeClusterHierarchy is enabled.
+	 */
+	private boolean pointThinning = false;
+
+	private static final int DEFAULT_POINT_THINNING_CELL_SIZE = 4;
+	/**
+	 * The width in pixels of the cells points are binned into when
+	 * pointThinning is enabled
+	 */
+	private int pointThinningCellSize = DEFAULT_POINT_THINNING_CELL_SIZE;
+
+	/**
+	 * Whether markers should be added over several frames, those nearest the
+	 * center of the map first, instead of all at once. Applies to drawing a
+	 * full set of clusters and to the markers a cluster transition adds; the
+	 * first frame's worth are added immediately.
+	 */
+	private boolean batchedMarkerInsertion = false;
+
+	private static final int DEFAULT_MARKER_INSERTION_FRAME_BUDGET = 8;
+	/**
+	 * How long in milliseconds each frame may spend adding markers when
+	 * batchedMarkerInsertion is enabled
+	 */
+	private int markerInsertionFrameBudget = DEFAULT_MARKER_INSERTION_FRAME_BUDGET;
+
 	/**
 	 * 
 	 */
 	private ProcessingListener processingListener;
 
+	/**
+	 * The MetricsListener to receive counts and timings from each clustering
+	 * pass, marker update and transition animation frame
+	 */
+	private MetricsListener metricsListener;
+
+	/**
+	 * Whether clusters should be precomputed once for every zoom level between
+	 * clusterHierarchyMinZoom and clusterHierarchyMaxZoom instead of being
+	 * recomputed against the Projection after every camera change. This costs
+	 * more time up front and more memory, but panning and returning to a zoom
+	 * level already seen become cheap range queries. Clusters are formed in
+	 * whole zoom levels, so they only change when the camera crosses one.
+	 */
+	private boolean precomputeClusterHierarchy = false;
+
+	private static final int DEFAULT_CLUSTER_HIERARCHY_MIN_ZOOM = 0;
+	/**
+	 * The lowest zoom level precomputed when precomputeClusterHierarchy is
+	 * enabled
+	 */
+	private int clusterHierarchyMinZoom = DEFAULT_CLUSTER_HIERARCHY_MIN_ZOOM;
+
+	private static final int DEFAULT_CLUSTER_HIERARCHY_MAX_ZOOM = 20;
+	/**
+	 * The highest zoom level precomputed when precomputeClusterHierarchy is
+	 * enabled. Beyond this zoom level, InputPoint objects are not clustered.
+	 */
+	private int clusterHierarchyMaxZoom = DEFAULT_CLUSTER_HIERARCHY_MAX_ZOOM;
+
 	/**
 	 * @return the transitionDuration
 	 */
@@ -338,6 +479,201 @@ public class Options {
 		this.clusteringOnCameraChangeListenerDirtyLifetimeMillis = clusteringOnCameraChangeListenerDirtyLifetimeMillis;
 	}
 
+	/**
+	 * @return the incrementalPointUpdates
+	 */
+	boolean isIncrementalPointUpdates() {
+		return incrementalPointUpdates;
+	}
+
+	/**
+	 * @param incrementalPointUpdates
+	 *            the incrementalPointUpdates to set
+	 */
+	public void setIncrementalPointUpdates(boolean incrementalPointUpdates) {
+		this.incrementalPointUpdates = incrementalPointUpdates;
+	}
+
+	/**
+	 * @return the mercatorScreenPositions
+	 */
+	boolean isMercatorScreenPositions() {
+		return mercatorScreenPositions;
+	}
+
+	/**
+	 * @param mercatorScreenPositions
+	 *            the mercatorScreenPositions to set
+	 */
+	public void setMercatorScreenPositions(boolean mercatorScreenPositions) {
+		this.mercatorScreenPositions = mercatorScreenPositions;
+	}
+
+	/**
+	 * @return the parallelClustering
+	 */
+	boolean isParallelClustering() {
+		return parallelClustering;
+	}
+
+	/**
+	 * @param parallelClustering
+	 *            the parallelClustering to set
+	 */
+	public void setParallelClustering(boolean parallelClustering) {
+		this.parallelClustering = parallelClustering;
+	}
+
+	/**
+	 * @return the parallelClusteringMinPoints
+	 */
+	int getParallelClusteringMinPoints() {
+		return parallelClusteringMinPoints;
+	}
+
+	/**
+	 * @param parallelClusteringMinPoints
+	 *            the parallelClusteringMinPoints to set
+	 */
+	public void setParallelClusteringMinPoints(int parallelClusteringMinPoints) {
+		this.parallelClusteringMinPoints = parallelClusteringMinPoints;
+	}
+
+	/**
+	 * @return the markerDiffing
+	 */
+	boolean isMarkerDiffing() {
+		return markerDiffing;
+	}
+
+	/**
+	 * @param markerDiffing
+	 *            the markerDiffing to set
+	 */
+	public void setMarkerDiffing(boolean markerDiffing) {
+		this.markerDiffing = markerDiffing;
+	}
+
+	/**
+	 * @return the markerVirtualization
+	 */
+	boolean isMarkerVirtualization() {
+		return markerVirtualization;
+	}
+
+	/**
+	 * @param markerVirtualization
+	 *            the markerVirtualization to set
+	 */
+	public void setMarkerVirtualization(boolean markerVirtualization) {
+		this.markerVirtualization = markerVirtualization;
+	}
+
+	/**
+	 * @return the markerVirtualizationMargin
+	 */
+	double getMarkerVirtualizationMargin() {
+		return markerVirtualizationMargin;
+	}
+
+	/**
+	 * @param markerVirtualizationMargin
+	 *            the markerVirtualizationMargin to set
+	 */
+	public void setMarkerVirtualizationMargin(double markerVirtualizationMargin) {
+		this.markerVirtualizationMargin = markerVirtualizationMargin;
+	}
+
+	/**
+	 * @return the clusterPosition
+	 */
+	ClusterPosition getClusterPosition() {
+		return clusterPosition;
+	}
+
+	/**
+	 * @param clusterPosition
+	 *            the clusterPosition to set
+	 */
+	public void setClusterPosition(ClusterPosition clusterPosition) {
+		this.clusterPosition = clusterPosition;
+	}
+
+	/**
+	 * @return the clusterDistanceMetric
+	 */
+	ClusterDistanceMetric getClusterDistanceMetric() {
+		return clusterDistanceMetric;
+	}
+
+	/**
+	 * @param clusterDistanceMetric
+	 *            the clusterDistanceMetric to set
+	 */
+	public void setClusterDistanceMetric(ClusterDistanceMetric clusterDistanceMetric) {
+		this.clusterDistanceMetric = clusterDistanceMetric != null ? clusterDistanceMetric : ClusterDistanceMetric.EUCLIDEAN;
+	}
+
+	/**
+	 * @return the pointThinning
+	 */
+	boolean isPointThinning() {
+		return pointThinning;
+	}
+
+	/**
+	 * @param pointThinning
+	 *            the pointThinning to set
+	 */
+	public void setPointThinning(boolean pointThinning) {
+		this.pointThinning = pointThinning;
+	}
+
+	/**
+	 * @return the pointThinningCellSize
+	 */
+	int getPointThinningCellSize() {
+		return pointThinningCellSize;
+	}
+
+	/**
+	 * @param pointThinningCellSize
+	 *            the pointThinningCellSize to set
+	 */
+	public void setPointThinningCellSize(int pointThinningCellSize) {
+		this.pointThinningCellSize = pointThinningCellSize;
+	}
+
+	/**
+	 * @return the batchedMarkerInsertion
+	 */
+	boolean isBatchedMarkerInsertion() {
+		return batchedMarkerInsertion;
+	}
+
+	/**
+	 * @param batchedMarkerInsertion
+	 *            the batchedMarkerInsertion to set
+	 */
+	public void setBatchedMarkerInsertion(boolean batchedMarkerInsertion) {
+		this.batchedMarkerInsertion = batchedMarkerInsertion;
+	}
+
+	/**
+	 * @return the markerInsertionFrameBudget
+	 */
+	int getMarkerInsertionFrameBudget() {
+		return markerInsertionFrameBudget;
+	}
+
+	/**
+	 * @param markerInsertionFrameBudget
+	 *            the markerInsertionFrameBudget to set
+	 */
+	public void setMarkerInsertionFrameBudget(int markerInsertionFrameBudget) {
+		this.markerInsertionFrameBudget = markerInsertionFrameBudget;
+	}
+
 	ProcessingListener getProcessingListener() {
 		return processingListener;
 	}
@@ -346,6 +682,59 @@ public class Options {
 		this.processingListener = processingListener;
 	}
 
+	MetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+
+	public void setMetricsListener(MetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	/**
+	 * @return the precomputeClusterHierarchy
+	 */
+	boolean isPrecomputeClusterHierarchy() {
+		return precomputeClusterHierarchy;
+	}
+
+	/**
+	 * @param precomputeClusterHierarchy
+	 *            the precomputeClusterHierarchy to set
+	 */
+	public void setPrecomputeClusterHierarchy(boolean precomputeClusterHierarchy) {
+		this.precomputeClusterHierarchy = precomputeClusterHierarchy;
+	}
+
+	/**
+	 * @return the clusterHierarchyMinZoom
+	 */
+	int getClusterHierarchyMinZoom() {
+		return clusterHierarchyMinZoom;
+	}
+
+	/**
+	 * @param clusterHierarchyMinZoom
+	 *            the clusterHierarchyMinZoom to set
+	 */
+	public void setClusterHierarchyMinZoom(int clusterHierarchyMinZoom) {
+		this.clusterHierarchyMinZoom = clusterHierarchyMinZoom;
+	}
+
+	/**
+	 * @return the clusterHierarchyMaxZoom
+	 */
+	int getClusterHierarchyMaxZoom() {
+		return clusterHierarchyMaxZoom;
+	}
+
+	/**
+	 * @param clusterHierarchyMaxZoom
+	 *            the clusterHierarchyMaxZoom to set
+	 */
+	public void setClusterHierarchyMaxZoom(int clusterHierarchyMaxZoom) {
+		this.clusterHierarchyMaxZoom = clusterHierarchyMaxZoom;
+	}
+
 	public enum ClusterClickBehavior {
 		ZOOM_TO_BOUNDS, SHOW_INFO_WINDOW, NO_OP
 	}
@@ -361,4 +750,8 @@ public class Options {
 	public enum SinglePointInfoWindowClickBehavior {
 		HIDE_INFO_WINDOW, NO_OP
 	}
+
+	public enum ClusterPosition {
+		FIRST_POINT, CENTROID, WEIGHTED_CENTROID
+	}
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+/**
+ * Indexes InputPointStore rows by the time and category of their InputPoint
+ * objects so a filter can be changed by visiting only the points whose
+ * visibility changes.
+ *
+ * Points are kept sorted by time, so the points inside a time window are a
+ * contiguous range found by binary search. Moving the window only visits the
+ * points between the old and new ends of the range; toggling categories
+ * visits the points inside the window once, testing each against a bitmask.
+ */
+class PointFilterIndex {
+
+	private static final long ALL_CATEGORIES = -1L;
+
+	/**
+	 * the rows, sorted by time
+	 */
+	private final int[] rows;
+	private final long[] times;
+	/**
+	 * the bit of each point's category, in the same order as rows
+	 */
+	private final long[] categoryBits;
+	/**
+	 * the index in rows of each row, or -1 for rows not in the index,
+	 * indexed by row
+	 */
+	private int[] positions;
+	/**
+	 * the points removed from the index, which no filter shows again
+	 */
+	private final BitSet removedPoints = new BitSet();
+
+	/**
+	 * the current window [start, end) into rows, and the categories shown
+	 * within it
+	 */
+	private int start;
+	private int end;
+	private long categories = ALL_CATEGORIES;
+
+	/**
+	 * @param store
+	 * @param inputRows
+	 *            rows of the store that give back InputPoint objects; rows
+	 *            with the same time keep their order
+	 */
+	PointFilterIndex(InputPointStore store, int[] inputRows) {
+		int count = inputRows.length;
+		long[] unsortedTimes = new long[count];
+		Integer[] order = new Integer[count];
+		int maxRow = -1;
+		for (int i = 0; i < count; i++) {
+			unsortedTimes[i] = store.getInputPoint(inputRows[i]).getTime();
+			order[i] = Integer.valueOf(i);
+			maxRow = Math.max(maxRow, inputRows[i]);
+		}
+		final long[] timesToSort = unsortedTimes;
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				long lhsTime = timesToSort[lhs.intValue()];
+				long rhsTime = timesToSort[rhs.intValue()];
+				return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+			}
+		});
+
+		rows = new int[count];
+		times = new long[count];
+		categoryBits = new long[count];
+		positions = new int[maxRow + 1];
+		Arrays.fill(positions, -1);
+		for (int i = 0; i < count; i++) {
+			int row = inputRows[order[i].intValue()];
+			rows[i] = row;
+			times[i] = unsortedTimes[order[i].intValue()];
+			categoryBits[i] = 1L << store.getInputPoint(row).getCategory();
+			positions[row] = i;
+		}
+		start = 0;
+		end = count;
+	}
+
+	/**
+	 * @return the rows that pass the current filter, in time order
+	 */
+	RowList getFilteredPoints() {
+		RowList filteredPoints = new RowList(end - start);
+		collect(start, end, categories, filteredPoints);
+		return filteredPoints;
+	}
+
+	/**
+	 * Change the filter and report which points it shows and hides
+	 *
+	 * @param fromTime
+	 *            the earliest time shown, inclusive
+	 * @param toTime
+	 *            the latest time shown, exclusive
+	 * @param categories
+	 *            a bitmask with bit n set for each category n shown
+	 * @param added
+	 *            receives the rows the new filter shows that the old one did
+	 *            not
+	 * @param removed
+	 *            receives the rows the old filter showed that the new one does
+	 *            not
+	 */
+	void setFilter(long fromTime, long toTime, long categories, RowList added, RowList removed) {
+		int newStart = lowerBound(fromTime);
+		setWindow(newStart, Math.max(newStart, lowerBound(toTime)), categories, added, removed);
+	}
+
+	/**
+	 * Show every point, including those whose time is Long.MAX_VALUE, which
+	 * no exclusive upper bound can include, and report which points that
+	 * shows
+	 *
+	 * @param added
+	 *            receives the rows the old filter hid
+	 * @param removed
+	 *            receives the rows the old filter showed that are no longer
+	 *            shown, which is always none
+	 */
+	void clearFilter(RowList added, RowList removed) {
+		setWindow(0, rows.length, ALL_CATEGORIES, added, removed);
+	}
+
+	private void setWindow(int newStart, int newEnd, long categories, RowList added, RowList removed) {
+		// points leaving the window
+		collect(start, Math.min(end, newStart), this.categories, removed);
+		collect(Math.max(start, newEnd), end, this.categories, removed);
+
+		// points entering the window
+		collect(newStart, Math.min(newEnd, start), categories, added);
+		collect(Math.max(newStart, end), newEnd, categories, added);
+
+		// points staying in the window whose category was toggled
+		if (categories != this.categories) {
+			for (int i = Math.max(start, newStart), overlapEnd = Math.min(end, newEnd); i < overlapEnd; i++) {
+				if (removedPoints.get(i)) {
+					continue;
+				}
+				boolean wasShown = (this.categories & categoryBits[i]) != 0;
+				boolean isShown = (categories & categoryBits[i]) != 0;
+				if (wasShown && isShown == false) {
+					removed.add(rows[i]);
+				} else if (isShown && wasShown == false) {
+					added.add(rows[i]);
+				}
+			}
+		}
+
+		start = newStart;
+		end = newEnd;
+		this.categories = categories;
+	}
+
+	/**
+	 * Remove rows from the index so that no later filter shows them. Rows that
+	 * are not in the index are ignored.
+	 *
+	 * @param removedRows
+	 */
+	void remove(RowList removedRows) {
+		for (int i = 0; i < removedRows.size(); i++) {
+			int row = removedRows.get(i);
+			if (row < positions.length && positions[row] >= 0) {
+				removedPoints.set(positions[row]);
+			}
+		}
+	}
+
+	/**
+	 * @param rows
+	 *            receives every row in the index that has not been removed
+	 */
+	void collectRows(BitSet rows) {
+		for (int i = 0; i < this.rows.length; i++) {
+			if (removedPoints.get(i) == false) {
+				rows.set(this.rows[i]);
+			}
+		}
+	}
+
+	/**
+	 * Renumber every row that has not been removed, forgetting the rows of
+	 * those that have
+	 *
+	 * @param movedRows
+	 *            the new number of each row, indexed by row
+	 */
+	void moveRows(int[] movedRows) {
+		int maxRow = -1;
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = removedPoints.get(i) ? -1 : movedRows[rows[i]];
+			maxRow = Math.max(maxRow, rows[i]);
+		}
+		positions = new int[maxRow + 1];
+		Arrays.fill(positions, -1);
+		for (int i = 0; i < rows.length; i++) {
+			if (rows[i] >= 0) {
+				positions[rows[i]] = i;
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the first point at or after time
+	 */
+	private int lowerBound(long time) {
+		int low = 0;
+		int high = times.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (times[middle] < time) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private void collect(int from, int to, long categories, RowList out) {
+		for (int i = from; i < to; i++) {
+			if ((categories & categoryBits[i]) != 0 && removedPoints.get(i) == false) {
+				out.add(rows[i]);
+			}
+		}
+	}
+}
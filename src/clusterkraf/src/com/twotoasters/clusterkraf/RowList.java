@@ -0,0 +1,51 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of InputPointStore rows in a primitive array
+ */
+class RowList {
+
+	private int[] rows;
+	private int size;
+
+	RowList() {
+		this(16);
+	}
+
+	RowList(int capacity) {
+		this.rows = new int[Math.max(1, capacity)];
+	}
+
+	void add(int row) {
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, size * 2);
+		}
+		rows[size++] = row;
+	}
+
+	int get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+		}
+		return rows[index];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	int[] toArray() {
+		return Arrays.copyOf(rows, size);
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.twotoasters.clusterkraf;
+
+/**
+ * Maps InputPointStore rows to objects in an open-addressed table of
+ * primitive keys, so indexing every point of a large store by row costs two
+ * arrays rather than a boxed entry per point. Values may not be null.
+ */
+class RowMap<V> {
+
+	private int[] keys;
+	private Object[] values;
+	private int size;
+
+	RowMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            how many rows the map will hold without growing
+	 */
+	RowMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		keys = new int[capacity];
+		values = new Object[capacity];
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(int row) {
+		return (V) values[slotOf(row)];
+	}
+
+	/**
+	 * @return the value previously mapped to the row, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V put(int row, V value) {
+		if (value == null) {
+			throw new NullPointerException("value");
+		}
+		int slot = slotOf(row);
+		Object previous = values[slot];
+		keys[slot] = row;
+		values[slot] = value;
+		if (previous == null && ++size * 2 > keys.length) {
+			grow();
+		}
+		return (V) previous;
+	}
+
+	/**
+	 * @return the value that was mapped to the row, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(int row) {
+		int slot = slotOf(row);
+		Object previous = values[slot];
+		if (previous != null) {
+			values[slot] = null;
+			size--;
+			// shift later entries of the probe run back so lookups still find
+			// them
+			int mask = keys.length - 1;
+			int empty = slot;
+			for (int next = (slot + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+				int home = hashOf(keys[next]) & mask;
+				if (((next - home) & mask) >= ((next - empty) & mask)) {
+					keys[empty] = keys[next];
+					values[empty] = values[next];
+					values[next] = null;
+					empty = next;
+				}
+			}
+		}
+		return (V) previous;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = slotOf(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the slot holding the row, or the empty slot it would go in
+	 */
+	private int slotOf(int row) {
+		int mask = keys.length - 1;
+		int slot = hashOf(row) & mask;
+		while (values[slot] != null && keys[slot] != row) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hashOf(int row) {
+		int hash = row * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.Arrays;
+
+/**
+ * The InputPointStore rows being clustered, kept in an array together with
+ * each row's position in it, so a row can be added, found or removed in
+ * constant time and a clustering pass can take a copy of them all at once.
+ */
+class RowSet {
+
+	private int[] rows = new int[16];
+	private int size;
+
+	/**
+	 * the position of each row in rows, or -1 for rows not in the set,
+	 * indexed by row
+	 */
+	private int[] positions = new int[0];
+
+	/**
+	 * @param row
+	 * @return true if the row was added, false if it was already in the set
+	 */
+	boolean add(int row) {
+		if (contains(row)) {
+			return false;
+		}
+		if (row >= positions.length) {
+			int oldLength = positions.length;
+			positions = Arrays.copyOf(positions, Math.max(row + 1, oldLength * 2));
+			Arrays.fill(positions, oldLength, positions.length, -1);
+		}
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, size * 2);
+		}
+		positions[row] = size;
+		rows[size++] = row;
+		return true;
+	}
+
+	boolean contains(int row) {
+		return row >= 0 && row < positions.length && positions[row] >= 0;
+	}
+
+	/**
+	 * Remove a row by moving the last row into its place, so the order of the
+	 * remaining rows changes
+	 *
+	 * @param row
+	 * @return true if the row was removed, false if it was not in the set
+	 */
+	boolean remove(int row) {
+		if (contains(row) == false) {
+			return false;
+		}
+		int position = positions[row];
+		int last = rows[--size];
+		if (last != row) {
+			rows[position] = last;
+			positions[last] = position;
+		}
+		positions[row] = -1;
+		return true;
+	}
+
+	/**
+	 * Remove rows in a single pass that keeps the remaining rows in order
+	 *
+	 * @param removedRows
+	 */
+	void removeAll(RowList removedRows) {
+		int removedCount = 0;
+		for (int i = 0; i < removedRows.size(); i++) {
+			int row = removedRows.get(i);
+			if (contains(row)) {
+				positions[row] = -1;
+				removedCount++;
+			}
+		}
+		if (removedCount > 0) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				int row = rows[i];
+				if (positions[row] >= 0) {
+					positions[row] = kept;
+					rows[kept++] = row;
+				}
+			}
+			size = kept;
+		}
+	}
+
+	/**
+	 * Renumber every row, keeping their order
+	 *
+	 * @param movedRows
+	 *            the new number of each row, indexed by row
+	 */
+	void moveRows(int[] movedRows) {
+		int maxRow = -1;
+		for (int i = 0; i < size; i++) {
+			rows[i] = movedRows[rows[i]];
+			maxRow = Math.max(maxRow, rows[i]);
+		}
+		positions = new int[maxRow + 1];
+		Arrays.fill(positions, -1);
+		for (int i = 0; i < size; i++) {
+			positions[rows[i]] = i;
+		}
+	}
+
+	int get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+		}
+		return rows[index];
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		rows = new int[16];
+		positions = new int[0];
+		size = 0;
+	}
+
+	int[] toArray() {
+		return Arrays.copyOf(rows, size);
+	}
+
+}
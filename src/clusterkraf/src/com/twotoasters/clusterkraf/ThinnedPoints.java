@@ -0,0 +1,213 @@
+package com.twotoasters.clusterkraf;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bins InputPointStore rows into square cells of Web Mercator world space,
+ * sized in pixels at each integer zoom level, so that a clustering pass only
+ * needs to filter, project and compare one representative per occupied cell.
+ * The other points in a cell join whichever cluster their representative
+ * joins, so cluster sizes stay exact.
+ *
+ * The bins of the few most recently used zoom levels are kept until the
+ * points change.
+ */
+class ThinnedPoints {
+
+	private static final int MAX_CACHED_LEVELS = 3;
+
+	/**
+	 * how many points to bin between cancellation checks
+	 */
+	private static final int CANCELLATION_CHECK_INTERVAL = 1024;
+
+	private final int[] rows;
+	private final MercatorPoints mercatorPoints;
+	private final double worldPixelSizeAtZoomZero;
+	private final int cellSize;
+
+	private final LinkedHashMap<Integer, Level> levels = new LinkedHashMap<Integer, Level>(MAX_CACHED_LEVELS + 1, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Level> eldest) {
+			return size() > MAX_CACHED_LEVELS;
+		}
+	};
+
+	/**
+	 * @param rows
+	 * @param mercatorPoints
+	 *            the world coordinates of every row
+	 * @param worldPixelSizeAtZoomZero
+	 * @param cellSize
+	 *            the width of a cell in pixels
+	 */
+	ThinnedPoints(int[] rows, MercatorPoints mercatorPoints, double worldPixelSizeAtZoomZero, int cellSize) {
+		this.rows = rows;
+		this.mercatorPoints = mercatorPoints;
+		this.worldPixelSizeAtZoomZero = worldPixelSizeAtZoomZero > 0 ? worldPixelSizeAtZoomZero : 256;
+		this.cellSize = cellSize > 0 ? cellSize : 1;
+	}
+
+	int size() {
+		return rows.length;
+	}
+
+	/**
+	 * @param zoom
+	 *            the camera zoom; it is truncated to an integer level
+	 * @param cancellation
+	 * @return the bins for the zoom level, or null if cancelled
+	 */
+	synchronized Level getLevel(float zoom, ClusteringScheduler.Cancellation cancellation) {
+		Integer key = Integer.valueOf(Math.max(0, (int) Math.floor(zoom)));
+		Level level = levels.get(key);
+		if (level == null) {
+			level = buildLevel(key.intValue(), cancellation);
+			if (level != null) {
+				levels.put(key, level);
+			}
+		}
+		return level;
+	}
+
+	private Level buildLevel(int zoom, ClusteringScheduler.Cancellation cancellation) {
+		double cellsPerWorld = worldPixelSizeAtZoomZero * Math.pow(2, zoom) / cellSize;
+		double[] xs = mercatorPoints.xs;
+		double[] ys = mercatorPoints.ys;
+		RepresentativeCells representativesByCell = new RepresentativeCells();
+
+		// which representative each row belongs to, and how many others each
+		// representative has
+		int[] representativeOf = new int[rows.length];
+		int[] representatives = new int[16];
+		int[] otherCounts = new int[16];
+		int representativeCount = 0;
+		for (int i = 0; i < rows.length; i++) {
+			if (cancellation != null && i % CANCELLATION_CHECK_INTERVAL == 0 && cancellation.isCancelled()) {
+				return null;
+			}
+			int row = rows[i];
+			long cellX = (long) Math.floor(xs[row] * cellsPerWorld);
+			long cellY = (long) Math.floor(ys[row] * cellsPerWorld);
+			long cell = (cellX << 32) | (cellY & 0xffffffffL);
+			int representative = representativesByCell.putIfAbsent(cell, representativeCount);
+			if (representative < 0) {
+				if (representativeCount == representatives.length) {
+					representatives = Arrays.copyOf(representatives, representativeCount * 2);
+					otherCounts = Arrays.copyOf(otherCounts, representativeCount * 2);
+				}
+				representatives[representativeCount] = row;
+				representativeOf[i] = representativeCount++;
+			} else {
+				representativeOf[i] = representative;
+				otherCounts[representative]++;
+			}
+		}
+
+		int[] otherStarts = new int[representativeCount + 1];
+		for (int representative = 0; representative < representativeCount; representative++) {
+			otherStarts[representative + 1] = otherStarts[representative] + otherCounts[representative];
+		}
+		int[] others = new int[otherStarts[representativeCount]];
+		int[] filled = new int[representativeCount];
+		for (int i = 0; i < rows.length; i++) {
+			int representative = representativeOf[i];
+			if (representatives[representative] != rows[i]) {
+				others[otherStarts[representative] + filled[representative]++] = rows[i];
+			}
+		}
+		return new Level(Arrays.copyOf(representatives, representativeCount), otherStarts, others);
+	}
+
+	/**
+	 * The representative of each occupied cell of a level being built, in an
+	 * open-addressed table from the cell's key, as ClusterHierarchy keeps its
+	 * seed cells, so binning a point boxes nothing
+	 */
+	private static class RepresentativeCells {
+
+		private long[] keys = new long[64];
+		private int[] representatives = new int[64];
+		private int cellCount;
+
+		private RepresentativeCells() {
+			Arrays.fill(representatives, -1);
+		}
+
+		/**
+		 * @return the representative of the cell, or -1 if it had none and
+		 *         now has the given one
+		 */
+		private int putIfAbsent(long key, int representative) {
+			int slot = slotOf(key, keys, representatives);
+			if (representatives[slot] >= 0) {
+				return representatives[slot];
+			}
+			keys[slot] = key;
+			representatives[slot] = representative;
+			if (++cellCount * 2 > keys.length) {
+				grow();
+			}
+			return -1;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldRepresentatives = representatives;
+			keys = new long[oldKeys.length * 2];
+			representatives = new int[oldKeys.length * 2];
+			Arrays.fill(representatives, -1);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldRepresentatives[i] >= 0) {
+					int slot = slotOf(oldKeys[i], keys, representatives);
+					keys[slot] = oldKeys[i];
+					representatives[slot] = oldRepresentatives[i];
+				}
+			}
+		}
+
+		/**
+		 * @return the slot holding the key, or the empty slot it would go in
+		 */
+		private static int slotOf(long key, long[] keys, int[] representatives) {
+			int mask = keys.length - 1;
+			long hash = key * 0x9e3779b97f4a7c15L;
+			int slot = (int) (hash >>> 32) & mask;
+			while (representatives[slot] >= 0 && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * The bins at a single zoom level
+	 */
+	static class Level {
+
+		/**
+		 * the row of the first point of each occupied cell, in the order of the
+		 * rows
+		 */
+		final int[] representatives;
+
+		/**
+		 * the rows sharing the cell of representatives[i] are others[j] for j
+		 * from otherStarts[i] up to otherStarts[i + 1]
+		 */
+		final int[] otherStarts;
+		final int[] others;
+
+		private Level(int[] representatives, int[] otherStarts, int[] others) {
+			this.representatives = representatives;
+			this.otherStarts = otherStarts;
+			this.others = others;
+		}
+	}
+
+}
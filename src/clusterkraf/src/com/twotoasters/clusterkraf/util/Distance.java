@@ -16,9 +16,23 @@ public class Distance {
 	 * @return the distance between two points
 	 */
 	public static double from(double x1, double y1, double x2, double y2) {
-		double a = Math.abs(x1 - x2);
-		double b = Math.abs(y1 - y2);
-		return Math.sqrt(Math.pow(a, 2) + Math.pow(b, 2));
+		return Math.sqrt(squared(x1, y1, x2, y2));
+	}
+
+	/**
+	 * calculate the squared distance between two points, for comparing
+	 * against a squared threshold without taking a square root
+	 * 
+	 * @param x1
+	 * @param y1
+	 * @param x2
+	 * @param y2
+	 * @return the squared distance between two points
+	 */
+	public static double squared(double x1, double y1, double x2, double y2) {
+		double a = x1 - x2;
+		double b = y1 - y2;
+		return a * a + b * b;
 	}
 
 	/**
@@ -0,0 +1,79 @@
+package com.twotoasters.clusterkraf.util;
+
+import android.graphics.Point;
+
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+
+/**
+ * utility for converting between latitude/longitude and Web Mercator world
+ * coordinates, where the whole world spans 0..1 on both axes
+ */
+public class Mercator {
+
+	/**
+	 * @param longitude
+	 * @return the world x coordinate of the longitude, from 0 (180 west) to 1
+	 *         (180 east)
+	 */
+	public static double xFromLongitude(double longitude) {
+		return longitude / 360 + 0.5;
+	}
+
+	/**
+	 * @param latitude
+	 * @return the world y coordinate of the latitude, from 0 (north) to 1
+	 *         (south), clamped at the poles
+	 */
+	public static double yFromLatitude(double latitude) {
+		double sin = Math.sin(Math.toRadians(latitude));
+		double y = 0.5 - 0.25 * Math.log((1 + sin) / (1 - sin)) / Math.PI;
+		return y < 0 ? 0 : y > 1 ? 1 : y;
+	}
+
+	/**
+	 * @param x
+	 * @return the longitude of the world x coordinate
+	 */
+	public static double longitudeFromX(double x) {
+		return (x - 0.5) * 360;
+	}
+
+	/**
+	 * @param y
+	 * @return the latitude of the world y coordinate
+	 */
+	public static double latitudeFromY(double y) {
+		double y2 = (180 - y * 360) * Math.PI / 180;
+		return 360 * Math.atan(Math.exp(y2)) / Math.PI - 90;
+	}
+
+	/**
+	 * Measure how many screen pixels the width of the world would occupy at
+	 * zoom level 0, which lets pixel distances be converted to world
+	 * coordinates at any zoom level without a Projection.
+	 *
+	 * @param projection
+	 * @param cameraPosition
+	 * @return the world width in pixels at zoom level 0, or 0 if it could not
+	 *         be measured
+	 */
+	public static double worldPixelSizeAtZoomZero(Projection projection, CameraPosition cameraPosition) {
+		if (projection != null && cameraPosition != null && cameraPosition.target != null) {
+			double scale = Math.pow(2, cameraPosition.zoom);
+			// measure a short span of longitude, heading away from the 180
+			// meridian so the second point does not wrap around the world
+			double span = 360 / scale / 16;
+			LatLng target = cameraPosition.target;
+			LatLng other = new LatLng(target.latitude, target.longitude > 0 ? target.longitude - span : target.longitude + span);
+			Point a = projection.toScreenLocation(target);
+			Point b = projection.toScreenLocation(other);
+			double pixels = Distance.from(a, b);
+			if (pixels > 0) {
+				return pixels * (360 / span) / scale;
+			}
+		}
+		return 0;
+	}
+}
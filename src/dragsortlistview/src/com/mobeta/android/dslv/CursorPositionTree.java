@@ -0,0 +1,268 @@
+package com.mobeta.android.dslv;
+
+import java.util.Random;
+
+/**
+ * Order-statistic tree (an implicit treap) holding the Cursor positions
+ * still in a {@link DragSortCursorAdapter}, in list order. A Cursor
+ * position's list position is its rank in the tree.
+ *
+ * Every node is a Cursor position, so the tree is kept in parallel
+ * arrays indexed by Cursor position rather than in node objects.
+ * Moving and removing list positions, and mapping positions in either
+ * direction, all take O(log n) expected time.
+ */
+class CursorPositionTree {
+
+    private static final int NONE = -1;
+
+    private final int[] mLeft;
+    private final int[] mRight;
+    private final int[] mParent;
+    private final int[] mSize;
+    private final int[] mPriority;
+
+    private int mRoot = NONE;
+
+    /**
+     * Results of {@link #split(int, int)}.
+     */
+    private int mSplitLeft;
+    private int mSplitRight;
+
+    /**
+     * Builds a tree holding the Cursor positions 0 through count - 1
+     * in order.
+     *
+     * @param count The number of rows in the Cursor
+     */
+    public CursorPositionTree(int count) {
+        mLeft = new int[count];
+        mRight = new int[count];
+        mParent = new int[count];
+        mSize = new int[count];
+        mPriority = new int[count];
+
+        // Build the treap in one left-to-right pass, keeping its
+        // right spine on a stack.
+        Random random = new Random();
+        int[] spine = new int[count];
+        int top = -1;
+        for (int i = 0; i < count; ++i) {
+            mPriority[i] = random.nextInt();
+            int last = NONE;
+            while (top >= 0 && mPriority[spine[top]] < mPriority[i]) {
+                last = spine[top--];
+            }
+            mLeft[i] = last;
+            mRight[i] = NONE;
+            if (last != NONE) {
+                mParent[last] = i;
+            }
+            if (top >= 0) {
+                mRight[spine[top]] = i;
+                mParent[i] = spine[top];
+            } else {
+                mParent[i] = NONE;
+            }
+            spine[++top] = i;
+        }
+        if (top >= 0) {
+            mRoot = spine[0];
+            updateSizes(mRoot);
+        }
+    }
+
+    /**
+     * @return The number of Cursor positions the tree was built with,
+     * including removed ones
+     */
+    public int capacity() {
+        return mSize.length;
+    }
+
+    /**
+     * @return The number of Cursor positions in the tree
+     */
+    public int size() {
+        return size(mRoot);
+    }
+
+    /**
+     * @param listPosition A list position less than {@link #size()}
+     * @return The Cursor position at the list position
+     */
+    public int getCursorPosition(int listPosition) {
+        int node = mRoot;
+        while (node != NONE) {
+            int leftSize = size(mLeft[node]);
+            if (listPosition < leftSize) {
+                node = mLeft[node];
+            } else if (listPosition == leftSize) {
+                return node;
+            } else {
+                listPosition -= leftSize + 1;
+                node = mRight[node];
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @param cursorPosition A Cursor position
+     * @return The list position of the Cursor position, or -1 if it
+     * has been removed or is outside the tree
+     */
+    public int getListPosition(int cursorPosition) {
+        if (cursorPosition < 0 || cursorPosition >= mSize.length
+                || (mParent[cursorPosition] == NONE && cursorPosition != mRoot)) {
+            return NONE;
+        }
+        int node = cursorPosition;
+        int rank = size(mLeft[node]);
+        while (mParent[node] != NONE) {
+            int parent = mParent[node];
+            if (mRight[parent] == node) {
+                rank += size(mLeft[parent]) + 1;
+            }
+            node = parent;
+        }
+        return rank;
+    }
+
+    /**
+     * Moves the Cursor position at one list position to another,
+     * shifting those in between by one.
+     */
+    public void move(int from, int to) {
+        int size = size();
+        if (from < 0 || from >= size || to < 0 || to >= size) {
+            return;
+        }
+        int node = detach(from);
+        split(mRoot, to);
+        int left = mSplitLeft;
+        int right = mSplitRight;
+        setRoot(merge(merge(left, node), right));
+    }
+
+    /**
+     * Removes the Cursor position at a list position, shifting those
+     * after it up by one.
+     *
+     * @return The removed Cursor position, or -1 if the list position
+     * is outside the tree
+     */
+    public int remove(int listPosition) {
+        if (listPosition < 0 || listPosition >= size()) {
+            return NONE;
+        }
+        return detach(listPosition);
+    }
+
+    /**
+     * Copies the Cursor positions into an array in list order.
+     *
+     * @param out An array at least {@link #size()} long
+     */
+    public void copyTo(int[] out) {
+        int[] stack = new int[mSize.length];
+        int top = -1;
+        int count = 0;
+        int node = mRoot;
+        while (node != NONE || top >= 0) {
+            while (node != NONE) {
+                stack[++top] = node;
+                node = mLeft[node];
+            }
+            node = stack[top--];
+            out[count++] = node;
+            node = mRight[node];
+        }
+    }
+
+    private int detach(int listPosition) {
+        split(mRoot, listPosition);
+        int left = mSplitLeft;
+        split(mSplitRight, 1);
+        int node = mSplitLeft;
+        int right = mSplitRight;
+        setRoot(merge(left, right));
+        mParent[node] = NONE;
+        return node;
+    }
+
+    /**
+     * Splits the subtree at node into its first count positions,
+     * left in mSplitLeft, and the rest, left in mSplitRight.
+     */
+    private void split(int node, int count) {
+        if (node == NONE) {
+            mSplitLeft = NONE;
+            mSplitRight = NONE;
+            return;
+        }
+        int leftSize = size(mLeft[node]);
+        if (count <= leftSize) {
+            split(mLeft[node], count);
+            setLeft(node, mSplitRight);
+            mSplitRight = node;
+        } else {
+            split(mRight[node], count - leftSize - 1);
+            setRight(node, mSplitLeft);
+            mSplitLeft = node;
+        }
+        mSize[node] = size(mLeft[node]) + size(mRight[node]) + 1;
+    }
+
+    private int merge(int left, int right) {
+        if (left == NONE) {
+            return right;
+        }
+        if (right == NONE) {
+            return left;
+        }
+        if (mPriority[left] > mPriority[right]) {
+            setRight(left, merge(mRight[left], right));
+            mSize[left] = size(mLeft[left]) + size(mRight[left]) + 1;
+            return left;
+        } else {
+            setLeft(right, merge(left, mLeft[right]));
+            mSize[right] = size(mLeft[right]) + size(mRight[right]) + 1;
+            return right;
+        }
+    }
+
+    private void setRoot(int node) {
+        mRoot = node;
+        if (node != NONE) {
+            mParent[node] = NONE;
+        }
+    }
+
+    private void setLeft(int node, int child) {
+        mLeft[node] = child;
+        if (child != NONE) {
+            mParent[child] = node;
+        }
+    }
+
+    private void setRight(int node, int child) {
+        mRight[node] = child;
+        if (child != NONE) {
+            mParent[child] = node;
+        }
+    }
+
+    private int size(int node) {
+        return node == NONE ? 0 : mSize[node];
+    }
+
+    private int updateSizes(int node) {
+        if (node == NONE) {
+            return 0;
+        }
+        mSize[node] = updateSizes(mLeft[node]) + updateSizes(mRight[node]) + 1;
+        return mSize[node];
+    }
+}
@@ -1,10 +1,10 @@
 package com.mobeta.android.dslv;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.util.SparseIntArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.support.v4.widget.CursorAdapter;
@@ -17,7 +17,10 @@ import android.support.v4.widget.CursorAdapter;
  * list positions into Cursor positions (the Cursor is unchanged).
  * To persist changes made by drag-sorts, one can retrieve the
  * mapping with the {@link #getCursorPositions()} method, which
- * returns the reordered list of Cursor positions.
+ * returns the reordered list of Cursor positions, or with
+ * {@link #getCursorPositionArray()}, which returns it unboxed, or
+ * as a short list of range moves and deletes with
+ * {@link #getEditScript()}.
  *
  * An instance of this class is passed
  * to {@link DragSortListView#setAdapter(ListAdapter)} and, since
@@ -30,11 +33,15 @@ public abstract class DragSortCursorAdapter extends CursorAdapter implements Dra
     public static final int REMOVED = -1;
 
     /**
-     * Key is ListView position, value is Cursor position
+     * Cursor positions in list order. Null until the first drop or
+     * remove; until then, list and Cursor positions are the same.
+     * Lookups in either direction take O(log n), so drops and
+     * removes never need the whole mapping rebuilt.
      */
-    private SparseIntArray mListMapping = new SparseIntArray();
+    private CursorPositionTree mListMapping;
 
-    private ArrayList<Integer> mRemovedCursorPositions = new ArrayList<Integer>();
+    private BitSet mRemovedCursorPositions = new BitSet();
+    private int mRemovedCount;
     
     public DragSortCursorAdapter(Context context, Cursor c) {
         super(context, c);
@@ -80,33 +87,41 @@ public abstract class DragSortCursorAdapter extends CursorAdapter implements Dra
     }
 
     private void resetMappings() {
-        mListMapping.clear();
+        mListMapping = null;
         mRemovedCursorPositions.clear();
+        mRemovedCount = 0;
+    }
+
+    private CursorPositionTree getListMapping() {
+        if (mListMapping == null) {
+            mListMapping = new CursorPositionTree(super.getCount());
+        }
+        return mListMapping;
     }
 
     @Override
     public Object getItem(int position) {
-        return super.getItem(mListMapping.get(position, position));
+        return super.getItem(getCursorPosition(position));
     }
 
     @Override
     public long getItemId(int position) {
-        return super.getItemId(mListMapping.get(position, position));
+        return super.getItemId(getCursorPosition(position));
     }
 
     @Override
     public View getDropDownView(int position, View convertView, ViewGroup parent) {
-        return super.getDropDownView(mListMapping.get(position, position), convertView, parent);
+        return super.getDropDownView(getCursorPosition(position), convertView, parent);
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        return super.getView(mListMapping.get(position, position), convertView, parent);
+        return super.getView(getCursorPosition(position), convertView, parent);
     }
 
     /**
      * On drop, this updates the mapping between Cursor positions
-     * and ListView positions. The Cursor is unchanged. Retrieve
+     * and ListView positions in O(log n). The Cursor is unchanged. Retrieve
      * the current mapping with {@link getCursorPositions()}.
      *
      * @see DragSortListView.DropListener#drop(int, int)
@@ -114,46 +129,26 @@ public abstract class DragSortCursorAdapter extends CursorAdapter implements Dra
     @Override
     public void drop(int from, int to) {
         if (from != to) {
-            int cursorFrom = mListMapping.get(from, from);
-
-            if (from > to) {
-                for (int i = from; i > to; --i) {
-                    mListMapping.put(i, mListMapping.get(i - 1, i - 1));
-                }
-            } else {
-                for (int i = from; i < to; ++i) {
-                    mListMapping.put(i, mListMapping.get(i + 1, i + 1));
-                }
-            }
-            mListMapping.put(to, cursorFrom);
-
-            cleanMapping();        
+            getListMapping().move(from, to);
             notifyDataSetChanged();
         }
     }
 
     /**
      * On remove, this updates the mapping between Cursor positions
-     * and ListView positions. The Cursor is unchanged. Retrieve
+     * and ListView positions in O(log n). The Cursor is unchanged. Retrieve
      * the current mapping with {@link getCursorPositions()}.
      *
      * @see DragSortListView.RemoveListener#remove(int)
      */
     @Override
     public void remove(int which) {
-        int cursorPos = mListMapping.get(which, which);
-        if (!mRemovedCursorPositions.contains(cursorPos)) {
-            mRemovedCursorPositions.add(cursorPos);
-        }
-
-        int newCount = getCount();
-        for (int i = which; i < newCount; ++i) {
-            mListMapping.put(i, mListMapping.get(i + 1, i + 1));
+        int cursorPos = getListMapping().remove(which);
+        if (cursorPos >= 0 && !mRemovedCursorPositions.get(cursorPos)) {
+            mRemovedCursorPositions.set(cursorPos);
+            ++mRemovedCount;
         }
 
-        mListMapping.delete(newCount);
-
-        cleanMapping();
         notifyDataSetChanged();
     }
 
@@ -165,28 +160,9 @@ public abstract class DragSortCursorAdapter extends CursorAdapter implements Dra
         // do nothing
     }
 
-    /**
-     * Remove unnecessary mappings from sparse array.
-     */
-    private void cleanMapping() {
-        ArrayList<Integer> toRemove = new ArrayList<Integer>();
-
-        int size = mListMapping.size();
-        for (int i = 0; i < size; ++i) {
-            if (mListMapping.keyAt(i) == mListMapping.valueAt(i)) {
-                toRemove.add(mListMapping.keyAt(i));
-            }
-        }
-
-        size = toRemove.size();
-        for (int i = 0; i < size; ++i) {
-            mListMapping.delete(toRemove.get(i));
-        }
-    }
-
     @Override
     public int getCount() {
-        return super.getCount() - mRemovedCursorPositions.size();
+        return super.getCount() - mRemovedCount;
     }
 
     /**
@@ -199,7 +175,10 @@ public abstract class DragSortCursorAdapter extends CursorAdapter implements Dra
      * @return The mapped-to Cursor position
      */
     public int getCursorPosition(int position) {
-        return mListMapping.get(position, position);
+        if (mListMapping == null || position < 0 || position >= mListMapping.size()) {
+            return position;
+        }
+        return mListMapping.getCursorPosition(position);
     }
 
     /**
@@ -207,34 +186,95 @@ public abstract class DragSortCursorAdapter extends CursorAdapter implements Dra
      * list.
      */
     public ArrayList<Integer> getCursorPositions() {
-        ArrayList<Integer> result = new ArrayList<Integer>();
+        int[] positions = getCursorPositionArray();
+        ArrayList<Integer> result = new ArrayList<Integer>(positions.length);
+
+        for (int i = 0; i < positions.length; ++i) {
+            result.add(positions[i]);
+        }
 
-        for (int i = 0; i < getCount(); ++i) {
-            result.add(mListMapping.get(i, i));
+        return result;
+    }
+
+    /**
+     * Get the current order of Cursor positions presented by the
+     * list, without boxing them.
+     *
+     * @return A new array of Cursor positions indexed by list position
+     */
+    public int[] getCursorPositionArray() {
+        int count = getCount();
+        int[] result = new int[count];
+
+        int mapped = 0;
+        if (mListMapping != null) {
+            mapped = mListMapping.size();
+            if (mapped <= count) {
+                mListMapping.copyTo(result);
+            } else {
+                int[] positions = new int[mapped];
+                mListMapping.copyTo(positions);
+                mapped = count;
+                System.arraycopy(positions, 0, result, 0, mapped);
+            }
+        }
+        for (int i = mapped; i < count; ++i) {
+            result[i] = i;
         }
 
         return result;
     }
 
+    /**
+     * Get the edit script that turns the Cursor's order into the
+     * order presented by the list: contiguous ranges of rows to
+     * delete, then to move, so that all drag-sorts since the Cursor
+     * was set or the mapping was last reset can be persisted in a
+     * single batch.
+     *
+     * @return The edits to apply in order, empty if nothing changed
+     * @see ReorderEdit
+     */
+    public ArrayList<ReorderEdit> getEditScript() {
+        if (mListMapping == null) {
+            return new ArrayList<ReorderEdit>();
+        }
+        int[] cursorPositions = new int[mListMapping.size()];
+        mListMapping.copyTo(cursorPositions);
+        return ReorderEdit.diff(cursorPositions, mListMapping.capacity(), mRemovedCursorPositions);
+    }
+
+    /**
+     * Get the edit script as {@link #getEditScript()} does, then reset
+     * the list-Cursor mapping as the edits are about to be applied to
+     * the underlying data. The list is not refreshed; it should next
+     * be given a Cursor over the edited data.
+     *
+     * @return The edits to apply in order, empty if nothing changed
+     */
+    public ArrayList<ReorderEdit> commitEditScript() {
+        ArrayList<ReorderEdit> script = getEditScript();
+        resetMappings();
+        return script;
+    }
+
     /**
      * Get the list position mapped to by the provided Cursor position.
      * If the provided Cursor position has been removed by a drag-sort,
-     * this returns {@link #REMOVED}.
+     * this returns {@link #REMOVED}. Takes O(log n) time.
      *
      * @param cursorPosition A Cursor position
      * @return The mapped-to list position or REMOVED
      */
     public int getListPosition(int cursorPosition) {
-        if (mRemovedCursorPositions.contains(cursorPosition)) {
+        if (cursorPosition >= 0 && mRemovedCursorPositions.get(cursorPosition)) {
             return REMOVED;
         }
 
-        int index = mListMapping.indexOfValue(cursorPosition);
-        if (index < 0) {
+        if (mListMapping == null || cursorPosition < 0 || cursorPosition >= mListMapping.capacity()) {
             return cursorPosition;
-        } else {
-            return mListMapping.keyAt(index);
         }
+        return mListMapping.getListPosition(cursorPosition);
     }
 
 
@@ -33,7 +33,6 @@ import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.SparseBooleanArray;
-import android.util.SparseIntArray;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
@@ -47,7 +46,7 @@ import android.widget.ListView;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * ListView subclass that mediates drag and drop resorting of items.
@@ -429,6 +428,16 @@ public class DragSortListView extends ListView {
     private static final int sCacheSize = 3;
     private HeightCache mChildHeightCache = new HeightCache(sCacheSize);
 
+    /**
+     * Child heights of all items, kept during a drag when enabled by
+     * {@link #setHeightIndexEnabled(boolean)}. Filled from
+     * mChildHeightProvider at the start of the drag, if there is one,
+     * and as items are measured.
+     */
+    private boolean mHeightIndexEnabled = false;
+    private HeightIndex mHeightIndex;
+    private ChildHeightProvider mChildHeightProvider;
+
     private RemoveAnimator mRemoveAnimator;
 
     private LiftAnimator mLiftAnimator;
@@ -591,6 +600,54 @@ public class DragSortListView extends ListView {
         mMaxScrollSpeed = max;
     }
 
+    /**
+     * Set how many offscreen child heights are cached while dragging.
+     * Lists of variable-height items benefit from a larger cache.
+     * Clears the cache and its hit rate.
+     *
+     * @param size Number of heights to cache; the default is 3.
+     */
+    public void setHeightCacheSize(int size) {
+        mChildHeightCache = new HeightCache(size);
+    }
+
+    /**
+     * Get the fraction of offscreen child height lookups that the
+     * cache answered without measuring the item, for tuning
+     * {@link #setHeightCacheSize(int)}.
+     *
+     * @return The hit rate since the cache was created or the rate
+     * last reset, or 0 if there have been no lookups
+     */
+    public float getHeightCacheHitRate() {
+        return mChildHeightCache.getHitRate();
+    }
+
+    /**
+     * Restart the hit rate returned by {@link #getHeightCacheHitRate()}.
+     */
+    public void resetHeightCacheHitRate() {
+        mChildHeightCache.resetStats();
+    }
+
+    /**
+     * Index the child heights of all items while dragging, so that
+     * the drop position under the float View is found in O(log n)
+     * and offscreen items are measured at most once per drag. Heights
+     * come from the adapter if it implements
+     * {@link ChildHeightProvider}, and otherwise from measuring items
+     * as they are needed. Worthwhile for long lists of items with
+     * differing heights.
+     *
+     * @param enabled Whether to index heights; the default is false.
+     */
+    public void setHeightIndexEnabled(boolean enabled) {
+        mHeightIndexEnabled = enabled;
+        if (!enabled) {
+            mHeightIndex = null;
+        }
+    }
+
     /**
      * For each DragSortListView Listener interface implemented by
      * <code>adapter</code>, this method calls the appropriate
@@ -616,8 +673,11 @@ public class DragSortListView extends ListView {
             if (adapter instanceof RemoveListener) {
                 setRemoveListener((RemoveListener) adapter);
             }
+            mChildHeightProvider = adapter instanceof ChildHeightProvider
+                    ? (ChildHeightProvider) adapter : null;
         } else {
             mAdapterWrapper = null;
+            mChildHeightProvider = null;
         }
 
         super.setAdapter(mAdapterWrapper);
@@ -848,45 +908,172 @@ public class DragSortListView extends ListView {
                 + mSecondExpPos);
     }
 
+    /**
+     * Least-recently-used cache of child heights by position. Positions
+     * are found through an open-addressed hash table and the entries
+     * are linked in use order, so add() and get() take constant time
+     * and allocate nothing.
+     */
     private class HeightCache {
 
-        private SparseIntArray mMap;
-        private ArrayList<Integer> mOrder;
-        private int mMaxSize;
+        private static final int EMPTY = -1;
+
+        private final int mMaxSize;
+        private int mSize;
+
+        /**
+         * Entry data, indexed by entry. mPrev and mNext link entries from
+         * least (mOldest) to most (mNewest) recently used.
+         */
+        private final int[] mPositions;
+        private final int[] mHeights;
+        private final int[] mPrev;
+        private final int[] mNext;
+        private int mOldest = EMPTY;
+        private int mNewest = EMPTY;
+
+        /**
+         * Hash table of entries, probed linearly. Kept at most half full.
+         */
+        private final int[] mTable;
+        private final int mMask;
+
+        private int mHits;
+        private int mMisses;
 
         public HeightCache(int size) {
-            mMap = new SparseIntArray(size);
-            mOrder = new ArrayList<Integer>(size);
-            mMaxSize = size;
+            mMaxSize = Math.max(1, size);
+            mPositions = new int[mMaxSize];
+            mHeights = new int[mMaxSize];
+            mPrev = new int[mMaxSize];
+            mNext = new int[mMaxSize];
+
+            int tableSize = Integer.highestOneBit(mMaxSize * 2 - 1) << 1;
+            mTable = new int[tableSize];
+            mMask = tableSize - 1;
+            Arrays.fill(mTable, EMPTY);
         }
 
         /**
-         * Add item height at position if doesn't already exist.
+         * Add item height at position, or update it, and mark it as
+         * the most recently used.
          */
         public void add(int position, int height) {
-            int currHeight = mMap.get(position, -1);
-            if (currHeight != height) {
-                if (currHeight == -1) {
-                    if (mMap.size() == mMaxSize) {
-                        // remove oldest entry
-                        mMap.delete(mOrder.remove(0));
-                    }
+            int slot = findSlot(position);
+            int entry = mTable[slot];
+            if (entry == EMPTY) {
+                if (mSize == mMaxSize) {
+                    // reuse the oldest entry
+                    entry = mOldest;
+                    removeFromTable(mPositions[entry]);
+                    unlink(entry);
+                    slot = findSlot(position);
                 } else {
-                    // move position to newest slot
-                    mOrder.remove((Integer) position);
+                    entry = mSize++;
                 }
-                mMap.put(position, height);
-                mOrder.add(position);
+                mPositions[entry] = position;
+                mTable[slot] = entry;
+            } else {
+                unlink(entry);
             }
+            mHeights[entry] = height;
+            linkNewest(entry);
         }
 
         public int get(int position) {
-            return mMap.get(position, -1);
+            int entry = mTable[findSlot(position)];
+            if (entry == EMPTY) {
+                ++mMisses;
+                return -1;
+            }
+            ++mHits;
+            if (entry != mNewest) {
+                unlink(entry);
+                linkNewest(entry);
+            }
+            return mHeights[entry];
         }
 
         public void clear() {
-            mMap.clear();
-            mOrder.clear();
+            Arrays.fill(mTable, EMPTY);
+            mSize = 0;
+            mOldest = EMPTY;
+            mNewest = EMPTY;
+        }
+
+        /**
+         * @return The fraction of get() calls that found a height, or
+         * 0 if there have been none
+         */
+        public float getHitRate() {
+            int lookups = mHits + mMisses;
+            return lookups == 0 ? 0f : (float) mHits / lookups;
+        }
+
+        public void resetStats() {
+            mHits = 0;
+            mMisses = 0;
+        }
+
+        /**
+         * @return The table slot holding position, or the empty slot
+         * where it would go
+         */
+        private int findSlot(int position) {
+            int slot = hash(position) & mMask;
+            while (mTable[slot] != EMPTY && mPositions[mTable[slot]] != position) {
+                slot = (slot + 1) & mMask;
+            }
+            return slot;
+        }
+
+        private void removeFromTable(int position) {
+            int slot = findSlot(position);
+            mTable[slot] = EMPTY;
+            // shift back later entries of the probe run so lookups
+            // never stop early at the hole
+            int next = (slot + 1) & mMask;
+            while (mTable[next] != EMPTY) {
+                int entry = mTable[next];
+                int home = hash(mPositions[entry]) & mMask;
+                if (((next - home) & mMask) >= ((next - slot) & mMask)) {
+                    mTable[slot] = entry;
+                    mTable[next] = EMPTY;
+                    slot = next;
+                }
+                next = (next + 1) & mMask;
+            }
+        }
+
+        private int hash(int position) {
+            int h = position * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private void unlink(int entry) {
+            int prev = mPrev[entry];
+            int next = mNext[entry];
+            if (prev == EMPTY) {
+                mOldest = next;
+            } else {
+                mNext[prev] = next;
+            }
+            if (next == EMPTY) {
+                mNewest = prev;
+            } else {
+                mPrev[next] = prev;
+            }
+        }
+
+        private void linkNewest(int entry) {
+            mPrev[entry] = mNewest;
+            mNext[entry] = EMPTY;
+            if (mNewest == EMPTY) {
+                mOldest = entry;
+            } else {
+                mNext[mNewest] = entry;
+            }
+            mNewest = entry;
         }
 
     }
@@ -984,6 +1171,17 @@ public class DragSortListView extends ListView {
 
         int itemHeight = startView.getHeight();
 
+        if (mHeightIndex != null) {
+            // jump to the item under the float View using indexed
+            // heights instead of walking there one item at a time
+            int jumpPos = findIndexedPosition(startPos, startTop, mFloatViewMid);
+            if (jumpPos != startPos) {
+                startTop += getIndexedDistance(startPos, jumpPos);
+                startPos = jumpPos;
+                itemHeight = getItemHeight(startPos);
+            }
+        }
+
         int edge = getShuffleEdge(startPos, startTop);
         int lastEdge = edge;
 
@@ -1669,6 +1867,108 @@ public class DragSortListView extends ListView {
         mCurrFloatAlpha = mFloatAlpha;
         mListViewIntercepted = false;
         mChildHeightCache.clear();
+        mHeightIndex = null;
+    }
+
+    /**
+     * Create the height index for a drag from the ChildHeightProvider,
+     * if any. The source item counts as having no child, as in
+     * {@link #getChildHeight(int)}.
+     */
+    private void buildHeightIndex() {
+        mHeightIndex = new HeightIndex(getCount());
+        if (mChildHeightProvider != null) {
+            final int numHeaders = getHeaderViewsCount();
+            final int count = getCount() - numHeaders - getFooterViewsCount();
+            for (int i = 0; i < count; ++i) {
+                mHeightIndex.set(numHeaders + i, mChildHeightProvider.getChildHeight(i));
+            }
+        }
+        mHeightIndex.set(mSrcPos, 0);
+    }
+
+    /**
+     * Find the item whose top is nearest above y, as far as indexed
+     * heights reach from startPos.
+     *
+     * @param startPos An item position
+     * @param startTop The y-coord of the top of the item at startPos
+     * @param y A y-coord
+     *
+     * @return The position found, or startPos if too few heights are
+     * indexed to move from it
+     */
+    private int findIndexedPosition(int startPos, int startTop, int y) {
+        // [lo, hi] is the range of positions whose tops are
+        // reachable from startPos through indexed heights
+        int lo = 0;
+        int hi = startPos;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mHeightIndex.isKnown(mid, startPos)) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        final int reachLow = lo;
+
+        lo = startPos;
+        hi = getCount() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mHeightIndex.isKnown(startPos, mid)) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        final int reachHigh = lo;
+
+        // tops increase with position, so search for the last top at
+        // or above y
+        lo = reachLow;
+        hi = reachHigh;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (startTop + getIndexedDistance(startPos, mid) <= y) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return The y-distance from the top of the item at from to the
+     * top of the item at to, given the current shuffle state. All
+     * child heights in between must be indexed.
+     */
+    private int getIndexedDistance(int from, int to) {
+        if (to < from) {
+            return -getIndexedDistance(to, from);
+        }
+        int distance = mHeightIndex.sum(from, to) + (to - from) * getDividerHeight();
+
+        // only the source and expanded items differ from their
+        // child heights
+        distance += getIndexedBlankHeight(mSrcPos, from, to);
+        if (mFirstExpPos != mSrcPos) {
+            distance += getIndexedBlankHeight(mFirstExpPos, from, to);
+        }
+        if (mSecondExpPos != mSrcPos && mSecondExpPos != mFirstExpPos) {
+            distance += getIndexedBlankHeight(mSecondExpPos, from, to);
+        }
+        return distance;
+    }
+
+    private int getIndexedBlankHeight(int position, int from, int to) {
+        if (position < from || position >= to) {
+            return 0;
+        }
+        final int childHeight = mHeightIndex.get(position);
+        return calcItemHeight(position, childHeight) - childHeight;
     }
 
     private void saveTouchCoords(MotionEvent ev) {
@@ -1932,7 +2232,14 @@ public class DragSortListView extends ListView {
             return getChildHeight(position, v, false);
         } else {
             // item is offscreen
-            // first check cache for child height at this position
+            // first check the index and cache for child height at
+            // this position
+            if (mHeightIndex != null) {
+                int indexedHeight = mHeightIndex.get(position);
+                if (indexedHeight != HeightIndex.UNKNOWN) {
+                    return indexedHeight;
+                }
+            }
             int childHeight = mChildHeightCache.get(position);
             if (childHeight != -1) {
                 // Log.d("mobeta", "found child height in cache!");
@@ -1984,17 +2291,20 @@ public class DragSortListView extends ListView {
 
         ViewGroup.LayoutParams lp = child.getLayoutParams();
 
-        if (lp != null) {
-            if (lp.height > 0) {
-                return lp.height;
+        int childHeight;
+        if (lp != null && lp.height > 0) {
+            childHeight = lp.height;
+        } else {
+            childHeight = child.getHeight();
+
+            if (childHeight == 0 || invalidChildHeight) {
+                measureItem(child);
+                childHeight = child.getMeasuredHeight();
             }
         }
 
-        int childHeight = child.getHeight();
-
-        if (childHeight == 0 || invalidChildHeight) {
-            measureItem(child);
-            childHeight = child.getMeasuredHeight();
+        if (mHeightIndex != null) {
+            mHeightIndex.set(position, childHeight);
         }
 
         return childHeight;
@@ -2255,6 +2565,10 @@ public class DragSortListView extends ListView {
         mSrcPos = pos;
         mFloatPos = pos;
 
+        if (mHeightIndexEnabled) {
+            buildHeightIndex();
+        }
+
         // mDragState = dragType;
         mDragState = DRAGGING;
         mDragFlags = 0;
@@ -2556,6 +2870,23 @@ public class DragSortListView extends ListView {
     public interface DragSortListener extends DropListener, DragListener, RemoveListener {
     }
 
+    /**
+     * Implemented by a ListAdapter that knows the heights of its item
+     * Views without laying them out. If the height index is enabled
+     * with {@link DragSortListView#setHeightIndexEnabled(boolean)},
+     * these heights are indexed at the start of each drag instead of
+     * measuring items.
+     */
+    public interface ChildHeightProvider {
+        /**
+         * @param position Adapter position, not counting headers.
+         *
+         * @return The height of the item View at position, or -1 if
+         * it is not known.
+         */
+        public int getChildHeight(int position);
+    }
+
     public void setDragSortListener(DragSortListener l) {
         setDropListener(l);
         setDragListener(l);
@@ -0,0 +1,96 @@
+package com.mobeta.android.dslv;
+
+import java.util.Arrays;
+
+/**
+ * Child heights of the items in a {@link DragSortListView}, indexed by
+ * position, with Fenwick trees over the known heights and over how
+ * many are known. The total height of any range of items, and whether
+ * all of their heights are known, take O(log n).
+ */
+class HeightIndex {
+
+    public static final int UNKNOWN = -1;
+
+    private final int[] mHeights;
+
+    /**
+     * Fenwick trees, 1-based, over the known heights and over a count
+     * of one for each known height.
+     */
+    private final int[] mSumTree;
+    private final int[] mKnownTree;
+
+    public HeightIndex(int count) {
+        mHeights = new int[count];
+        Arrays.fill(mHeights, UNKNOWN);
+        mSumTree = new int[count + 1];
+        mKnownTree = new int[count + 1];
+    }
+
+    public int size() {
+        return mHeights.length;
+    }
+
+    /**
+     * @return The child height at position, or {@link #UNKNOWN}
+     */
+    public int get(int position) {
+        if (position < 0 || position >= mHeights.length) {
+            return UNKNOWN;
+        }
+        return mHeights[position];
+    }
+
+    /**
+     * Record the child height at position.
+     */
+    public void set(int position, int height) {
+        if (position < 0 || position >= mHeights.length || height < 0) {
+            return;
+        }
+        int old = mHeights[position];
+        if (old == height) {
+            return;
+        }
+        mHeights[position] = height;
+        add(mSumTree, position, old == UNKNOWN ? height : height - old);
+        if (old == UNKNOWN) {
+            add(mKnownTree, position, 1);
+        }
+    }
+
+    /**
+     * @return The sum of the child heights in [from, to)
+     */
+    public int sum(int from, int to) {
+        return prefix(mSumTree, to) - prefix(mSumTree, from);
+    }
+
+    /**
+     * @return True if every child height in [from, to) is known
+     */
+    public boolean isKnown(int from, int to) {
+        if (from < 0 || to > mHeights.length) {
+            return false;
+        }
+        return prefix(mKnownTree, to) - prefix(mKnownTree, from) == to - from;
+    }
+
+    private static void add(int[] tree, int position, int delta) {
+        for (int i = position + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * @return The sum of the first count values
+     */
+    private static int prefix(int[] tree, int count) {
+        int sum = 0;
+        for (int i = count; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,160 @@
+package com.mobeta.android.dslv;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * One step of the edit script returned by
+ * {@link DragSortCursorAdapter#getEditScript()}, which turns the
+ * Cursor's order into the order shown by the list.
+ *
+ * Apply the steps in order. All {@link #DELETE} steps come first. They
+ * run from the end of the Cursor toward its start, so their positions
+ * are plain Cursor positions. The {@link #MOVE} steps follow. Their
+ * positions are in the list as it stands after the previous steps.
+ */
+public class ReorderEdit {
+
+    /**
+     * Remove count rows starting at from.
+     */
+    public static final int DELETE = 0;
+
+    /**
+     * Take count rows starting at from out of the list, then insert
+     * them so that the first lands at to.
+     */
+    public static final int MOVE = 1;
+
+    public final int type;
+    public final int from;
+    public final int count;
+
+    /**
+     * Where a {@link #MOVE} puts its rows. Unused for {@link #DELETE}.
+     */
+    public final int to;
+
+    public ReorderEdit(int type, int from, int count, int to) {
+        this.type = type;
+        this.from = from;
+        this.count = count;
+        this.to = to;
+    }
+
+    @Override
+    public String toString() {
+        if (type == DELETE) {
+            return "DELETE " + from + "+" + count;
+        }
+        return "MOVE " + from + "+" + count + " -> " + to;
+    }
+
+    /**
+     * Builds the edit script that turns the Cursor order into order.
+     *
+     * Deleted rows are grouped into contiguous runs. The remaining rows
+     * that sit on a longest increasing subsequence of the order stay
+     * where they are. The others are moved, with rows that are adjacent
+     * in both orders moved together, so the script moves as few rows as
+     * possible.
+     *
+     * @param order Cursor positions in list order
+     * @param cursorCount The number of rows in the Cursor
+     * @param removed The removed Cursor positions
+     */
+    static ArrayList<ReorderEdit> diff(int[] order, int cursorCount, BitSet removed) {
+        ArrayList<ReorderEdit> script = new ArrayList<ReorderEdit>();
+
+        // deletes, last run first
+        int end = cursorCount;
+        while (end > 0) {
+            int last = removed.previousSetBit(end - 1);
+            if (last < 0) {
+                break;
+            }
+            int first = removed.previousClearBit(last) + 1;
+            script.add(new ReorderEdit(DELETE, first, last - first + 1, 0));
+            end = first;
+        }
+
+        // renumber the remaining rows by their position once the
+        // deletes are applied
+        int[] compact = new int[cursorCount];
+        int next = 0;
+        for (int i = 0; i < cursorCount; ++i) {
+            compact[i] = removed.get(i) ? -1 : next++;
+        }
+        int count = order.length;
+        int[] values = new int[count];
+        for (int i = 0; i < count; ++i) {
+            values[i] = compact[order[i]];
+        }
+
+        boolean[] stays = longestIncreasingSubsequence(values);
+
+        CursorPositionTree list = new CursorPositionTree(count);
+        int i = 0;
+        while (i < count) {
+            if (stays[i]) {
+                ++i;
+                continue;
+            }
+            // extend the run while the next row also moves and follows
+            // this one in the Cursor
+            int runEnd = i + 1;
+            while (runEnd < count && !stays[runEnd] && values[runEnd] == values[runEnd - 1] + 1) {
+                ++runEnd;
+            }
+
+            int from = list.getListPosition(values[i]);
+            int previous = i > 0 ? values[i - 1] : -1;
+            for (int j = i; j < runEnd; ++j) {
+                int position = list.getListPosition(values[j]);
+                int previousPosition = previous < 0 ? -1 : list.getListPosition(previous);
+                list.move(position, position > previousPosition ? previousPosition + 1 : previousPosition);
+                previous = values[j];
+            }
+            script.add(new ReorderEdit(MOVE, from, runEnd - i, list.getListPosition(values[i])));
+            i = runEnd;
+        }
+
+        return script;
+    }
+
+    /**
+     * @return Whether each value is on one longest strictly increasing
+     * subsequence of values
+     */
+    private static boolean[] longestIncreasingSubsequence(int[] values) {
+        int count = values.length;
+        // tails[k] is the index of the smallest value ending an
+        // increasing subsequence of length k + 1
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int i = 0; i < count; ++i) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values[tails[middle]] < values[i]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                ++length;
+            }
+        }
+
+        boolean[] stays = new boolean[count];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            stays[i] = true;
+        }
+        return stays;
+    }
+}